@@ -0,0 +1,109 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpServerResponse;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Global load shedding for the ingest path.  A request is admitted only while the
+// number of requests in flight and the output's backlog (ICTIOutput.pending()) are
+// under their limits; otherwise it is answered right away, before its body is read,
+// and the client (the SDKs retry) comes back after Retry-After.
+class AdmissionControl {
+
+	private final ICTIOutput _output;
+	private final int _maxInflight;
+	private final int _maxPending;
+	private final String _retryAfter;
+
+	private final AtomicInteger _inflight = new AtomicInteger();
+
+	public AdmissionControl(Properties prop, ICTIOutput output) throws Exception
+	{
+		_output = output;
+
+		// 0 disables the respective check
+		_maxInflight = Integer.parseInt(prop.getProperty("admission.max_inflight", "0"));
+		if( _maxInflight < 0 ) throw new Exception("admission.max_inflight");
+
+		_maxPending = Integer.parseInt(prop.getProperty("admission.max_output_pending", "0"));
+		if( _maxPending < 0 ) throw new Exception("admission.max_output_pending");
+
+		final int ra = Integer.parseInt(prop.getProperty("admission.retry_after", "5"));
+		if( ra < 0 ) throw new Exception("admission.retry_after");
+		_retryAfter = String.valueOf(ra);
+	}
+
+	public boolean enabled()
+	{
+		return _maxInflight > 0 || _maxPending > 0;
+	}
+
+	public String description()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("max_inflight=").append(_maxInflight);
+		sb.append("; max_output_pending=").append(_maxPending);
+		sb.append("; retry_after=").append(_retryAfter);
+		return sb.toString();
+	}
+
+	// True while the output is backed up; admitted requests should stop reading
+	// until this clears
+	public boolean saturated()
+	{
+		return _maxPending > 0 && _output.pending() >= _maxPending;
+	}
+
+	// Returns 0 if the request is admitted, in which case it is counted as in
+	// flight until its response ends or its connection goes away; otherwise
+	// returns the status to reject it with (429 too many requests in flight,
+	// 503 output backed up)
+	public int admit(HttpServerResponse response)
+	{
+		if( saturated() ) return 503;
+
+		if( _maxInflight > 0 && _inflight.incrementAndGet() > _maxInflight ){
+			_inflight.decrementAndGet();
+			return 429;
+		}
+		if( _maxInflight == 0 ) return 0;
+
+		// Whichever comes first releases the slot
+		final AtomicBoolean done = new AtomicBoolean();
+		final Handler<Void> release = v -> {
+			if( done.compareAndSet(false, true) ) _inflight.decrementAndGet();
+		};
+		response.endHandler( release );
+		response.closeHandler( release );
+		return 0;
+	}
+
+	// Only counted while max_inflight is set
+	public int inflight()
+	{
+		return _inflight.get();
+	}
+
+	public String retryAfter()
+	{
+		return _retryAfter;
+	}
+}
@@ -25,19 +25,22 @@ import io.vertx.core.VertxOptions;
 import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.core.http.*;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.datagram.DatagramSocketOptions;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
 
-import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
-import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.lang.IllegalArgumentException;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.io.File;
 import java.security.*;
@@ -52,8 +55,13 @@ public class App
     public static final String VER = "1.5";
     public static final int IVER = 2017082101;
     private static final String ROUTE = "/v1/msg";
+    private static final String ROUTE_BATCH = "/v1/batch";
     private static final String ROUTE_HEALTH = "/";
+    private static final String ROUTE_METRICS = "/metrics";
+    private static final String ROUTE_SLOW = "/slow";
+    private static final String TRACE = "trace"; // routing context key
     private static final int COUNTER_MS = (1000 * 60 * 60 * 4); // 4 hours
+    private static final int HOLD_MS = 50;
 
     private static final int API_PORT = 443;
     private static final boolean API_SSL = true;
@@ -65,9 +73,32 @@ public class App
     static { _UTF8 = Charset.forName("UTF-8"); }
 
     private long _maxSize = (64 * 1024);
+    private long _batchMaxSize;
+    private int _maxInflateRatio;
+    private static int _ingestChunk;
     private String _uploadDir;
     private int _listenPort;
     private boolean _saveIp = true;
+    private String _xffTrusted;
+    private int _errSummarySecs;
+    private boolean _eventLoopIngest = false;
+    private int _httpInstances;
+    private int _tcpPort;
+    private boolean _nativeTransport = false;
+    private boolean _tcpNoDelay = true;
+    private boolean _tcpFastOpen = false;
+    private boolean _tcpQuickAck = false;
+    private boolean _reusePort = false;
+    private int _receiveBufferSize;
+    private int _sendBufferSize;
+    private int _udpPort;
+    private String _udpHost;
+    private int _metricsPort;
+    private static SlowRequests _slow;
+    private boolean _http2 = false;
+    private int _http2MaxStreams;
+    private int _http2WindowSize;
+    private int _http2ConnWindowSize;
     private String _keystorePath = null;
     private String _keystorePassword = null;
 
@@ -77,6 +108,8 @@ public class App
     private static ICTIInput _input = null;
     private static ICTITransform _transform = null;
     private static ICTIOutput _output = null;
+    private AdmissionControl _admission;
+    private IpThrottle _throttle;
 
     public static Vertx vertx = null;
     private static EventBus _eb;
@@ -151,17 +184,66 @@ public class App
     public App(Properties props) throws Exception
     {
 	// Our global context/instance
+	String v = props.getProperty("native_transport","");
+	if( "true".equals(v) ) _nativeTransport = true;
 	VertxOptions vo = new VertxOptions();
 	//vo.setBlockedThreadCheckInterval(500);
 	vo.setInternalBlockingPoolSize(80).setWorkerPoolSize(80);
+	vo.setPreferNativeTransport( _nativeTransport );
 	vertx = Vertx.vertx(vo);
 
+	// Socket tuning for the listeners
+	v = props.getProperty("tcp_nodelay","");
+	if( "false".equals(v) ) _tcpNoDelay = false;
+	v = props.getProperty("tcp_fastopen","");
+	if( "true".equals(v) ) _tcpFastOpen = true;
+	v = props.getProperty("tcp_quickack","");
+	if( "true".equals(v) ) _tcpQuickAck = true;
+	v = props.getProperty("reuse_port","");
+	if( "true".equals(v) ) _reusePort = true;
+	_receiveBufferSize = Integer.parseInt( props.getProperty("receive_buffer_size","-1") );
+	_sendBufferSize = Integer.parseInt( props.getProperty("send_buffer_size","-1") );
+
 	// HTTP listener configuration items
 	_maxSize = Long.parseLong( props.getProperty("max_size","65536") );
+	_batchMaxSize = Long.parseLong( props.getProperty("batch_max_size","4194304") );
+	_maxInflateRatio = Integer.parseInt( props.getProperty("max_inflate_ratio","100") );
+	if( _maxInflateRatio < 0 ) throw new IllegalArgumentException("bad 'max_inflate_ratio' value");
+	_ingestChunk = Integer.parseInt( props.getProperty("ingest_chunk","0") );
+	if( _ingestChunk < 0 ) throw new IllegalArgumentException("bad 'ingest_chunk' value");
 	_uploadDir = System.getProperty("java.io.tmpdir");
 	_listenPort = Integer.parseInt( props.getProperty("port","5000") );
-	String v = props.getProperty("save_ip","");
+	v = props.getProperty("save_ip","");
 	if( "false".equals(v) ) _saveIp = false;
+	_xffTrusted = props.getProperty("xff_trusted_proxies","").trim();
+	try {
+		XForwardedFor.trust( _xffTrusted );
+	} catch(Exception e){
+		throw new IllegalArgumentException("bad 'xff_trusted_proxies' value");
+	}
+	_errSummarySecs = Integer.parseInt( props.getProperty("error_summary_interval","3600") );
+	if( _errSummarySecs < 1 ) throw new IllegalArgumentException("bad 'error_summary_interval' value");
+	_httpInstances = Integer.parseInt( props.getProperty("http_instances",
+		String.valueOf(Runtime.getRuntime().availableProcessors())) );
+	if( _httpInstances < 1 ) throw new IllegalArgumentException("bad 'http_instances' value");
+	_tcpPort = Integer.parseInt( props.getProperty("tcp_port","0") );
+	_udpPort = Integer.parseInt( props.getProperty("udp_port","0") );
+	if( _tcpPort < 0 || _tcpPort > 65535 ) throw new IllegalArgumentException("bad 'tcp_port' value");
+	if( _udpPort < 0 || _udpPort > 65535 ) throw new IllegalArgumentException("bad 'udp_port' value");
+	_udpHost = props.getProperty("udp_host","0.0.0.0");
+	_metricsPort = Integer.parseInt( props.getProperty("metrics_port","0") );
+	if( _metricsPort < 0 || _metricsPort > 65535 ) throw new IllegalArgumentException("bad 'metrics_port' value");
+	final int slowRequests = Integer.parseInt( props.getProperty("slow_requests","20") );
+	if( slowRequests < 0 ) throw new IllegalArgumentException("bad 'slow_requests' value");
+	final int slowInterval = Integer.parseInt( props.getProperty("slow_interval","60") );
+	if( slowInterval < 1 ) throw new IllegalArgumentException("bad 'slow_interval' value");
+	_slow = new SlowRequests( slowRequests, slowInterval );
+	v = props.getProperty("ingest_mode","worker");
+	if( v.equals("eventloop") ) _eventLoopIngest = true;
+	else if( !v.equals("worker") ){
+		System.out.println("Unrecognized 'ingest_mode' value in configuration");
+		throw new IllegalArgumentException("bad 'ingest_mode' value '" + v + "'");
+	}
 	_hpkp_header = props.getProperty("hpkp_header", null);
 
 	_keystorePath = props.getProperty("ssl_keystore", null);
@@ -172,6 +254,14 @@ public class App
 			throw new IllegalArgumentException("Keystore does not exist");
 		}
 	}
+	v = props.getProperty("http2","");
+	if( "true".equals(v) ) _http2 = true;
+	_http2MaxStreams = Integer.parseInt( props.getProperty("http2.max_concurrent_streams","100") );
+	_http2WindowSize = Integer.parseInt( props.getProperty("http2.initial_window_size","65535") );
+	_http2ConnWindowSize = Integer.parseInt( props.getProperty("http2.connection_window_size","-1") );
+	if( _http2MaxStreams < 1 ) throw new IllegalArgumentException("bad 'http2.max_concurrent_streams' value");
+	if( _http2WindowSize < 1 ) throw new IllegalArgumentException("bad 'http2.initial_window_size' value");
+
 	_keystorePassword = props.getProperty("ssl_keystore_password", null);
 	if( _keystorePath != null && _keystorePassword == null ){
 		System.out.println("Error: keystore without keystore password specified");
@@ -201,6 +291,7 @@ public class App
 	} else if( _strTransform.equals("kvp") ){ _transform = new TransformKVP2(props);
 	} else if( _strTransform.equals("json") ){ _transform = new TransformJSON(props);
 	} else if( _strTransform.equals("csv") ){ _transform = new TransformCSV3(props);
+	} else if( _strTransform.equals("template") ){ _transform = new TransformTemplate(props);
 	} else {
 		System.out.println("Unrecognized 'transform' value in configuration");
 		throw new IllegalArgumentException("bad 'transform' value '" + _strTransform + "'");
@@ -220,6 +311,9 @@ public class App
 		throw new IllegalArgumentException("bad 'output' value '" + _strOutput + "'");
 	}
 
+	_admission = new AdmissionControl(props, _output);
+	_throttle = new IpThrottle(props);
+
 	// Figure out the desired input
 	_strInput = props.getProperty("input","protobuf");
 	if( _strInput.equals("protobuf") ){ _input = new InputCTIProtobuf(props);
@@ -232,8 +326,49 @@ public class App
 	System.out.print(DESC);
 	System.out.print(" ");
 	System.out.println(VER);
-	System.out.print("- Upload/temp dir: ");
-	System.out.println( _uploadDir );
+	System.out.print("- Ingest mode: ");
+	System.out.println( _eventLoopIngest ? "eventloop" : "worker" );
+	System.out.print("- HTTP instances: ");
+	System.out.println( _httpInstances );
+	System.out.print("- Transport: ");
+	if( vertx.isNativeTransportEnabled() ){
+		System.out.print("native");
+		if( _tcpFastOpen ) System.out.print("; tcp_fastopen");
+		if( _tcpQuickAck ) System.out.print("; tcp_quickack");
+	} else System.out.print("nio");
+	if( _reusePort ) System.out.print("; reuse_port");
+	if( !_tcpNoDelay ) System.out.print("; tcp_nodelay=false");
+	System.out.println();
+	if( _nativeTransport && !vertx.isNativeTransportEnabled() ){
+		System.out.print("- Warning: native transport unavailable: ");
+		System.out.println( io.netty.channel.epoll.Epoll.unavailabilityCause() );
+	}
+	if( _http2 ){
+		System.out.print("- HTTP/2: max_concurrent_streams=");
+		System.out.print( _http2MaxStreams );
+		System.out.print("; initial_window_size=");
+		System.out.println( _http2WindowSize );
+	}
+	if( !_xffTrusted.isEmpty() ){
+		System.out.print("- X-Forwarded-For trusted proxies: ");
+		System.out.println( _xffTrusted );
+	}
+	if( _tcpPort > 0 ){
+		System.out.print("- TCP ingest port: ");
+		System.out.println( _tcpPort );
+	}
+	if( _udpPort > 0 ){
+		System.out.print("- UDP ingest port: ");
+		System.out.println( _udpHost + " " + _udpPort );
+	}
+	if( _metricsPort > 0 ){
+		System.out.print("- Metrics port: ");
+		System.out.println( _metricsPort );
+	}
+	if( !_eventLoopIngest ){
+		System.out.print("- Upload/temp dir: ");
+		System.out.println( _uploadDir );
+	}
 	System.out.print("- Definitions: ");
 	System.out.println( Decode.definitionsDescription() );
 	System.out.print("- Input: ");
@@ -242,13 +377,21 @@ public class App
 	System.out.println( _transform.description() );
 	System.out.print("- Output: ");
 	System.out.println( _output.description() );
+	if( _admission.enabled() ){
+		System.out.print("- Admission: ");
+		System.out.println( _admission.description() );
+	}
+	if( _throttle.enabled() ){
+		System.out.print("- Throttle: ");
+		System.out.println( _throttle.description() );
+	}
 	if( App.DEBUG ) System.out.println("- NON-PRODUCTION DEBUG BUILD");
 
 	_eb = App.vertx.eventBus();
 
 	// Configure our error verticle
 	DeploymentOptions options = new DeploymentOptions().setWorker(true);
-	ErrorWorkerVerticle verticle = new ErrorWorkerVerticle();
+	ErrorWorkerVerticle verticle = new ErrorWorkerVerticle( _errSummarySecs );
 	App.vertx.deployVerticle(verticle, options, res-> {
 		if( !res.succeeded() ){
 			System.out.println("Error: Error Worker Startup Failed");
@@ -315,61 +458,62 @@ public class App
 	});
     }
 
-    private static HashSet<String> _prior = new HashSet<String>();
+    private static final ErrorReporter _errors = new ErrorReporter();
     public static void err(Throwable t)
     {
 		if( t == null ) return;
 		if( App.DEBUG ) t.printStackTrace();
 
-		final StringWriter sw = new StringWriter();
-		final PrintWriter pw = new PrintWriter(sw);
-		t.printStackTrace(pw);
-		final String st = sw.toString();
-
-		// If we've seen this one before, don't complain again
-		if( _prior.contains(st) ) return;
+		// Only the first of a kind is sent; repeats are counted for the summary
+		final String st = _errors.first(t);
+		if( st == null ) return;
 
-		_prior.add(st);
 		if( _errVerticleReady )
 			_eb.send("cti.err", st);
 		else
 			ErrorWorkerVerticle.immediate(st);
     }
 
-    final static AtomicLong counterOK = new AtomicLong();
-    final static AtomicLong counterErr = new AtomicLong();
-    final static AtomicLong counterErrInput = new AtomicLong();
-    final static AtomicLong counterErrTransform = new AtomicLong();
-    final static AtomicLong counterErrOutput = new AtomicLong();
-    final static AtomicLong counterDroppedInput = new AtomicLong();
-    final static AtomicLong counterDroppedData = new AtomicLong();
+    final static LongAdder counterOK = new LongAdder();
+    final static LongAdder counterErr = new LongAdder();
+    final static LongAdder counterErrInput = new LongAdder();
+    final static LongAdder counterErrTransform = new LongAdder();
+    final static LongAdder counterErrOutput = new LongAdder();
+    final static LongAdder counterDroppedInput = new LongAdder();
+    final static LongAdder counterDroppedData = new LongAdder();
+    final static LongAdder counterRateLimited = new LongAdder();
 
     public static void reportDroppedData()
     {
-	counterDroppedData.getAndIncrement();
+	counterDroppedData.increment();
     }
 
-    public byte[] counterPayload()
+    public static void reportRateLimited()
     {
-	final long cOK = counterOK.getAndSet(0);
-	final long cErr = counterErr.getAndSet(0);
-	final long cErrI = counterErrInput.getAndSet(0);
-	final long cErrT = counterErrTransform.getAndSet(0);
-	final long cErrO = counterErrOutput.getAndSet(0);
-	final long cDrop = counterDroppedInput.getAndSet(0);
-	final long cDropD = counterDroppedData.getAndSet(0);
+	counterRateLimited.increment();
+    }
+
+    // The counters are never reset (they're also served as metrics); the payload
+    // carries what they went up by since the last one
+    private final long[] _lastPayload = new long[8];
 
-	Buffer b = Buffer.buffer(7 * 8);
-	b.appendLong(cOK).appendLong(cErr).appendLong(cErrI);
-	b.appendLong(cErrT).appendLong(cErrO).appendLong(cDrop);
-	b.appendLong(cDropD);
+    public synchronized byte[] counterPayload()
+    {
+	final LongAdder[] counters = new LongAdder[]{ counterOK, counterErr, counterErrInput,
+		counterErrTransform, counterErrOutput, counterDroppedInput, counterDroppedData,
+		counterRateLimited };
+
+	Buffer b = Buffer.buffer(8 * 8);
+	for( int i=0; i<counters.length; i++ ){
+		final long v = counters[i].sum();
+		b.appendLong( v - _lastPayload[i] );
+		_lastPayload[i] = v;
+	}
 	return b.getBytes();
     }
 
     public void run()
     {
-	final Router router = Router.router(vertx);
-
 	// We only update the receive timestamp ever X seconds
 	vertx.setPeriodic(2000, id -> {
 		_currentTs = System.currentTimeMillis() / 1000;
@@ -382,6 +526,99 @@ public class App
 		_eb.send("cti.stats", counterPayload() );
 	});
 
+	// Run the HTTP server(s)
+	try {
+		HttpServerOptions hso = new HttpServerOptions().setAcceptBacklog(40000).setUsePooledBuffers(true);
+		socketOptions( hso );
+
+		// HTTP/2 is negotiated via ALPN under SSL; cleartext h2c (prior knowledge
+		// or upgrade) is always accepted by vertx.  HTTP/1.x clients keep working
+		// either way.
+		if( _http2 ){
+			hso.setInitialSettings( new Http2Settings()
+				.setMaxConcurrentStreams( _http2MaxStreams )
+				.setInitialWindowSize( _http2WindowSize ) );
+			hso.setHttp2ConnectionWindowSize( _http2ConnWindowSize );
+		}
+
+		// Should we configure SSL?
+		if( _keystorePath != null && _keystorePassword != null ){
+			// Enable SSL
+			displayKeystorePin();
+			System.out.println("Ready to receive requests on port " + String.valueOf(_listenPort) + " (HTTPS)");
+			hso.setSsl(true).setKeyStoreOptions( new JksOptions().setPath(_keystorePath).setPassword(_keystorePassword));
+			if( _http2 ) hso.setUseAlpn(true);
+		} else {
+			System.out.println("Ready to receive requests on port " + String.valueOf(_listenPort));
+		}
+
+		// Each instance gets its own event loop; vertx round-robins the
+		// shared listening port between them
+		for( int i=0; i<_httpInstances; i++ ){
+			App.vertx.deployVerticle(new IngestVerticle(hso), res-> {
+				if( !res.succeeded() ){
+					System.out.println("Error: HTTP Server Startup Failed");
+					err( res.cause() );
+					try { Thread.sleep(30000); } catch(Exception s){}
+					System.exit(2);
+				}
+			});
+		}
+
+		// Raw binary listeners, if configured
+		if( _tcpPort > 0 ){
+			for( int i=0; i<_httpInstances; i++ ){
+				App.vertx.deployVerticle(new TcpIngestVerticle(), res-> {
+					if( !res.succeeded() ){
+						System.out.println("Error: TCP Ingest Startup Failed");
+						err( res.cause() );
+						try { Thread.sleep(30000); } catch(Exception s){}
+						System.exit(2);
+					}
+				});
+			}
+		}
+		if( _metricsPort > 0 ){
+			App.vertx.deployVerticle(new MetricsVerticle(), res-> {
+				if( !res.succeeded() ){
+					System.out.println("Error: Metrics Listener Startup Failed");
+					err( res.cause() );
+					try { Thread.sleep(30000); } catch(Exception s){}
+					System.exit(2);
+				}
+			});
+		}
+		if( _udpPort > 0 ){
+			App.vertx.deployVerticle(new UdpIngestVerticle(), res-> {
+				if( !res.succeeded() ){
+					System.out.println("Error: UDP Ingest Startup Failed");
+					err( res.cause() );
+					try { Thread.sleep(30000); } catch(Exception s){}
+					System.exit(2);
+				}
+			});
+		}
+	}
+	catch(Throwable t){
+		err(t);
+		System.exit(2);
+	}
+    }
+
+    // Apply the configured socket tuning to a listener; fastopen and quickack only
+    // take effect on the native transport
+    private void socketOptions(NetServerOptions options)
+    {
+	options.setTcpNoDelay( _tcpNoDelay ).setReusePort( _reusePort );
+	if( vertx.isNativeTransportEnabled() )
+		options.setTcpFastOpen( _tcpFastOpen ).setTcpQuickAck( _tcpQuickAck );
+	if( _receiveBufferSize > 0 ) options.setReceiveBufferSize( _receiveBufferSize );
+	if( _sendBufferSize > 0 ) options.setSendBufferSize( _sendBufferSize );
+    }
+
+    private Router createRouter(Vertx vertx)
+    {
+	final Router router = Router.router(vertx);
 
 	// Route handling - GET for the msg handler
 	Route routePing = router.route(ROUTE).method(HttpMethod.GET).handler( routingContext -> {
@@ -391,91 +628,91 @@ public class App
 		});
 
 
+	if( _eventLoopIngest ){
+		routeEventLoop(router, ROUTE, _maxSize, false);
+		routeEventLoop(router, ROUTE_BATCH, _batchMaxSize, true);
+	} else {
+		routeWorker(router, ROUTE, _maxSize, false);
+		routeWorker(router, ROUTE_BATCH, _batchMaxSize, true);
+	}
+
+	// Route handling - we have a simple route handler for ELB health requests
+	Route routeHealth = router.route(ROUTE_HEALTH).method(HttpMethod.GET).handler( routingContext -> {
+			routingContext.response().setStatusCode(200);
+			routingContext.response().end();
+		});
+
+
+	// Global error handler, to catch any problems in HTTP handling
+	router.route().failureHandler( ctx -> {
+			// A handler failing with a status (e.g. 413 from BodyHandler) has
+			// no throwable, and keeps its status
+			if( ctx.failure() != null ) App.err( ctx.failure() );
+			ctx.response().setStatusCode( ctx.statusCode() > 0 ? ctx.statusCode() : 500 );
+			ctx.response().end();
+		});
+
+	return router;
+    }
+
+
+    // Set up the classic POST handling: BodyHandler buffering, then processing on
+    // the worker pool
+    private void routeWorker(Router router, String path, long maxSize, boolean batch)
+    {
+	// Route handling - start timing the request
+	router.route(path).method(HttpMethod.POST).handler( routingContext -> {
+		routingContext.put( TRACE, new SlowRequests.Trace( path ) );
+		routingContext.next();
+	});
+
+	// Route handling - turn away sources over their limits, then shed load,
+	// before the body gets buffered
+	if( _throttle.limitsRequests() ){
+		router.route(path).method(HttpMethod.POST).handler( routingContext -> {
+			if( throttle( routingContext.request(), routingContext.get( TRACE ) ) ) routingContext.next();
+		});
+	}
+	if( _admission.enabled() ){
+		router.route(path).method(HttpMethod.POST).handler( routingContext -> {
+			if( admit( routingContext.request(), routingContext.get( TRACE ) ) ) routingContext.next();
+		});
+	}
+
 	// Route handling - initial POST body upload
-	final Route route1 = router.route(ROUTE).method(HttpMethod.POST);
+	final Route route1 = router.route(path).method(HttpMethod.POST);
 	final BodyHandler bodyHandler = BodyHandler.create();
-	bodyHandler.setBodyLimit( _maxSize );
+	bodyHandler.setBodyLimit( maxSize );
 	bodyHandler.setUploadsDirectory( _uploadDir );
 	route1.handler( bodyHandler );
 
 	// Route handling - process body, transform, and output
-	final Route route2 = router.route(ROUTE).method(HttpMethod.POST);
+	final Route route2 = router.route(path).method(HttpMethod.POST);
 	route2.blockingHandler( routingContext -> {
 
+		SlowRequests.enter( routingContext.get( TRACE ) );
 		try {
 			// Retrieve the body bytes
 			final ByteBuf body = routingContext.getBody().getByteBuf();
-			final ByteBufInputStream bbis = new ByteBufInputStream( body, body.readableBytes() );
-			final long ts = _currentTs; 
-
-			// Get the received IP, if desired
-			byte[] ip = new byte[4];
-			if( _saveIp ){
-				final String xff = routingContext.request().getHeader("X-Forwarded-For");
-				if( xff != null )
-					ip = XForwardedFor.parse( xff.getBytes(), 0 );
-				else {
-					final String ra = routingContext.request().remoteAddress().host();
-					ip = XForwardedFor.parse( ra.getBytes(), 0 );
-				}
-			}
-
-			CTIItem[] items;
-			try {
-				items = _input.process(ip, ts, bbis);
-			}
-			catch(Throwable t){
-				counterErrInput.getAndIncrement();
-				err(t);
-				routingContext.response().setStatusCode(500);
+			final OutputSink sink = ingestBody( routingContext.request(), body, maxSize, batch );
+			if( sink == null || sink == UNSUPPORTED || sink == TOO_LARGE ){
+				routingContext.response().setStatusCode( bodyStatus(sink) );
 				routingContext.next();
 				return;
 			}
-			// items == null if the report is to be discarded
-			if( items == null ){
-				counterDroppedInput.getAndIncrement();
-				err( new Throwable("Null items") );
-			} else {
-				byte[][] binary_items = new byte[items.length][];
-				int i;
-				Object go = _transform.groupObject(items);
-				for(i=0; i<items.length; i++){
-					if( items[i] == null ) continue;
-					try {
-						binary_items[i] = _transform.transform( items[i], go );
-					}
-					catch(Throwable t){
-						counterErrTransform.getAndIncrement();
-						err(t);
-						// TODO continue to other items?  This item may
-						// replay and keep hitting the bug
-						routingContext.response().setStatusCode(500);
-						routingContext.next();
-						return;
-					}
-				}
-				try {
-					_output.output( binary_items );
-				}
-				catch(Throwable t){
-					counterErrOutput.getAndIncrement();
-					err(t);
-					routingContext.response().setStatusCode(500);
-					routingContext.next();
-					return;
-				}
-			}
+			routingContext.response().setStatusCode( emit(sink) );
 		}
 		catch(Throwable e){
 			err(e);
-			counterErr.getAndIncrement();
+			counterErr.increment();
 			routingContext.response().setStatusCode(500);
 			routingContext.next();
 			return;
 		}
+		finally {
+			SlowRequests.exit();
+		}
 
-		counterOK.getAndIncrement();
-		routingContext.response().setStatusCode(200);
 		if( _hpkp_header != null ) routingContext.response().putHeader("Public-Key-Pins", _hpkp_header);
 		routingContext.next();
 
@@ -484,47 +721,571 @@ public class App
 	// Route handling - finish the request
 	// NOTE: there is/was a bug in vertx where response.end() on a blocking handler didn't
 	// correctly end, it required leaving the blocking handler and ending on a non-blocking handler
-	final Route route3 = router.route(ROUTE).method(HttpMethod.POST).handler( routingContext -> {
+	final Route route3 = router.route(path).method(HttpMethod.POST).handler( routingContext -> {
 			routingContext.response().end();
+			finish( routingContext.get( TRACE ), routingContext.response().getStatusCode() );
 		});
+    }
 
-	// Route handling - we have a simple route handler for ELB health requests
-	Route routeHealth = router.route(ROUTE_HEALTH).method(HttpMethod.GET).handler( routingContext -> {
-			routingContext.response().setStatusCode(200);
-			routingContext.response().end();
+    // Set up the event loop POST handling: the body is accumulated directly from the
+    // request stream into a pooled buffer, then decoded, transformed and answered in
+    // the same handler.  Only blocking outputs are handed off to the worker pool.
+    private void routeEventLoop(Router router, String path, long maxSize, boolean batch)
+    {
+	router.route(path).method(HttpMethod.POST).handler( routingContext -> {
+		final HttpServerRequest request = routingContext.request();
+		final HttpServerResponse response = request.response();
+		final SlowRequests.Trace trace = new SlowRequests.Trace( path );
+
+		if( _throttle.limitsRequests() && !throttle( request, trace ) ) return;
+		if( _admission.enabled() && !admit( request, trace ) ) return;
+
+		// Reject anything that announces itself as too large, before reading it
+		final String cl = request.getHeader("Content-Length");
+		int initial = 1024;
+		if( cl != null ){
+			try {
+				final long len = Long.parseLong(cl);
+				if( len > maxSize ){
+					reject( request, 413, trace );
+					return;
+				}
+				if( len > 0 ) initial = (int)len;
+			} catch(NumberFormatException e){
+				reject( request, 400, trace );
+				return;
+			}
+		}
+
+		final ByteBuf body = PooledByteBufAllocator.DEFAULT.heapBuffer( initial );
+		final boolean[] held = new boolean[1];
+
+		request.handler( chunk -> {
+			if( body.refCnt() == 0 ) return; // already rejected
+			if( (body.readableBytes() + chunk.length()) > maxSize ){
+				body.release();
+				reject( request, 413, trace );
+				return;
+			}
+			body.writeBytes( chunk.getByteBuf() );
+
+			// Stop reading while the output is backed up; the client's send
+			// window fills up and it slows down on its own
+			if( !held[0] && _admission.saturated() ){
+				held[0] = true;
+				request.pause();
+				vertx.setPeriodic( HOLD_MS, id -> {
+					if( body.refCnt() > 0 && _admission.saturated() ) return;
+					vertx.cancelTimer( id );
+					held[0] = false;
+					request.resume();
+				});
+			}
+		});
+
+		request.exceptionHandler( t -> {
+			if( body.refCnt() > 0 ) body.release();
 		});
 
+		request.endHandler( v -> {
+			if( body.refCnt() == 0 ) return; // already rejected
 
-	// Global error handler, to catch any problems in HTTP handling
-	router.route().failureHandler( ctx -> {
-			Throwable t = (Throwable) ctx.failure();
-			App.err( ctx.failure() );
-			ctx.response().setStatusCode(500);
-			ctx.response().end();
+			SlowRequests.enter( trace );
+			try {
+				handleBody( request, body, maxSize, batch, trace );
+			}
+			finally {
+				SlowRequests.exit();
+			}
 		});
-	
-	// Run the HTTP server
+	});
+    }
+
+    // The rest of the event loop POST handling, once the body is in; releases it
+    private void handleBody(HttpServerRequest request, ByteBuf body, long maxSize, boolean batch,
+	SlowRequests.Trace trace)
+    {
+	final HttpServerResponse response = request.response();
+	if( chunked( request, batch ) ){
+		ingestChunkedAsync( recvIp( request ), _currentTs, body, trace,
+			status -> respond( response, status, trace ) );
+		return;
+	}
+
+	final OutputSink sink;
 	try {
-		HttpServerOptions hso = new HttpServerOptions().setAcceptBacklog(40000).setUsePooledBuffers(true);
+		sink = ingestBody( request, body, maxSize, batch );
+	}
+	catch(Throwable e){
+		err(e);
+		counterErr.increment();
+		respond( response, 500, trace );
+		return;
+	}
+	finally {
+		body.release();
+	}
 
-		// Should we configure SSL?
-		if( _keystorePath != null && _keystorePassword != null ){
-			// Enable SSL
-			displayKeystorePin();
-			System.out.println("Ready to receive requests on port " + String.valueOf(_listenPort) + " (HTTPS)");
-			hso.setSsl(true).setKeyStoreOptions( new JksOptions().setPath(_keystorePath).setPassword(_keystorePassword));
-		} else {
-			System.out.println("Ready to receive requests on port " + String.valueOf(_listenPort));
+	if( sink == null || sink == UNSUPPORTED || sink == TOO_LARGE ){
+		respond( response, bodyStatus(sink), trace );
+		return;
+	}
+
+	emitAsync( sink, trace, status -> respond( response, status, trace ) );
+    }
+
+    // Answer without reading the (rest of the) body; an HTTP/1.x connection can't
+    // be reused after that, while an HTTP/2 stream just ends on its own
+    private static void reject(HttpServerRequest request, int status, SlowRequests.Trace trace)
+    {
+	final HttpServerResponse response = request.response();
+	if( request.version() == HttpVersion.HTTP_2 ){
+		response.setStatusCode(status).end();
+	} else {
+		response.putHeader("Connection", "close").setStatusCode(status).end();
+		response.close();
+	}
+	finish( trace, status );
+    }
+
+    // Shed the request up front if we're over the admission limits; returns false
+    // if it has already been answered
+    private boolean admit(HttpServerRequest request, SlowRequests.Trace trace)
+    {
+	final int status = _admission.admit( request.response() );
+	if( status == 0 ) return true;
+	request.response().putHeader("Retry-After", _admission.retryAfter());
+	reject( request, status, trace );
+	return false;
+    }
+
+    // Turn the request away if its source is over its request rate; returns false
+    // if it has already been answered
+    private boolean throttle(HttpServerRequest request, SlowRequests.Trace trace)
+    {
+	final int slot = _throttle.slot( sourceIp( request ) );
+	if( _throttle.request( slot, System.currentTimeMillis() / 1000 ) ) return true;
+	request.response().putHeader("Retry-After", "1");
+	reject( request, 429, trace );
+	return false;
+    }
+
+    // Count a new connection against its source; false if it has been closed
+    // for being one too many, otherwise it's uncounted when it closes
+    private boolean throttle(SocketAddress address, Handler<Handler<Void>> closeHandler)
+    {
+	final int slot = _throttle.slot( sourceIp( address ) );
+	if( !_throttle.connect( slot ) ) return false;
+	closeHandler.handle( v -> _throttle.disconnect( slot ) );
+	return true;
+    }
+
+    private static void respond(HttpServerResponse response, int status, SlowRequests.Trace trace)
+    {
+	response.setStatusCode(status);
+	if( status == 200 && _hpkp_header != null ) response.putHeader("Public-Key-Pins", _hpkp_header);
+	response.end();
+	finish( trace, status );
+    }
+
+    // A request has been answered
+    private static void finish(SlowRequests.Trace trace, int status)
+    {
+	if( trace == null ) return;
+	Metrics.request.record( System.nanoTime() - trace.start );
+	_slow.offer( trace, status );
+	if( trace.event != null ) trace.event.done( trace.bytes, trace.items, status );
+    }
+
+    // Get the received IP, if desired
+    private byte[] recvIp(HttpServerRequest request)
+    {
+	if( !_saveIp ) return new byte[4];
+	return sourceIp( request );
+    }
+
+    private byte[] addressIp(SocketAddress address)
+    {
+	if( !_saveIp ) return new byte[4];
+	return sourceIp( address );
+    }
+
+    // The client address of a request, whether or not it's saved
+    private static byte[] sourceIp(HttpServerRequest request)
+    {
+	return XForwardedFor.client( request.getHeader("X-Forwarded-For"),
+		request.remoteAddress().host() );
+    }
+
+    private static byte[] sourceIp(SocketAddress address)
+    {
+	return XForwardedFor.address( address.host() );
+    }
+
+    private static final OutputSink DISCARDED = new OutputSink( Unpooled.EMPTY_BUFFER, 0 );
+    private static final OutputSink UNSUPPORTED = new OutputSink( Unpooled.EMPTY_BUFFER, 0 );
+    private static final OutputSink TOO_LARGE = new OutputSink( Unpooled.EMPTY_BUFFER, 0 );
+
+    // Ingest a request body, inflating it on the fly if it has a Content-Encoding.
+    // Besides what ingest() returns, gives UNSUPPORTED for an encoding we can't
+    // handle, and TOO_LARGE if the inflated body ran past its limits.
+    private OutputSink ingestBody(HttpServerRequest request, ByteBuf body, long maxSize,
+	boolean batch) throws IOException
+    {
+	final byte[] ip = recvIp( request );
+	final int len = body.readableBytes();
+	final String ce = request.getHeader("Content-Encoding");
+	final boolean encoded = ( ce != null && !ce.equalsIgnoreCase("identity") );
+
+	// A plain single report is decoded in place
+	if( !encoded && !batch ) return ingest( ip, _currentTs, body.nioBuffer() );
+
+	Metrics.received( len );
+	InputStream data = new ByteBufInputStream( body, len );
+	InflatingInputStream inflated = null;
+	if( encoded ){
+		inflated = InflatingInputStream.create( ce, data, len, maxSize, _maxInflateRatio );
+		if( inflated == null ) return UNSUPPORTED;
+		data = inflated;
+	}
+
+	try {
+		final OutputSink sink = batch ? ingestBatch( ip, _currentTs, data )
+			: ingest( ip, _currentTs, data );
+		if( inflated != null && inflated.exceeded() ) return TOO_LARGE;
+		return sink;
+	}
+	finally {
+		if( inflated != null ) inflated.close();
+	}
+    }
+
+    // Whether a body is decoded and sent on a chunk at a time: only plain single
+    // reports, only if configured, and only in eventloop mode (the worker mode's
+    // router has already built the whole body up as its own copy)
+    private static boolean chunked(HttpServerRequest request, boolean batch)
+    {
+	if( _ingestChunk <= 0 || batch ) return false;
+	final String ce = request.getHeader("Content-Encoding");
+	return ( ce == null || ce.equalsIgnoreCase("identity") );
+    }
+
+    // Stops a chunked ingest once a failure has been counted & reported
+    private static final Exception CHUNK_FAILED = new Exception("chunk failed");
+
+    // Decode, transform and send a report a chunk of items at a time, so a report
+    // with very many sightings never has all of its items (decoded or transformed)
+    // in memory at once; returns the HTTP status to use.  Chunks sent before a
+    // failure stay sent.
+    static int ingestChunked(byte[] ip, long ts, ByteBuffer data)
+    {
+	// The group object is made once, from the first chunk (it starts with the
+	// item carrying the report values)
+	final Object[] go = new Object[1];
+	final boolean[] first = new boolean[]{ true };
+	final int[] status = new int[]{ 200 };
+
+	// Decoding is interleaved with the chunks' transforms and outputs; what
+	// they took is taken back out of the decode time
+	final long[] spent = new long[1];
+	final int[] decoded = new int[1];
+	Metrics.received( data.remaining() );
+	final long t0 = System.nanoTime();
+
+	final boolean kept;
+	try {
+		kept = _input.processChunked( ip, ts, data, _ingestChunk, (items, count) -> {
+			final OutputSink sink = _output.sink( count );
+			final long t1 = System.nanoTime();
+			try {
+				if( first[0] ){
+					go[0] = _transform.groupObject(items);
+					first[0] = false;
+				}
+				for( int i=0; i<count; i++ )
+					transformItem( items[i], go[0], sink );
+			}
+			catch(Throwable t){
+				counterErrTransform.increment();
+				err(t);
+				_input.undo( items );
+				status[0] = 500;
+				throw CHUNK_FAILED;
+			}
+			final long t2 = System.nanoTime();
+			Metrics.transformed( t2 - t1 );
+			try {
+				_output.output( sink );
+			}
+			catch(Throwable t){
+				counterErrOutput.increment();
+				err(t);
+				_input.undo( items );
+				status[0] = 500;
+				throw CHUNK_FAILED;
+			}
+			final long t3 = System.nanoTime();
+			Metrics.delivered( t3 - t2 );
+			Metrics.sent( sink );
+			spent[0] += t3 - t1;
+			decoded[0] += count;
+		});
+	}
+	catch(Throwable t){
+		if( t == CHUNK_FAILED ) return status[0];
+		counterErrInput.increment();
+		err(t);
+		return 500;
+	}
+	Metrics.parsed( System.nanoTime() - t0 - spent[0], decoded[0] );
+
+	if( !kept ){
+		counterDroppedInput.increment();
+		err( new Throwable("Null items") );
+		return 200;
+	}
+	counterOK.increment();
+	return 200;
+    }
+
+    // Same as above from an event loop: with an output that may block, the whole
+    // report is worked through on the worker pool.  Releases body when done.
+    static void ingestChunkedAsync(byte[] ip, long ts, ByteBuf body, SlowRequests.Trace trace,
+	Handler<Integer> done)
+    {
+	if( !_output.isBlocking() ){
+		final int status;
+		try {
+			status = ingestChunked( ip, ts, body.nioBuffer() );
+		}
+		finally {
+			body.release();
+		}
+		done.handle( status );
+		return;
+	}
+
+	vertx.<Integer>executeBlocking( fut -> {
+		SlowRequests.enter( trace );
+		try {
+			fut.complete( ingestChunked( ip, ts, body.nioBuffer() ) );
+		}
+		finally {
+			SlowRequests.exit();
+		}
+	}, false, res -> {
+		body.release();
+		if( res.succeeded() ) done.handle( res.result() );
+		else {
+			err( res.cause() );
+			counterErr.increment();
+			done.handle( 500 );
 		}
+	});
+    }
 
-		vertx.createHttpServer( hso ).requestHandler(router::accept).listen(_listenPort);
+    // Status for a body that didn't produce items for the output
+    private static int bodyStatus(OutputSink sink)
+    {
+	if( sink == UNSUPPORTED ) return 415;
+	if( sink == TOO_LARGE ) return 413;
+	return 500;
+    }
+
+    // Decode and transform a report; returns the output's sink with the transformed
+    // items, DISCARDED (empty) if the report was dropped, or null on error (already
+    // counted & reported)
+    static OutputSink ingest(byte[] ip, long ts, InputStream data)
+    {
+	final long t0 = System.nanoTime();
+	CTIItem[] items;
+	try {
+		items = _input.process(ip, ts, data);
 	}
 	catch(Throwable t){
+		counterErrInput.increment();
 		err(t);
-		System.exit(2);
+		return null;
 	}
+	Metrics.parsed( System.nanoTime() - t0, items == null ? 0 : items.length );
+	return transformReport(items);
     }
 
+    // Same as above, decoding straight out of a buffer
+    static OutputSink ingest(byte[] ip, long ts, ByteBuffer data)
+    {
+	Metrics.received( data.remaining() );
+	final long t0 = System.nanoTime();
+	CTIItem[] items;
+	try {
+		items = _input.process(ip, ts, data);
+	}
+	catch(Throwable t){
+		counterErrInput.increment();
+		err(t);
+		return null;
+	}
+	Metrics.parsed( System.nanoTime() - t0, items == null ? 0 : items.length );
+	return transformReport(items);
+    }
+
+    private static OutputSink transformReport(CTIItem[] items)
+    {
+	// items == null if the report is to be discarded
+	if( items == null ){
+		counterDroppedInput.increment();
+		err( new Throwable("Null items") );
+		return DISCARDED;
+	}
+
+	final OutputSink sink = _output.sink( items.length );
+	final long t0 = System.nanoTime();
+	try {
+		final Object go = _transform.groupObject(items);
+		for( int i=0; i<items.length; i++ ){
+			if( items[i] == null ) continue;
+			transformItem( items[i], go, sink );
+		}
+	}
+	catch(Throwable t){
+		counterErrTransform.increment();
+		err(t);
+		_input.undo( items );
+		// TODO continue to other items?  This item may
+		// replay and keep hitting the bug
+		return null;
+	}
+	Metrics.transformed( System.nanoTime() - t0 );
+	sink.report( items );
+	return sink;
+    }
+
+    // Decode and transform a batch of reports into one set of items for the output.
+    // Reports that are dropped or fail to transform are counted & reported, and
+    // left out; returns null only if the batch couldn't be read at all
+    static OutputSink ingestBatch(byte[] ip, long ts, InputStream data)
+    {
+	final long t0 = System.nanoTime();
+	CTIItem[][] reports;
+	try {
+		reports = _input.processBatch(ip, ts, data);
+	}
+	catch(Throwable t){
+		counterErrInput.increment();
+		err(t);
+		return null;
+	}
+	final long t1 = System.nanoTime();
+
+	int total = 0;
+	for( int r=0; r<reports.length; r++ ){
+		if( reports[r] == null ){
+			counterDroppedInput.increment();
+			err( new Throwable("Null items") );
+			continue;
+		}
+		total += reports[r].length;
+	}
+	Metrics.parsed( t1 - t0, total );
+
+	final OutputSink sink = _output.sink( total );
+	for( int r=0; r<reports.length; r++ ){
+		final CTIItem[] items = reports[r];
+		if( items == null ) continue;
+		final int n = sink.count();
+		try {
+			// The group object is per report
+			final Object go = _transform.groupObject(items);
+			for( int i=0; i<items.length; i++ ){
+				if( items[i] == null ) continue;
+				transformItem( items[i], go, sink );
+			}
+			sink.report( items );
+		}
+		catch(Throwable t){
+			counterErrTransform.increment();
+			err(t);
+			sink.truncate( n );
+			_input.undo( items );
+		}
+	}
+	Metrics.transformed( System.nanoTime() - t1 );
+	return sink;
+    }
+
+    // Every item of every report is transformed through here, straight into the
+    // output's sink
+    private static void transformItem(CTIItem item, Object go, OutputSink sink) throws Exception
+    {
+	final Events.Transform ev = Events.transform();
+	sink.begin();
+	boolean wrote = false;
+	try {
+		wrote = _transform.transform( item, go, sink.buffer() );
+	}
+	finally {
+		final int bytes = sink.end( wrote );
+		if( ev != null ) ev.done( _strTransform, wrote ? bytes : -1 );
+	}
+    }
+
+    // Send transformed items to the output from an event loop; outputs that may
+    // block are run on the worker pool.  done gets the HTTP status to use.  trace
+    // is the request's, if any.
+    static void emitAsync(OutputSink sink, SlowRequests.Trace trace, Handler<Integer> done)
+    {
+	if( sink.count() == 0 || !_output.isBlocking() ){
+		done.handle( emit(sink) );
+		return;
+	}
+
+	vertx.<Integer>executeBlocking( fut -> {
+		SlowRequests.enter( trace );
+		try {
+			fut.complete( emit(sink) );
+		}
+		finally {
+			SlowRequests.exit();
+		}
+	}, false, res -> {
+		if( res.succeeded() ) done.handle( res.result() );
+		else {
+			err( res.cause() );
+			counterErr.increment();
+			undo( sink );
+			done.handle( 500 );
+		}
+	});
+    }
+
+    // The sink's items weren't delivered; a retry of their reports shouldn't be
+    // coalesced away
+    private static void undo(OutputSink sink)
+    {
+	final List<CTIItem[]> reports = sink.reports();
+	for( int i=0; i<reports.size(); i++ ) _input.undo( reports.get(i) );
+    }
+
+    // Send transformed items to the output; returns the HTTP status to use
+    static int emit(OutputSink sink)
+    {
+	if( sink.count() > 0 ){
+		final long t0 = System.nanoTime();
+		try {
+			_output.output( sink );
+		}
+		catch(Throwable t){
+			counterErrOutput.increment();
+			err(t);
+			undo( sink );
+			return 500;
+		}
+		Metrics.delivered( System.nanoTime() - t0 );
+		Metrics.sent( sink );
+	}
+	counterOK.increment();
+	return 200;
+    }
 
 	private void displayKeystorePin() 
 	{
@@ -557,22 +1318,250 @@ public class App
 	}
 
 
+	////////////////////////////////////////////////
+	// HTTP INGEST VERTICLE
+
+	// One HTTP server + router per instance; everything the request path touches
+	// is either created here or thread-confined, so instances share nothing
+	private class IngestVerticle extends AbstractVerticle 
+	{
+		private final HttpServerOptions _options;
+
+		public IngestVerticle(HttpServerOptions options)
+		{
+			_options = options;
+		}
+
+		@Override
+		public void start(Future<Void> startFuture) throws Exception 
+		{
+			final Router router = createRouter(vertx);
+			final HttpServer server = vertx.createHttpServer( _options );
+			if( _throttle.limitsConnections() ){
+				server.connectionHandler( conn -> {
+					if( !throttle( conn.remoteAddress(), conn::closeHandler ) ) conn.close();
+				});
+			}
+			server.requestHandler(router::accept).listen(_listenPort, res -> {
+				if( res.succeeded() ) startFuture.complete();
+				else startFuture.fail( res.cause() );
+			});
+		}
+	}
+
+	////////////////////////////////////////////////
+	// RAW TCP/UDP INGEST VERTICLES
+
+	// Persistent TCP connections carrying varint length-delimited reports, with no
+	// response; a zero length frame is a keepalive.  Reports on a connection are
+	// handled in order, and the connection isn't read while its output is pending
+	// or the output is backed up.
+	private class TcpIngestVerticle extends AbstractVerticle
+	{
+		@Override
+		public void start(Future<Void> startFuture) throws Exception
+		{
+			final NetServerOptions nso = new NetServerOptions().setAcceptBacklog(40000)
+				.setUsePooledBuffers(true);
+			socketOptions( nso );
+			vertx.createNetServer( nso ).connectHandler( socket -> {
+				if( _throttle.limitsConnections() &&
+					!throttle( socket.remoteAddress(), socket::closeHandler ) ){
+					socket.close();
+					return;
+				}
+				new TcpConnection( socket );
+			}).listen(_tcpPort, res -> {
+				if( res.succeeded() ) startFuture.complete();
+				else startFuture.fail( res.cause() );
+			});
+		}
+	}
+
+	private class TcpConnection implements Handler<Buffer>
+	{
+		private final NetSocket _socket;
+		private final byte[] _ip;
+
+		// What's been received but not handled yet; frames are decoded straight
+		// out of it
+		private final ByteBuf _in = Unpooled.buffer();
+
+		// Frame length being read, and how far into its varint we are
+		private int _len = 0;
+		private int _shift = 0;
+		private boolean _header = true;
+		private boolean _waiting = false; // a report is with the output
+		private boolean _closed = false; // by drop()
+
+		public TcpConnection(NetSocket socket)
+		{
+			_socket = socket;
+			_ip = addressIp( socket.remoteAddress() );
+			socket.handler( this );
+			socket.exceptionHandler( t -> socket.close() );
+		}
+
+		@Override
+		public void handle(Buffer buf)
+		{
+			if( _closed ) return;
+			_in.writeBytes( buf.getByteBuf() );
+			frames();
+		}
+
+		// Handle every whole frame received, unless waiting on the output
+		private void frames()
+		{
+			while( !_closed && !_waiting ){
+				if( _header ){
+					if( !_in.isReadable() ) break;
+					final byte b = _in.readByte();
+					_len |= (b & 0x7f) << _shift;
+					_shift += 7;
+					if( (b & 0x80) != 0 ){
+						if( _shift >= 28 ) drop(); // past any length we'd accept
+						continue;
+					}
+					if( _len == 0 ){ next(); continue; }
+					if( _len > _maxSize ){ drop(); break; }
+					_header = false;
+					continue;
+				}
+
+				if( _in.readableBytes() < _len ) break;
+				final OutputSink sink = ingest( _ip, _currentTs, _in.nioBuffer( _in.readerIndex(), _len ) );
+				_in.skipBytes( _len );
+				next();
+				if( sink == null || sink.count() == 0 ) continue;
+
+				_waiting = true;
+				_socket.pause();
+				emitAsync( sink, null, status -> resume() );
+			}
+
+			// Keep what's left at the front
+			if( !_in.isReadable() ) _in.clear();
+			else if( _in.readerIndex() > (_in.capacity() >> 1) ) _in.discardReadBytes();
+		}
+
+		private void next()
+		{
+			_len = 0;
+			_shift = 0;
+			_header = true;
+		}
+
+		// Bad framing; there's no resyncing the stream
+		private void drop()
+		{
+			counterErrInput.increment();
+			_closed = true;
+			_in.clear();
+			_socket.close();
+		}
+
+		private void resume()
+		{
+			if( !_admission.saturated() ){
+				_waiting = false;
+				_socket.resume();
+				frames();
+				return;
+			}
+			vertx.setTimer( HOLD_MS, id -> resume() );
+		}
+	}
+
+	// One report per datagram; dropped while the output is backed up, since UDP
+	// can't be pushed back on
+	private class UdpIngestVerticle extends AbstractVerticle
+	{
+		@Override
+		public void start(Future<Void> startFuture) throws Exception
+		{
+			// An IPv6 address (e.g. ::) needs an IPv6 socket
+			final DatagramSocket ds = vertx.createDatagramSocket( new DatagramSocketOptions()
+				.setIpV6( _udpHost.indexOf(':') >= 0 ) );
+			ds.handler( packet -> {
+				if( _admission.saturated() ){
+					counterDroppedInput.increment();
+					return;
+				}
+				final ByteBuf data = packet.data().getByteBuf();
+				if( data.readableBytes() == 0 ) return;
+				if( data.readableBytes() > _maxSize ){
+					counterErrInput.increment();
+					return;
+				}
+
+				final OutputSink sink = ingest( addressIp( packet.sender() ), _currentTs,
+					data.nioBuffer() );
+				if( sink == null || sink.count() == 0 ) return;
+				emitAsync( sink, null, status -> {} );
+			});
+			ds.listen(_udpPort, _udpHost, res -> {
+				if( res.succeeded() ) startFuture.complete();
+				else startFuture.fail( res.cause() );
+			});
+		}
+	}
+
+	////////////////////////////////////////////////
+	// METRICS VERTICLE
+
+	// GET /metrics, and /slow for the slowest recent requests, on their own port
+	// so they can be kept off the public listener
+	private class MetricsVerticle extends AbstractVerticle
+	{
+		@Override
+		public void start(Future<Void> startFuture) throws Exception
+		{
+			vertx.createHttpServer().requestHandler( request -> {
+				final HttpServerResponse response = request.response();
+				if( request.method() != HttpMethod.GET ){
+					response.setStatusCode(404).end();
+				}
+				else if( ROUTE_METRICS.equals(request.path()) ){
+					response.putHeader("Content-Type", "text/plain; version=0.0.4");
+					response.end( Metrics.text( _input, _output, _admission ) );
+				}
+				else if( ROUTE_SLOW.equals(request.path()) ){
+					response.putHeader("Content-Type", "text/plain");
+					response.end( _slow.text() );
+				}
+				else response.setStatusCode(404).end();
+			}).listen(_metricsPort, res -> {
+				if( res.succeeded() ) startFuture.complete();
+				else startFuture.fail( res.cause() );
+			});
+		}
+	}
+
 	////////////////////////////////////////////////
 	// ERROR VERTICLE
 
 	private static class ErrorWorkerVerticle extends AbstractVerticle 
 	{
-		public ErrorWorkerVerticle() throws Exception
+		private final long _summaryMs;
+
+		public ErrorWorkerVerticle(int summarySecs) throws Exception
 		{
+			_summaryMs = summarySecs * 1000L;
 		}
 
-		public static void immediate(String payload)
+		// Startup errors come before the verticle is up; they all share one
+		// client, and are fatal
+		private static HttpClient _immediateClient;
+
+		public static synchronized void immediate(String payload)
 		{
-			Vertx vertx = Vertx.vertx();
-			final HttpClient httpClient = vertx.createHttpClient(
-				new HttpClientOptions().setSsl(API_SSL).setTrustAll(true));
-			send( httpClient, payload, true);
-			//try { Thread.sleep(4000); } catch(Exception e){}
+			if( _immediateClient == null ){
+				final Vertx v = ( App.vertx != null ) ? App.vertx : Vertx.vertx();
+				_immediateClient = v.createHttpClient(
+					new HttpClientOptions().setSsl(API_SSL).setTrustAll(true));
+			}
+			send( _immediateClient, payload, true);
 		}
 
 		private static void send(HttpClient client, String payload, boolean fatal)
@@ -605,6 +1594,11 @@ public class App
 					send( httpClient, payload, false );
 				}
 			});
+
+			vertx.setPeriodic( _summaryMs, id -> {
+				final String summary = _errors.summary();
+				if( summary != null ) send( httpClient, summary, false );
+			});
 		}
 	}
 
@@ -633,11 +1627,11 @@ public class App
 
 		private void send(byte[] stats_b)
 		{
-			if( stats_b == null || stats_b.length < 56 ) return;
+			if( stats_b == null || stats_b.length < 64 ) return;
 
 			try {
 				Buffer b = Buffer.buffer(stats_b);
-				long[] stats = new long[7];
+				long[] stats = new long[8];
 				stats[0] = b.getLong(0);
 				stats[1] = b.getLong(8);
 				stats[2] = b.getLong(16);
@@ -645,6 +1639,7 @@ public class App
 				stats[4] = b.getLong(32);
 				stats[5] = b.getLong(40);
 				stats[6] = b.getLong(48);
+				stats[7] = b.getLong(56);
 
 				StringBuilder sb = new StringBuilder();
 				sb.append(IVER).append("\t");
@@ -678,7 +1673,10 @@ public class App
 					" ErrInput=" + String.valueOf(stats[1]) + " ErrTransform=" +
 					String.valueOf(stats[2]) + " ErrOutput=" + String.valueOf(stats[3]) +
 					" ErrOther=" + String.valueOf(stats[4]) + " Dropped=" +
-					String.valueOf(stats[5]) + " DroppedData=" + String.valueOf(stats[6]));
+					String.valueOf(stats[5]) + " DroppedData=" + String.valueOf(stats[6]) +
+					" RateLimited=" + String.valueOf(stats[7]));
+				final String tenants = _input.tenantStats();
+				if( tenants != null ) System.out.print(tenants);
 			}
 			catch(Throwable e){
 				App.err(e);
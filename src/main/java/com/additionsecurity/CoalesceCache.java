@@ -0,0 +1,152 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+// Gateway-wide memory of recent sightings, so a device repeating the same detection
+// across requests is only passed on once per window.  Entries are keyed by a hash
+// of the device plus the (testId, testSubId) pair, and live in fixed-size striped
+// tables: a key is only ever looked for in a short run of slots, and when that run
+// is full the entry written longest ago is dropped.  Memory is set up front and
+// never grows.
+class CoalesceCache {
+
+	private static final int STRIPES = 64;
+	private static final int PROBE = 8;
+
+	private final long _window;
+	private final int _mask;
+	private final Stripe[] _stripes = new Stripe[STRIPES];
+
+	private static class Stripe {
+		final long[] device, test, exp;
+		final int[] touched; // gateway time of the last hit or write; 0 is empty
+
+		Stripe(int size){
+			device = new long[size];
+			test = new long[size];
+			exp = new long[size];
+			touched = new int[size];
+		}
+	}
+
+	// window is in seconds; maxEntries is rounded up to fill the stripes evenly
+	public CoalesceCache(long window, int maxEntries)
+	{
+		_window = window;
+		int size = PROBE;
+		while( (size * STRIPES) < maxEntries ) size <<= 1;
+		_mask = size - 1;
+		for( int i=0; i<STRIPES; i++ ) _stripes[i] = new Stripe(size);
+	}
+
+	public long window()
+	{
+		return _window;
+	}
+
+	public int capacity()
+	{
+		return (_mask + 1) * STRIPES;
+	}
+
+	// Key for the device a report came from: its systemId, or failing that the
+	// address it was received from
+	public static long device(byte[] sys, byte[] ip)
+	{
+		final byte[] b = (sys != null && sys.length > 0) ? sys : ip;
+		long h = 0xcbf29ce484222325L; // FNV-1a
+		if( b != null ){
+			for( int i=0; i<b.length; i++ ){
+				h ^= (b[i] & 0xff);
+				h *= 0x100000001b3L;
+			}
+		}
+		return h;
+	}
+
+	public static long test(int testId, int testSubId)
+	{
+		return ((long)testId << 32) | (testSubId & 0xffffffffL);
+	}
+
+	// True if the device already had this test within the window, as of ts (the
+	// sighting's own time); otherwise it is remembered and the window starts at ts.
+	// now is the gateway time in seconds, used to age out entries.
+	public boolean seen(long device, long test, long ts, long now)
+	{
+		final long h = hash( device, test );
+		final Stripe s = _stripes[ (int)(h >>> 58) ];
+		final int start = (int)h & _mask;
+		final int now_ = (int)now + 1; // so 0 stays empty
+
+		synchronized( s ){
+			int victim = -1;
+			int oldest = Integer.MAX_VALUE;
+			for( int p=0; p<PROBE; p++ ){
+				final int i = (start + p) & _mask;
+				final int t = s.touched[i];
+				if( t != 0 && s.device[i] == device && s.test[i] == test ){
+					s.touched[i] = now_;
+					if( ts < s.exp[i] ) return true;
+					s.exp[i] = ts + _window;
+					return false;
+				}
+
+				// Empty or aged out is as good as it gets; otherwise the least
+				// recently used
+				final int age = ( t == 0 || (t + _window) <= now_ ) ? 0 : t;
+				if( age < oldest ){
+					oldest = age;
+					victim = i;
+				}
+			}
+
+			s.device[victim] = device;
+			s.test[victim] = test;
+			s.exp[victim] = ts + _window;
+			s.touched[victim] = now_;
+			return false;
+		}
+	}
+
+	// Takes back the window seen() started at ts, e.g. for a sighting that
+	// wasn't delivered after all, so it isn't coalesced when it's sent again
+	public void forget(long device, long test, long ts)
+	{
+		final long h = hash( device, test );
+		final Stripe s = _stripes[ (int)(h >>> 58) ];
+		final int start = (int)h & _mask;
+
+		synchronized( s ){
+			for( int p=0; p<PROBE; p++ ){
+				final int i = (start + p) & _mask;
+				if( s.touched[i] != 0 && s.device[i] == device && s.test[i] == test ){
+					if( s.exp[i] == ts + _window ) s.touched[i] = 0;
+					return;
+				}
+			}
+		}
+	}
+
+	private static long hash(long device, long test)
+	{
+		long h = device ^ (test * 0x9e3779b97f4a7c15L);
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		return h;
+	}
+}
@@ -0,0 +1,116 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+// The data keys of a transform, pre-encoded with what goes around them: for
+// each data type its key (e.g. ", string=") and the keys for the repeats
+// within an item (", string_2=", ", string_3=", ...), since most formats
+// don't allow a key twice.
+final class DataKeys {
+
+	private static final Charset _UTF8 = Charset.forName("UTF-8");
+
+	private static final int REPEATS = 4; // pre-encoded up to the 4th of a type
+
+	private final String _before, _sep, _after;
+	private final byte[][] _keys; // [typ * REPEATS + (n - 1)]
+
+	// The keys become before + key + after, and the repeats
+	// before + key + sep + n + after
+	DataKeys(String before, String sep, String after)
+	{
+		_before = before;
+		_sep = sep;
+		_after = after;
+		_keys = new byte[Decode.dataTypeCount() * REPEATS][];
+		for( int typ=0; typ<Decode.dataTypeCount(); typ++ )
+			for( int n=1; n<=REPEATS; n++ )
+				_keys[typ * REPEATS + n - 1] = encode( typ, n );
+	}
+
+	// The key of the n'th (from 1) of typ in an item
+	byte[] get(int typ, int n)
+	{
+		typ = type( typ );
+		if( n <= REPEATS ) return _keys[typ * REPEATS + n - 1];
+		return encode( typ, n );
+	}
+
+	// Types past the known ones are all UnknownData
+	static int type(int typ)
+	{
+		return ( typ < 0 || typ >= Decode.dataTypeCount() ) ? 0 : typ;
+	}
+
+	private byte[] encode(int typ, int n)
+	{
+		final String key = new String( Decode.dataTypeKeyBytes(typ), _UTF8 );
+		if( n == 1 ) return (_before + key + _after).getBytes(_UTF8);
+		return (_before + key + _sep + n + _after).getBytes(_UTF8);
+	}
+
+	// Which data types an item had so far: a bit per type, with counts only
+	// once a type repeats (which is rare).  One per thread, see seen().
+	static final class Seen {
+		private long _mask;
+		private int[] _counts;
+		private boolean _counted;
+
+		void clear()
+		{
+			_mask = 0;
+			if( _counted ){
+				Arrays.fill( _counts, 0 );
+				_counted = false;
+			}
+		}
+
+		// Counts typ in; returns how many of it there are now
+		int next(int typ)
+		{
+			typ = type( typ );
+			if( typ < 64 ){
+				final long bit = 1L << typ;
+				if( (_mask & bit) == 0 ){
+					_mask |= bit;
+					return 1;
+				}
+			}
+			if( _counts == null ) _counts = new int[ Decode.dataTypeCount() ];
+			_counted = true;
+			if( typ < 64 && _counts[typ] == 0 ) _counts[typ] = 1;
+			return ++_counts[typ];
+		}
+	}
+
+	private static final ThreadLocal<Seen> threadSeen =
+		new ThreadLocal<Seen>() {
+			@Override protected Seen initialValue() {
+				return new Seen();
+			}
+		};
+
+	// The thread's Seen, cleared
+	static Seen seen()
+	{
+		final Seen s = threadSeen.get();
+		s.clear();
+		return s;
+	}
+}
@@ -24,6 +24,7 @@ import java.lang.StringBuilder;
 import java.util.HashMap;
 import java.util.Base64;
 import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
 
 import com.additionsecurity.Utils;
 
@@ -95,6 +96,77 @@ public class Decode {
 		return sb.toString();
 	}
 
+	// An IPv4 (4 byte) or IPv6 (16 byte, RFC 5952 form) address, as text; the
+	// transforms write it straight into their output with putIp()/appendIp()
+	public static String ipToString( byte[] data )
+	{
+		return appendIp( new StringBuilder(), data ).toString();
+	}
+
+	public static StringBuilder appendIp( StringBuilder sb, byte[] data )
+	{
+		final byte[] b = IPBUF.get();
+		final int n = formatIp( data, b );
+		for( int i=0; i<n; i++ ) sb.append( (char)b[i] );
+		return sb;
+	}
+
+	public static void putIp( ByteBuffer bb, byte[] data )
+	{
+		final byte[] b = IPBUF.get();
+		bb.put( b, 0, formatIp( data, b ) );
+	}
+
+	private static final ThreadLocal<byte[]> IPBUF = new ThreadLocal<byte[]>(){
+		@Override protected byte[] initialValue(){ return new byte[40]; }
+	};
+	private static final byte[] HEX = "0123456789abcdef".getBytes(_UTF8);
+
+	private static int formatIp( byte[] data, byte[] b )
+	{
+		int n = 0;
+		if( data == null || data.length != 16 ){
+			if( data == null || data.length != 4 ) data = XForwardedFor.NULL;
+			for( int i=0; i<4; i++ ){
+				if( i > 0 ) b[n++] = '.';
+				final int v = data[i] & 0xff;
+				if( v >= 100 ) b[n++] = (byte)('0' + (v / 100));
+				if( v >= 10 ) b[n++] = (byte)('0' + ((v / 10) % 10));
+				b[n++] = (byte)('0' + (v % 10));
+			}
+			return n;
+		}
+
+		// The longest run of two or more zero groups (the first, if tied) is ::
+		int best = -1, bestLen = 1;
+		for( int i=0; i<8; ){
+			if( data[2*i] != 0 || data[2*i + 1] != 0 ){ i++; continue; }
+			int j = i;
+			while( j < 8 && data[2*j] == 0 && data[2*j + 1] == 0 ) j++;
+			if( (j - i) > bestLen ){ best = i; bestLen = j - i; }
+			i = j;
+		}
+
+		for( int i=0; i<8; i++ ){
+			if( i == best ){
+				b[n++] = ':';
+				b[n++] = ':';
+				i += bestLen - 1;
+				continue;
+			}
+			if( i > 0 && i != best + bestLen ) b[n++] = ':';
+			final int v = ((data[2*i] & 0xff) << 8) | (data[2*i + 1] & 0xff);
+			boolean lead = true;
+			for( int sh=12; sh>=0; sh-=4 ){
+				final int d = (v >>> sh) & 0xf;
+				if( lead && d == 0 && sh > 0 ) continue;
+				lead = false;
+				b[n++] = HEX[d];
+			}
+		}
+		return n;
+	}
+
 	private static String MACZERO = "00:00:00:00:00:00";
 	public static String macToString( byte[] data )
 	{
@@ -113,6 +185,11 @@ public class Decode {
 	public static byte[] uint32ToByteString(byte[] data)
 	{
 		if( data.length == 0 ) return BYTEZERO;
+		return String.valueOf( uint32(data) ).getBytes(_UTF8);
+	}
+
+	public static long uint32(byte[] data)
+	{
 		// Little endian
 		long v = 0;
 		int i;
@@ -120,23 +197,92 @@ public class Decode {
 			v <<= 8;
 			v |= (data[i] & 0xff);
 		}
-		return String.valueOf(v).getBytes(_UTF8);
+		return v;
+	}
+
+	// Numbers, particularly anything in the range of 6 - 19
+	public static boolean isNumberData(int typ)
+	{
+		return typ == 9 || typ == 19 || typ == 25 || typ == 26 || typ == 22 || typ == 28;
+	}
+
+	// Strings; NOTE: the numbers and the X509 cert are removed from the range
+	// of 6 - 18, so we just catch that whole range
+	public static boolean isStringData(int typ)
+	{
+		if( isNumberData(typ) || typ == 11 ) return false;
+		return (typ >= 6 && typ <= 18) || typ == 23 || (typ >= 29 && typ <= 33);
+	}
+
+	// Same as dataToByteString(), written into bb; numbers don't go through a String
+	public static void putData( ByteBuffer bb, int typ, byte[] data, ICTITransform t )
+	{
+		if( isNumberData(typ) ) putLong( bb, uint32(data) );
+		else bb.put( dataToByteString(typ, data, t) );
+	}
+
+	// The decimal digits of v, same as String.valueOf(v)
+	public static void putLong( ByteBuffer bb, long v )
+	{
+		if( v < 0 ){
+			bb.put( String.valueOf(v).getBytes(_UTF8) );
+			return;
+		}
+		int n = 1;
+		for( long x = v; x >= 10; x /= 10 ) n++;
+		if( bb.remaining() < n ) throw new java.nio.BufferOverflowException();
+		final int p = bb.position();
+		for( int i = p + n - 1; i >= p; i-- ){
+			bb.put( i, (byte)('0' + (v % 10)) );
+			v /= 10;
+		}
+		bb.position( p + n );
+	}
+
+	// The bytes of new String(data, UTF-8); that's data itself unless it isn't
+	// well-formed UTF-8, in which case the bad sequences become U+FFFD
+	public static void putUtf8( ByteBuffer bb, byte[] data )
+	{
+		if( isUtf8(data) ) bb.put( data );
+		else bb.put( new String(data, _UTF8).getBytes(_UTF8) );
+	}
+
+	static boolean isUtf8( byte[] data )
+	{
+		int i = 0;
+		while( i < data.length ){
+			final int c = data[i] & 0xff;
+			if( c < 0x80 ){ i++; continue; }
+			int n;
+			int min;
+			if( c >= 0xc2 && c <= 0xdf ){ n = 1; min = 0x80; }
+			else if( c >= 0xe0 && c <= 0xef ){ n = 2; min = 0x800; }
+			else if( c >= 0xf0 && c <= 0xf4 ){ n = 3; min = 0x10000; }
+			else return false;
+			if( i + n >= data.length ) return false;
+			int cp = c & (0x3f >> n);
+			for( int k=1; k<=n; k++ ){
+				final int cc = data[i+k] & 0xff;
+				if( (cc & 0xc0) != 0x80 ) return false;
+				cp = (cp << 6) | (cc & 0x3f);
+			}
+			if( cp < min || cp > 0x10ffff || (cp >= 0xd800 && cp <= 0xdfff) ) return false;
+			i += n + 1;
+		}
+		return true;
 	}
 
 	public static byte[] dataToByteString(int typ, byte[] data, ICTITransform t)
 	{
 		try {
 
-			// Numbers, particularly anything in the range of 6 - 19
-			if( (typ == 9 || typ == 19 || typ == 25 || typ == 26 || typ == 22 || typ == 28) )
+			if( isNumberData(typ) )
 				return uint32ToByteString(data);
 
 			else if( typ == 11 ) // X509 cert
 				return _b64enc.encode( data );
 
-			// Strings; NOTE: we already removed non-strings from the range
-			// of 6 - 18, so we just catch that whole range
-			else if( (typ >= 6 && typ <= 18) || typ == 23 || (typ >= 29 && typ <= 33) )
+			else if( isStringData(typ) )
 				return t.dataToByteString(data);
 
 			else if( typ == 20 )
@@ -145,8 +291,8 @@ public class Decode {
 			else if( typ == 24 || typ == 34 )
 				return macToString( data ).getBytes(_UTF8);
 
-			//else if( typ == 21 )
-			//	return "TODO-ipv6-addr".getBytes();
+			else if( typ == 21 && data.length == 16 )
+				return ipToString( data ).getBytes(_UTF8);
 
 		} catch(Exception e){}
 
@@ -157,14 +303,14 @@ public class Decode {
 	public static String dataToString(int typ, byte[] data, ICTITransform t)
 	{
 		try {
-			if( (typ == 9 || typ == 19 || typ == 25 || typ == 26 || typ == 22 || typ == 28) )
+			if( isNumberData(typ) )
 				return new String(uint32ToByteString(data), _UTF8);
 
 			else if( typ == 11 ) // X509 cert
 				return _b64enc.encodeToString( data );
 
 			// A few items are strings
-			else if( (typ >= 6 && typ <= 18) || typ == 23 || (typ >= 29 && typ <= 33) )
+			else if( isStringData(typ) )
 				return t.dataToString(data);
 
 			else if( typ == 20 )
@@ -173,8 +319,8 @@ public class Decode {
 			else if( typ == 24 || typ == 34 )
 				return macToString( data );
 
-			//else if( typ == 21 )
-			//	return "TODO-ipv6-addr";
+			else if( typ == 21 && data.length == 16 )
+				return ipToString( data );
 
 		} catch(Exception e){}
 
@@ -234,6 +380,26 @@ public class Decode {
 		return _dataTypesBytes[typ];
 	}
 
+	// The data type with its first character lowercased, as used for keys
+	private static byte[][] _dataTypesKeyBytes = new byte[_dataTypes.length][];
+	static {
+		for( int i=0; i<_dataTypes.length; i++ ){
+			_dataTypesKeyBytes[i] = _dataTypes[i].getBytes(_UTF8);
+			_dataTypesKeyBytes[i][0] += 32;
+		}
+	}
+
+	public static byte[] dataTypeKeyBytes(int typ)
+	{
+		if( typ >= _dataTypesKeyBytes.length ) typ = 0;
+		return _dataTypesKeyBytes[typ];
+	}
+
+	public static int dataTypeCount()
+	{
+		return _dataTypes.length;
+	}
+
 	public static String dataType(int typ)
 	{
 		if( typ >= _dataTypes.length ) typ = 0;
@@ -0,0 +1,150 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+// Per-device token buckets, so no one device (by CoalesceCache.device()) gets more
+// than rate reports a second through, after an initial burst.  Buckets live in
+// fixed-size striped tables laid out like CoalesceCache's: a device is only looked
+// for in a short run of slots, a bucket left idle long enough is as good as empty,
+// and when a run is full the least recently used bucket is dropped (its device
+// simply starts over with a full bucket).
+class DeviceLimiter {
+
+	private static final int STRIPES = 64;
+	private static final int PROBE = 8;
+	private static final long ONE = 1000000; // tokens are kept in millionths
+
+	private final double _rate;
+	private final long _burst;
+	private final long _perMs;
+	private final long _idleMs;
+	private final int _mask;
+	private final Stripe[] _stripes = new Stripe[STRIPES];
+
+	private static class Stripe {
+		final long[] device, tokens, last; // last is when tokens was figured; 0 is empty
+
+		Stripe(int size){
+			device = new long[size];
+			tokens = new long[size];
+			last = new long[size];
+		}
+	}
+
+	// rate is in reports per second; buckets idle for idle seconds are dropped
+	// (never before they'd have filled up again anyway)
+	public DeviceLimiter(double rate, int burst, int idle, int maxEntries)
+	{
+		_rate = rate;
+		_burst = burst * ONE;
+		_perMs = Math.max( 1, (long)(rate * ONE / 1000) );
+		_idleMs = Math.max( idle * 1000L, (_burst / _perMs) + 1 );
+		int size = PROBE;
+		while( (size * STRIPES) < maxEntries ) size <<= 1;
+		_mask = size - 1;
+		for( int i=0; i<STRIPES; i++ ) _stripes[i] = new Stripe(size);
+	}
+
+	public String description()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("rate=").append(_rate);
+		sb.append("; burst=").append(_burst / ONE);
+		sb.append("; idle=").append(_idleMs / 1000);
+		sb.append("; max_entries=").append((_mask + 1) * STRIPES);
+		return sb.toString();
+	}
+
+	private static final long START = System.nanoTime();
+
+	// Milliseconds since the class loaded, from 1 (0 marks an empty slot)
+	public static long now()
+	{
+		return (System.nanoTime() - START) / 1000000 + 1;
+	}
+
+	// True if the device may send another report as of now (see now()),
+	// taking a token if so
+	public boolean allow(long device, long now)
+	{
+		final long h = hash( device );
+		final Stripe s = _stripes[ (int)(h >>> 58) ];
+		final int start = (int)h & _mask;
+
+		synchronized( s ){
+			int victim = -1;
+			long oldest = Long.MAX_VALUE;
+			for( int p=0; p<PROBE; p++ ){
+				final int i = (start + p) & _mask;
+				final long l = s.last[i];
+				if( l != 0 && s.device[i] == device ){
+					long t = s.tokens[i];
+					if( now > l ){
+						t = ( (now - l) >= _idleMs ) ? _burst
+							: Math.min( _burst, t + ((now - l) * _perMs) );
+						s.last[i] = now;
+					}
+					if( t < ONE ){
+						s.tokens[i] = t;
+						return false;
+					}
+					s.tokens[i] = t - ONE;
+					return true;
+				}
+
+				final long age = ( l == 0 || (now - l) >= _idleMs ) ? 0 : l;
+				if( age < oldest ){
+					oldest = age;
+					victim = i;
+				}
+			}
+
+			// New (or forgotten) device, starting with a full bucket
+			s.device[victim] = device;
+			s.tokens[victim] = _burst - ONE;
+			s.last[victim] = now;
+			return true;
+		}
+	}
+
+	// Gives back the token allow() took, e.g. for a report that was then
+	// discarded for other reasons
+	public void refund(long device)
+	{
+		final long h = hash( device );
+		final Stripe s = _stripes[ (int)(h >>> 58) ];
+		final int start = (int)h & _mask;
+
+		synchronized( s ){
+			for( int p=0; p<PROBE; p++ ){
+				final int i = (start + p) & _mask;
+				if( s.last[i] != 0 && s.device[i] == device ){
+					s.tokens[i] = Math.min( _burst, s.tokens[i] + ONE );
+					return;
+				}
+			}
+		}
+	}
+
+	private static long hash(long device)
+	{
+		long h = device;
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		return h;
+	}
+}
@@ -0,0 +1,121 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Decides which errors get reported.  Each throwable is fingerprinted by its class,
+// its top stack frames and its cause's class; only the first of a fingerprint is
+// reported in full (the only time its stack trace is turned into text), and the
+// rest are just counted, for a periodic summary.  At most MAX_FINGERPRINTS are
+// remembered; errors with new fingerprints past that are only counted as a whole,
+// until the summary makes room by forgetting the ones that didn't repeat (or,
+// failing that, all of them), which are then reported in full if they come back.
+class ErrorReporter {
+
+	private static final int MAX_FINGERPRINTS = 4096;
+	private static final int TOP_FRAMES = 4;
+
+	private static class Entry {
+		final String what; // class and top frame, for the summary
+		final LongAdder count = new LongAdder();
+
+		Entry(String what){ this.what = what; }
+	}
+
+	private final ConcurrentHashMap<Long,Entry> _seen = new ConcurrentHashMap<Long,Entry>();
+	private final LongAdder _overflow = new LongAdder();
+
+	// The full report for t if it's the first of its kind, otherwise null
+	public String first(Throwable t)
+	{
+		final long fp = fingerprint(t);
+		final Entry e = _seen.get(fp);
+		if( e != null ){
+			e.count.increment();
+			return null;
+		}
+
+		if( _seen.size() >= MAX_FINGERPRINTS ){
+			_overflow.increment();
+			return null;
+		}
+		final StackTraceElement[] st = t.getStackTrace();
+		final String what = t.getClass().getName() +
+			( st.length > 0 ? " at " + st[0] : "" );
+		if( _seen.putIfAbsent(fp, new Entry(what)) != null ){
+			_seen.get(fp).count.increment();
+			return null;
+		}
+
+		final StringWriter sw = new StringWriter();
+		t.printStackTrace( new PrintWriter(sw) );
+		return sw.toString();
+	}
+
+	// Repeats since the last summary, one line each ("<count> x <fp> <what>"), or
+	// null if there were none
+	public String summary()
+	{
+		final boolean full = _seen.size() >= MAX_FINGERPRINTS;
+		StringBuilder sb = null;
+		final Iterator<Map.Entry<Long,Entry>> it = _seen.entrySet().iterator();
+		while( it.hasNext() ){
+			final Map.Entry<Long,Entry> me = it.next();
+			final long n = me.getValue().count.sumThenReset();
+			if( n == 0 ){
+				if( full ) it.remove();
+				continue;
+			}
+			if( sb == null ) sb = new StringBuilder("Repeated errors:\n");
+			sb.append(n).append(" x ").append(Long.toHexString(me.getKey()));
+			sb.append(" ").append(me.getValue().what).append("\n");
+		}
+		final long over = _overflow.sumThenReset();
+		if( over > 0 ){
+			if( sb == null ) sb = new StringBuilder("Repeated errors:\n");
+			sb.append(over).append(" x (not tracked)\n");
+		}
+		if( _seen.size() >= MAX_FINGERPRINTS ) _seen.clear();
+		return ( sb == null ) ? null : sb.toString();
+	}
+
+	static long fingerprint(Throwable t)
+	{
+		long h = 0xcbf29ce484222325L;
+		h = mix( h, t.getClass().getName().hashCode() );
+		final StackTraceElement[] st = t.getStackTrace();
+		for( int i=0; i<st.length && i<TOP_FRAMES; i++ ){
+			h = mix( h, st[i].getClassName().hashCode() );
+			h = mix( h, st[i].getMethodName().hashCode() );
+			h = mix( h, st[i].getLineNumber() );
+		}
+		if( t.getCause() != null ) h = mix( h, t.getCause().getClass().getName().hashCode() );
+		return h;
+	}
+
+	private static long mix(long h, int v)
+	{
+		h ^= v;
+		h *= 0x100000001b3L;
+		return h ^ (h >>> 29);
+	}
+}
@@ -0,0 +1,234 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Flight Recorder events for the ingest path and the outputs.  They're all off
+// unless a recording turns them on (see data/asgw.jfc), e.g.:
+//    jcmd <pid> JFR.start settings=/path/to/asgw.jfc
+//
+// The factory methods return null, without allocating anything, unless there is
+// a JVM with Flight Recorder (JDK 8u262+) that has started recording and the event
+// is enabled; callers only fill in and commit events they got.  Nothing outside
+// refers to a jdk.jfr type, so a JVM without it never loads one.
+final class Events {
+
+	static final boolean ON = available();
+
+	private static boolean available()
+	{
+		try {
+			Class.forName("jdk.jfr.FlightRecorder");
+			return true;
+		} catch(Throwable t){
+			return false;
+		}
+	}
+
+	private static boolean recording()
+	{
+		return ON && FlightRecorder.isInitialized();
+	}
+
+	static Request request(String path)
+	{
+		if( !recording() ) return null;
+		final Request e = new Request();
+		if( !e.isEnabled() ) return null;
+		e.path = path;
+		e.begin();
+		return e;
+	}
+
+	static Decode decode()
+	{
+		if( !recording() ) return null;
+		final Decode e = new Decode();
+		if( !e.isEnabled() ) return null;
+		e.begin();
+		return e;
+	}
+
+	static Transform transform()
+	{
+		if( !recording() ) return null;
+		final Transform e = new Transform();
+		if( !e.isEnabled() ) return null;
+		e.begin();
+		return e;
+	}
+
+	static Flush flush(String output)
+	{
+		if( !recording() ) return null;
+		final Flush e = new Flush();
+		if( !e.isEnabled() ) return null;
+		e.output = output;
+		e.begin();
+		return e;
+	}
+
+	static Reconnect reconnect(String host, int port)
+	{
+		if( !recording() ) return null;
+		final Reconnect e = new Reconnect();
+		if( !e.isEnabled() ) return null;
+		e.host = host;
+		e.port = port;
+		e.begin();
+		return e;
+	}
+
+	@Name("com.additionsecurity.Request")
+	@Label("Request")
+	@Category({"AS Gateway", "Ingest"})
+	@Enabled(false)
+	@StackTrace(false)
+	static final class Request extends Event {
+		@Label("Path") String path;
+		@Label("Body Size") @DataAmount long bytes;
+		@Label("Items") int items;
+		@Label("Status") int status;
+
+		void done(long bytes, int items, int status)
+		{
+			end();
+			if( !shouldCommit() ) return;
+			this.bytes = bytes;
+			this.items = items;
+			this.status = status;
+			commit();
+		}
+	}
+
+	@Name("com.additionsecurity.Decode")
+	@Label("Decode")
+	@Category({"AS Gateway", "Ingest"})
+	@Enabled(false)
+	@StackTrace(false)
+	static final class Decode extends Event {
+		@Label("Size") @DataAmount long bytes;   // -1 when streamed
+		@Label("Reports") int reports;
+		@Label("Items") int items;
+		@Label("Dropped Reports") int dropped;
+		@Label("Org") String org;
+
+		// A single report; items is null if it was dropped
+		void done(long bytes, CTIItem[] items)
+		{
+			end();
+			if( !shouldCommit() ) return;
+			this.bytes = bytes;
+			this.reports = 1;
+			if( items == null ) this.dropped = 1;
+			else {
+				this.items = items.length;
+				if( items.length > 0 && items[0]._org != null ) this.org = Utils.hex(items[0]._org);
+			}
+			commit();
+		}
+
+		void done(long bytes, int reports, int items, int dropped)
+		{
+			end();
+			if( !shouldCommit() ) return;
+			this.bytes = bytes;
+			this.reports = reports;
+			this.items = items;
+			this.dropped = dropped;
+			commit();
+		}
+
+		void done(long bytes, CTIItem[][] reports)
+		{
+			end();
+			if( !shouldCommit() ) return;
+			this.bytes = bytes;
+			this.reports = reports.length;
+			for( CTIItem[] r : reports ){
+				if( r == null ) this.dropped++;
+				else this.items += r.length;
+			}
+			commit();
+		}
+	}
+
+	@Name("com.additionsecurity.Transform")
+	@Label("Transform Item")
+	@Category({"AS Gateway", "Ingest"})
+	@Enabled(false)
+	@StackTrace(false)
+	static final class Transform extends Event {
+		@Label("Transform") String transform;
+		@Label("Size") @DataAmount long bytes;
+
+		// bytes is -1 if the item had no result
+		void done(String transform, int bytes)
+		{
+			end();
+			if( !shouldCommit() ) return;
+			this.transform = transform;
+			this.bytes = bytes;
+			commit();
+		}
+	}
+
+	@Name("com.additionsecurity.Flush")
+	@Label("Output Flush")
+	@Category({"AS Gateway", "Output"})
+	@Enabled(false)
+	@StackTrace(false)
+	static final class Flush extends Event {
+		@Label("Output") String output;
+		@Label("Size") @DataAmount long bytes;
+		@Label("Status") int status;
+
+		void done(long bytes, int status)
+		{
+			end();
+			if( !shouldCommit() ) return;
+			this.bytes = bytes;
+			this.status = status;
+			commit();
+		}
+	}
+
+	@Name("com.additionsecurity.Reconnect")
+	@Label("Output Reconnect")
+	@Category({"AS Gateway", "Output"})
+	@Enabled(false)
+	static final class Reconnect extends Event {
+		@Label("Host") String host;
+		@Label("Port") int port;
+		@Label("Error") String error;
+
+		void done(Throwable error)
+		{
+			end();
+			if( !shouldCommit() ) return;
+			if( error != null ) this.error = error.toString();
+			commit();
+		}
+	}
+}
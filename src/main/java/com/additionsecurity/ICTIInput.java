@@ -18,16 +18,50 @@ package com.additionsecurity;
 
 import java.util.Properties;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public interface ICTIInput {
 
 	//public CTIItem[] process(byte[] ip, long ts, byte[] data) throws ICTIInputException;
 	public CTIItem[] process(byte[] ip, long ts, InputStream data) throws ICTIInputException;
 
+	// Same as above, decoding straight out of the given buffer
+	public CTIItem[] process(byte[] ip, long ts, ByteBuffer data) throws ICTIInputException;
+
+	// Process a stream of length-delimited messages; each entry holds the result of
+	// one message, as process() would return it (null if it is to be discarded)
+	public CTIItem[][] processBatch(byte[] ip, long ts, InputStream data) throws ICTIInputException;
+
+	// Process a message, handing its items over in chunks of up to chunk items as
+	// they are decoded, so memory doesn't grow with the message; returns false if
+	// the message is to be discarded, which is known before any chunk is handed over
+	public boolean processChunked(byte[] ip, long ts, ByteBuffer data, int chunk,
+		ChunkHandler handler) throws Exception;
+
+	public static interface ChunkHandler {
+		public void handle(CTIItem[] items, int count) throws Exception;
+	}
+
+	// Takes back what processing left behind for items that weren't delivered
+	// after all (e.g. their sightings' coalescing), so they get through when the
+	// report is sent again; null entries are skipped
+	public default void undo(CTIItem[] items)
+	{
+	}
+
 	public String description();
 
 	public byte[] learnedOrgId();
 
+	// Per tenant counters since the last call, for the statistics log; null if
+	// the input doesn't track tenants
+	public String tenantStats();
+
+	// Per tenant counters for /metrics, if the input tracks tenants
+	public default void tenantMetrics(StringBuilder sb)
+	{
+	}
+
 	public static class ICTIInputException extends Exception {
 		public ICTIInputException() { super(); }
 		public ICTIInputException(String message) { super(message); }
@@ -20,9 +20,38 @@ public interface ICTIOutput {
 
 	public void output(byte[][] datas) throws ICTIOutput.ICTIOutputException;
 
+	// Items written straight into the output's own buffer: the caller gets a
+	// sink for about this many items, has the transform write them into it
+	// (see OutputSink), and hands it to output().  By default the items are
+	// taken back out of the sink and go to output(byte[][]).
+	public default OutputSink sink(int items)
+	{
+		return new OutputSink(items);
+	}
+
+	public default void output(OutputSink sink) throws ICTIOutput.ICTIOutputException
+	{
+		output( sink.items() );
+	}
+
 	public void nowTick(long ts);
 	public String description();
 
+	// True if output() may block the calling thread (file/socket I/O), meaning
+	// it must not be called from an event loop; assumed unless it says otherwise
+	public default boolean isBlocking()
+	{
+		return true;
+	}
+
+	// Number of items accepted by output() but not yet delivered (queued for a
+	// worker, or waiting on the destination); used for admission control.  By
+	// default none are tracked.
+	public default int pending()
+	{
+		return 0;
+	}
+
 	public static class ICTIOutputException extends Exception {
 		public ICTIOutputException() { super(); }
 		public ICTIOutputException(String message) { super(message); }
@@ -15,6 +15,8 @@
 
 package com.additionsecurity;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.Properties;
 
 public interface ICTITransform {
@@ -22,6 +24,16 @@ public interface ICTITransform {
 	public Object groupObject(CTIItem items[]) throws ICTITransformException;
 	public byte[] transform(CTIItem item, Object group) throws ICTITransformException;
 
+	// Same as above, writing the item straight into out (e.g. an output's
+	// sink); returns false if there's nothing to write
+	public default boolean transform(CTIItem item, Object group, ByteBuf out) throws ICTITransformException
+	{
+		final byte[] result = transform( item, group );
+		if( result == null ) return false;
+		out.writeBytes( result );
+		return true;
+	}
+
 	public String dataToString(byte[] data) throws ICTITransformException;
 	public byte[] dataToByteString(byte[] data) throws ICTITransformException;
 
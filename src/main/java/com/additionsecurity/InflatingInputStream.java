@@ -0,0 +1,130 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Inflates a gzip or deflate request body as it is read, so the decoder pulls
+// plain bytes straight out of the compressed body.  Output is capped at both
+// max_size and a multiple of the compressed size; past that, reads fail (the
+// decoder sees a malformed message) and exceeded() tells the caller why.
+class InflatingInputStream extends InputStream {
+
+	private static final int BUF_SIZE = 4096;
+
+	private final InputStream _raw;
+	private final boolean _gzip;
+	private final long _limit;
+
+	private InputStream _in;
+	private Inflater _inflater;
+	private long _count;
+	private boolean _exceeded;
+
+	// Returns null if the encoding isn't one we can inflate
+	public static InflatingInputStream create(String encoding, InputStream raw,
+		long rawLen, long maxSize, int maxRatio)
+	{
+		boolean gzip;
+		if( encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip") ) gzip = true;
+		else if( encoding.equalsIgnoreCase("deflate") ) gzip = false;
+		else return null;
+
+		long limit = maxSize;
+		if( maxRatio > 0 && (rawLen * maxRatio) < limit ) limit = rawLen * maxRatio;
+		return new InflatingInputStream(raw, gzip, limit);
+	}
+
+	private InflatingInputStream(InputStream raw, boolean gzip, long limit)
+	{
+		_raw = raw;
+		_gzip = gzip;
+		_limit = limit;
+	}
+
+	public boolean exceeded()
+	{
+		return _exceeded;
+	}
+
+	// The inflater is set up on first read, so a bad header surfaces through the
+	// decoder like any other malformed body
+	private void open() throws IOException
+	{
+		if( _in != null ) return;
+		if( _gzip ){
+			_in = new GZIPInputStream(_raw, BUF_SIZE);
+			return;
+		}
+
+		// "deflate" is supposed to be zlib-wrapped, but plenty of clients send
+		// raw deflate; tell them apart by the zlib header
+		final BufferedInputStream bis = new BufferedInputStream(_raw, BUF_SIZE);
+		bis.mark(2);
+		final int cmf = bis.read();
+		final int flg = bis.read();
+		bis.reset();
+		final boolean zlib = cmf >= 0 && flg >= 0 && (cmf & 0x0f) == 8 &&
+			(((cmf << 8) | flg) % 31) == 0;
+		_inflater = new Inflater(!zlib);
+		_in = new InflaterInputStream(bis, _inflater, BUF_SIZE);
+	}
+
+	private void count(long n) throws IOException
+	{
+		_count += n;
+		if( _count > _limit ){
+			_exceeded = true;
+			throw new IOException("inflated body exceeds limit");
+		}
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if( _exceeded ) throw new IOException("inflated body exceeds limit");
+		open();
+		final int r = _in.read();
+		if( r >= 0 ) count(1);
+		return r;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if( _exceeded ) throw new IOException("inflated body exceeds limit");
+		open();
+		// Never inflate more than one byte past the limit
+		final long room = (_limit - _count) + 1;
+		if( len > room ) len = (int)room;
+		final int n = _in.read(b, off, len);
+		if( n > 0 ) count(n);
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		// An Inflater we supplied isn't ended by its stream
+		if( _in != null ) _in.close();
+		if( _inflater != null ) _inflater.end();
+	}
+}
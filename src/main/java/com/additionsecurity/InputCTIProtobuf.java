@@ -20,13 +20,15 @@ import com.additionsecurity.cti.AddsecCti.Report;
 import com.additionsecurity.cti.AddsecCti.Sighting;
 import com.additionsecurity.cti.AddsecCti.ObservationData;
 import com.additionsecurity.ICTIInput.ICTIInputException;
+import com.google.protobuf.CodedInputStream;
 
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Properties;
-import java.util.HashMap;
 import java.util.List;
 import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 import javax.xml.bind.DatatypeConverter;
@@ -44,11 +46,40 @@ class InputCTIProtobuf implements ICTIInput {
 	private static final int MAX_APP = 256;
 	private static final int MAX_DATA_SIZE = 2048;
 	private static final int MAX_DATA_COUNT = 8; // MUST BE <= 9, or adjust all the transforms
+	private static final int MAX_REPORT_SIZE = (1024 * 1024);
+
+	// Wire tags (field number << 3 | wire type) of the fields we use, per message
+	private static final int TAG_REPORT_ORG = 10;
+	private static final int TAG_REPORT_SYS = 18;
+	private static final int TAG_REPORT_SYS2 = 26;
+	private static final int TAG_REPORT_SYSTYPE = 32;
+	private static final int TAG_REPORT_APP = 42;
+	private static final int TAG_REPORT_USER = 50;
+	private static final int TAG_REPORT_USER2 = 58;
+	private static final int TAG_REPORT_SIGHTING = 66;
+	private static final int TAG_REPORT_TIMEBASE = 72;
+	private static final int TAG_SIGHTING_TYPE = 8;
+	private static final int TAG_SIGHTING_TS = 16;
+	private static final int TAG_SIGHTING_CONF = 24;
+	private static final int TAG_SIGHTING_DATA = 42;
+	private static final int TAG_SIGHTING_TEST = 48;
+	private static final int TAG_SIGHTING_SUBTEST = 56;
+	private static final int TAG_SIGHTING_DELTA = 64;
+	private static final int TAG_DATA_TYPE = 8;
+	private static final int TAG_DATA_DATA = 18;
+	private static final int TAG_DATA_NUM = 24;
+
+	// Stands in for a bytes field that was over its limit, and so was skipped
+	private static final byte[] OVERSIZE = new byte[0];
 
 	private static boolean _coalesce;
-	private static byte[] _orgLimit;
-	private static byte[] _orgLearned;
-	private static String _orgLimitStr;
+	private static CoalesceCache _coalesceCache;
+	private static DeviceLimiter _limiter;
+	private static OrgTenants _tenants;
+	private static volatile byte[] _orgLearned;
+	private static int _batchMax;
+	private static boolean _direct;
+	private static int _maxSightings;
 
 	public InputCTIProtobuf(Properties prop)  throws Exception
 	{
@@ -56,25 +87,51 @@ class InputCTIProtobuf implements ICTIInput {
 		if( "true".equals(v) ) _coalesce = false;
 		else _coalesce = true;
 
-		v = prop.getProperty("input.limit_org",null);
-		if( v == null ) _orgLimit = null;
-		else {
-			// ORG is SHA1, aka 20 bytes, 40 hex chars
-			if( v.length() != 40 )
-				throw new Exception("input.limit_org must be 40 hex chars");
-			_orgLimit = DatatypeConverter.parseHexBinary(v);
-			if( _orgLimit.length != 20 )
-				throw new Exception("input.limit_org must be 40 hex chars");
-			_orgLimitStr = v;
-			_orgLearned = _orgLimit;
-		}
+		final long window = Long.parseLong(prop.getProperty("input.coalesce_window","300"));
+		if( window < 1 ) throw new Exception("input.coalesce_window");
+		final int entries = Integer.parseInt(prop.getProperty("input.coalesce_max_entries","262144"));
+		if( entries < 1 ) throw new Exception("input.coalesce_max_entries");
+		_coalesceCache = _coalesce ? new CoalesceCache(window, entries) : null;
+
+		// Per-device rate limit, in reports per second; 0 is no limit
+		final double rate = Double.parseDouble(prop.getProperty("input.device_rate","0"));
+		if( rate < 0 ) throw new Exception("input.device_rate");
+		final int burst = Integer.parseInt(prop.getProperty("input.device_burst",
+			String.valueOf( Math.max(1, (int)Math.ceil(rate * 10)) )));
+		if( burst < 1 ) throw new Exception("input.device_burst");
+		final int idle = Integer.parseInt(prop.getProperty("input.device_idle","300"));
+		if( idle < 0 ) throw new Exception("input.device_idle");
+		final int devices = Integer.parseInt(prop.getProperty("input.device_max_entries","65536"));
+		if( devices < 1 ) throw new Exception("input.device_max_entries");
+		_limiter = ( rate > 0 ) ? new DeviceLimiter(rate, burst, idle, devices) : null;
+
+		_tenants = OrgTenants.create(prop);
+		if( _tenants != null ) _orgLearned = _tenants.first().id;
+
+		_batchMax = Integer.parseInt(prop.getProperty("input.batch_max_reports","1000"));
+		if( _batchMax < 1 ) throw new Exception("input.batch_max_reports");
+
+		_maxSightings = Integer.parseInt(prop.getProperty("input.max_sightings","0"));
+		if( _maxSightings < 0 ) throw new Exception("input.max_sightings");
+
+		v = prop.getProperty("input.decoder","direct");
+		if( v.equals("direct") ) _direct = true;
+		else if( v.equals("generated") ) _direct = false;
+		else throw new Exception("input.decoder");
 	}
 
 	public String description()
 	{
 		StringBuilder sb = new StringBuilder();
 		sb.append(DESC);
-		if( _orgLimit != null ) sb.append("; limit_org=").append(_orgLimitStr);
+		if( _tenants != null ) sb.append("; limit_orgs=").append(_tenants.description());
+		sb.append("; batch_max_reports=").append(_batchMax);
+		if( !_direct ) sb.append("; decoder=generated");
+		if( _maxSightings > 0 ) sb.append("; max_sightings=").append(_maxSightings);
+		if( _coalesce ) sb.append("; coalesce_window=").append(_coalesceCache.window())
+			.append("; coalesce_max_entries=").append(_coalesceCache.capacity());
+		else sb.append("; coalesce=disabled");
+		if( _limiter != null ) sb.append("; device_limit: ").append(_limiter.description());
 		return sb.toString();
 	}
 
@@ -83,9 +140,56 @@ class InputCTIProtobuf implements ICTIInput {
 		return _orgLearned;
 	}
 
-	//public CTIItem[] process(byte[] ip, long ts, byte[] data) throws ICTIInputException
+	public String tenantStats()
+	{
+		if( _tenants == null ) return null;
+		return _tenants.stats();
+	}
+
+	public void tenantMetrics(StringBuilder sb)
+	{
+		if( _tenants != null ) _tenants.metrics(sb);
+	}
+
+	// The public entry points are wrapped in a Flight Recorder decode event
+
 	public CTIItem[] process(byte[] ip, long ts, InputStream data) throws ICTIInputException
 	{
+		final Events.Decode ev = Events.decode();
+		final CTIItem[] items = processStream(ip, ts, data);
+		if( ev != null ) ev.done(-1, items);
+		return items;
+	}
+
+	public CTIItem[] process(byte[] ip, long ts, ByteBuffer data) throws ICTIInputException
+	{
+		final Events.Decode ev = Events.decode();
+		final int size = data.remaining();
+		final CTIItem[] items = processBuffer(ip, ts, data);
+		if( ev != null ) ev.done(size, items);
+		return items;
+	}
+
+	public CTIItem[][] processBatch(byte[] ip, long ts, InputStream data) throws ICTIInputException
+	{
+		final Events.Decode ev = Events.decode();
+		final CTIItem[][] reports = processBatchStream(ip, ts, data);
+		if( ev != null ) ev.done(-1, reports);
+		return reports;
+	}
+
+	//public CTIItem[] process(byte[] ip, long ts, byte[] data) throws ICTIInputException
+	private CTIItem[] processStream(byte[] ip, long ts, InputStream data) throws ICTIInputException
+	{
+		if( _direct ){
+			try {
+				return decode(ip, ts, CodedInputStream.newInstance(data));
+			} catch(Exception e){
+				if( App.DEBUG ) App.err(e);
+				return null;
+			}
+		}
+
 		Report report;
 
 		try {
@@ -98,16 +202,92 @@ class InputCTIProtobuf implements ICTIInput {
 			return null;
 		}
 
+		return process(ip, ts, report);
+	}
+
+	private CTIItem[] processBuffer(byte[] ip, long ts, ByteBuffer data) throws ICTIInputException
+	{
+		if( !scan(data) ) return null;
+
+		try {
+			if( _direct ) return decode(ip, ts, CodedInputStream.newInstance(data));
+			return process(ip, ts, Report.parseFrom(data));
+		} catch(Exception e){
+			if( App.DEBUG ) App.err(e);
+			return null;
+		}
+	}
+
+	private CTIItem[][] processBatchStream(byte[] ip, long ts, InputStream data) throws ICTIInputException
+	{
+		final ArrayList<CTIItem[]> results = new ArrayList<CTIItem[]>();
+		final CodedInputStream cis = CodedInputStream.newInstance(data);
+
+		try {
+			while( !cis.isAtEnd() ){
+				if( results.size() >= _batchMax )
+					throw new ICTIInputException("batch exceeds max reports");
+
+				// Each report is framed by its varint length; a report is pulled
+				// out whole, so a malformed one is dropped without losing our
+				// place in the stream
+				final int len = cis.readRawVarint32();
+				if( len < 0 || len > MAX_REPORT_SIZE ){
+					// Framing is lost; nothing past here can be trusted
+					results.add(null);
+					break;
+				}
+
+				if( _direct ){
+					// Decode in place, then step over whatever the decoder
+					// didn't need (or couldn't read)
+					final int oldLimit = cis.pushLimit(len);
+					CTIItem[] items = null;
+					try {
+						items = decode(ip, ts, cis);
+					} catch(IOException e){
+						if( App.DEBUG ) App.err(e);
+					}
+					cis.skipRawBytes( cis.getBytesUntilLimit() );
+					cis.popLimit(oldLimit);
+					results.add(items);
+					continue;
+				}
+
+				final byte[] raw = cis.readRawBytes(len);
+
+				Report report;
+				try {
+					report = Report.parseFrom(raw);
+				} catch(IOException e){
+					if( App.DEBUG ) App.err(e);
+					results.add(null);
+					continue;
+				}
+				results.add( process(ip, ts, report) );
+			}
+		} catch(IOException e){
+			// Truncated tail
+			if( App.DEBUG ) App.err(e);
+			results.add(null);
+		}
+
+		return results.toArray( new CTIItem[results.size()][] );
+	}
+
+	private CTIItem[] process(byte[] ip, long ts, Report report)
+	{
 		// check for org limit
-		if( _orgLimit != null ){
+		OrgTenants.Tenant tenant = null;
+		if( _tenants != null ){
 			if( !report.hasOrganizationId() ) return null;
-			final byte[] org = report.getOrganizationId().toByteArray();
-			if( org.length != _orgLimit.length ) return null;
-			if( !Arrays.equals(org, _orgLimit) ) return null;
+			tenant = _tenants.get( report.getOrganizationId() );
+			if( tenant == null ) return null;
 		}
 
 		final int obsz = report.getSightingsList().size();
 		if( obsz == 0 ) return null; // no observations
+		if( _maxSightings > 0 && obsz > _maxSightings ) return null;
 
 		//ArrayList<CTIItem> results = new ArrayList<CTIItem>( report.getObservationsList().size() );
 		CTIItem results[] = new CTIItem[ obsz ];
@@ -116,7 +296,8 @@ class InputCTIProtobuf implements ICTIInput {
 
 		// Common report items
 		results[0].setRecvTs(ts).setRecvIp(ip);
-		if(report.hasOrganizationId()){ 
+		if( tenant != null ) results[0].setOrgId(tenant.id);
+		else if(report.hasOrganizationId()){ 
 			results[0].setOrgId(report.getOrganizationId().toByteArray()); 
 			if( results[0]._org.length > MAX_ORG ) return null;
 			if( _orgLearned == null ) _orgLearned = results[0]._org;
@@ -148,7 +329,11 @@ class InputCTIProtobuf implements ICTIInput {
 		long time_base = 0;
 		if(report.hasTimeBase()) time_base = report.getTimeBase();
 
-		HashMap<Long,Long> cache = new HashMap<Long,Long>();
+		final CTIItem base = results[0];
+		final long device = CoalesceCache.device(base._sys, ip);
+		if( limited(device) ) return LIMITED;
+		if( tenant != null && !tenant.admit( System.currentTimeMillis() / 1000 ) ) return LIMITED;
+		int n = 0;
 
 		//for( Observation ob : report.getObservationsList() ){
 		List<Sighting> obl = report.getSightingsList();
@@ -160,26 +345,11 @@ class InputCTIProtobuf implements ICTIInput {
 			else if( ob.hasTimeDelta() ) ts_ = ob.getTimeDelta() + time_base;
 
 			// Check for coalesce
-			long subtest_ = 0;
-			if( ob.hasTestSubId() ) subtest_ = ob.getTestSubId();
-			if( _coalesce && subtest_ > 0 && ob.hasTestId() ){
-				final long cacheval = (ob.getTestId() << 32) | subtest_;
-				if( cache.containsKey(cacheval) ){
-					final long exp = cache.get(cacheval);
-					if( ts_ < exp ){
-						// duplicate and within expire window, so skip
-						continue;
-					}
-				}
-
-				// add this item to the cache
-				final long new_exp = ts_ + (60 * 5); // 5 minutes
-				cache.put( cacheval, new_exp );
-			}
+			if( coalesced(device, ob.hasTestId(), ob.getTestId(), ob.getTestSubId(), ts_, ts) ) continue;
 
-			if( i > 0 ) results[i] = results[0].cloneBase();
-
-			CTIItem item_ = results[i];
+			// The first item kept is the base itself; later ones copy it
+			CTIItem item_ = (n == 0) ? base : base.cloneBase();
+			results[n++] = item_;
 
 			/*
 			item_.setRecvTs(ts).setRecvIp(ip);
@@ -229,7 +399,483 @@ class InputCTIProtobuf implements ICTIInput {
 		}
 
 		//return results.toArray( new CTIItem[results.size()] );
-		return results;
+		return kept(results, n);
+	}
+
+	////////////////////////////////////////////////
+	// DIRECT DECODER
+
+	// Walks the AddsecCti wire format once, filling CTIItems directly instead of
+	// building the generated Report object graph and copying out of it.  Results
+	// match Report.parseFrom() + process(Report) exactly: last value wins for
+	// repeated scalars, unknown fields are skipped, and malformed input fails the
+	// same way.  Bytes fields over their MAX_* limit are skipped, never copied.
+
+	// A sighting, plus what's needed to place it once the whole report is read
+	private static class Sight {
+		final CTIItem.Ob ob = new CTIItem.Ob();
+		boolean hasTimestamp, hasTimeDelta, hasTestId, hasTestSubId;
+		int timestamp, timeDelta, testId, testSubId;
+	}
+
+	// The report-level fields
+	private static class Header {
+		byte[] org, sys, sys2, app, user, user2;
+		boolean hasSysType;
+		int sysType;
+		int timeBase;
+		long device; // set by base()
+		boolean checked, limited; // the limiter's answer, if asked before base()
+		long early; // the device it was asked about
+	}
+
+	private CTIItem[] decode(byte[] ip, long ts, CodedInputStream cis) throws IOException
+	{
+		final Header h = new Header();
+		final ArrayList<Sight> sightings = new ArrayList<Sight>();
+		int obsz = 0;
+
+		boolean done = false;
+		while( !done ){
+			final int tag = cis.readTag();
+			if( tag == 0 ) done = true;
+			else if( tag == TAG_REPORT_SIGHTING ){
+				// A device over its rate has its sightings stepped over
+				if( obsz++ == 0 ) limitEarly(ip, h);
+				if( h.limited ) cis.skipField(tag);
+				else sightings.add( decodeSighting(cis) );
+			}
+			else if( !decodeHeader(cis, tag, h) && !cis.skipField(tag) ) done = true;
+		}
+		cis.checkLastTagWas(0);
+
+		final CTIItem base = base(ip, ts, h, obsz);
+		if( base == null ) return null;
+		if( base == LIMITED_BASE ) return LIMITED;
+
+		CTIItem results[] = new CTIItem[ obsz ];
+		int n = 0;
+
+		final long time_base = h.timeBase;
+		final long device = h.device;
+
+		for( int i=0; i<sightings.size(); i++ ){
+			final Sight s = sightings.get(i);
+			final long ts_ = place(s, time_base);
+			if( coalesced(device, s.hasTestId, s.testId, s.testSubId, ts_, ts) ) continue;
+
+			final CTIItem item = (n == 0) ? base : base.cloneBase();
+			results[n++] = item.setObservation( s.ob.setTs(ts_) );
+		}
+
+		return kept(results, n);
 	}
-}
 
+	public boolean processChunked(byte[] ip, long ts, ByteBuffer data, int chunk,
+		ICTIInput.ChunkHandler handler) throws Exception
+	{
+		// The event's time includes the handler's
+		final Events.Decode ev = Events.decode();
+		final int size = data.remaining();
+		final int items = decodeChunked(ip, ts, data, chunk, handler);
+		if( ev != null ) ev.done(size, 1, Math.max(items, 0), items < 0 ? 1 : 0);
+		return items >= 0;
+	}
+
+	// Returns the number of items handed over, or -1 if the report was dropped
+	private int decodeChunked(byte[] ip, long ts, ByteBuffer data, int chunk,
+		ICTIInput.ChunkHandler handler) throws Exception
+	{
+		// After the scan, neither pass can run into malformed input, so nothing
+		// handed over will have to be taken back
+		if( !scan(data) ) return -1;
+
+		// First pass: the report-level fields, stepping over the sightings (the
+		// time base is serialized after them)
+		final Header h = new Header();
+		int obsz = 0;
+		CodedInputStream cis = CodedInputStream.newInstance(data);
+		boolean done = false;
+		while( !done ){
+			final int tag = cis.readTag();
+			if( tag == 0 ) done = true;
+			else if( tag == TAG_REPORT_SIGHTING ){
+				obsz++;
+				cis.skipField(tag);
+			}
+			else if( !decodeHeader(cis, tag, h) && !cis.skipField(tag) ) done = true;
+		}
+		cis.checkLastTagWas(0);
+
+		final CTIItem base = base(ip, ts, h, obsz);
+		if( base == null ) return -1;
+		if( base == LIMITED_BASE ) return 0;
+
+		// Second pass: the sightings, a chunk at a time
+		final long time_base = h.timeBase;
+		final long device = h.device;
+		CTIItem items[] = new CTIItem[ Math.min(chunk, obsz) ];
+		int n = 0, total = 0;
+		boolean first = true;
+
+		cis = CodedInputStream.newInstance(data);
+		done = false;
+		while( !done ){
+			final int tag = cis.readTag();
+			if( tag == 0 ) done = true;
+			else if( tag == TAG_REPORT_SIGHTING ){
+				final Sight s = decodeSighting(cis);
+				final long ts_ = place(s, time_base);
+				if( coalesced(device, s.hasTestId, s.testId, s.testSubId, ts_, ts) ) continue;
+
+				final CTIItem item = first ? base : base.cloneBase();
+				first = false;
+				items[n++] = item.setObservation( s.ob.setTs(ts_) );
+				total++;
+				if( n == items.length ){
+					handler.handle(items, n);
+					items = new CTIItem[ items.length ];
+					n = 0;
+				}
+			}
+			else if( !cis.skipField(tag) ) done = true;
+		}
+		if( n > 0 ) handler.handle(items, n);
+		return total;
+	}
+
+	// A report from a device over its rate, or a tenant over its quota, is dropped
+	// (and counted) like one
+	// whose sightings were all coalesced: there's nothing to pass on, but it
+	// isn't an error
+	private static final CTIItem[] LIMITED = new CTIItem[0];
+	private static final CTIItem LIMITED_BASE = new CTIItem();
+
+	private static boolean limited(long device)
+	{
+		if( _limiter == null ) return false;
+		if( _limiter.allow(device, DeviceLimiter.now()) ) return false;
+		App.reportRateLimited();
+		return true;
+	}
+
+	// The items that weren't coalesced away, which are packed at the front so the
+	// first is always there for the group object; empty if all of them were
+	private static CTIItem[] kept(CTIItem[] results, int n)
+	{
+		if( n == results.length ) return results;
+		return Arrays.copyOf(results, n);
+	}
+
+	// Reads a report-level field into h; false if tag isn't one
+	private static boolean decodeHeader(CodedInputStream cis, int tag, Header h) throws IOException
+	{
+		switch( tag ){
+			case TAG_REPORT_ORG: h.org = readLimited(cis, MAX_ORG); return true;
+			case TAG_REPORT_SYS: h.sys = readLimited(cis, MAX_SYS1); return true;
+			case TAG_REPORT_SYS2: h.sys2 = readLimited(cis, MAX_SYS2); return true;
+			case TAG_REPORT_SYSTYPE: h.sysType = cis.readUInt32(); h.hasSysType = true; return true;
+			case TAG_REPORT_APP: h.app = readLimited(cis, MAX_APP); return true;
+			case TAG_REPORT_USER: h.user = readLimited(cis, MAX_ACCT1); return true;
+			case TAG_REPORT_USER2: h.user2 = readLimited(cis, MAX_ACCT2); return true;
+			case TAG_REPORT_TIMEBASE: h.timeBase = cis.readUInt32(); return true;
+		}
+		return false;
+	}
+
+	// Applies the report-level checks, and returns the item carrying the common
+	// report values; null if the report is to be discarded, LIMITED_BASE if the
+	// device is over its rate
+	private CTIItem base(byte[] ip, long ts, Header h, int obsz)
+	{
+		final CTIItem base = checkedBase(ip, ts, h, obsz);
+
+		// A token taken early for a report that's discarded after all goes back
+		if( base == null && h.checked && !h.limited ) _limiter.refund( h.early );
+		return base;
+	}
+
+	private CTIItem checkedBase(byte[] ip, long ts, Header h, int obsz)
+	{
+		// check for org limit
+		OrgTenants.Tenant tenant = null;
+		if( _tenants != null ){
+			if( h.org == null || h.org == OVERSIZE ) return null;
+			tenant = _tenants.get( h.org, 0, h.org.length );
+			if( tenant == null ) return null;
+			h.org = tenant.id;
+		}
+
+		if( obsz == 0 ) return null; // no observations
+		if( _maxSightings > 0 && obsz > _maxSightings ) return null;
+
+		if( h.org == OVERSIZE ) return null;
+		if( h.org != null && _orgLearned == null ) _orgLearned = h.org;
+		if( h.sys == OVERSIZE || h.sys2 == OVERSIZE || h.app == OVERSIZE ||
+			h.user == OVERSIZE || h.user2 == OVERSIZE ) return null;
+
+		h.device = CoalesceCache.device(h.sys, ip);
+		if( h.checked && h.early != h.device && !h.limited ){
+			// Another systemId came after the sightings started, so the early
+			// answer was for another device
+			_limiter.refund( h.early );
+			h.checked = false;
+		}
+		if( h.checked ){
+			// (if the device changed, the skipped sightings are gone anyway)
+			if( h.limited ){
+				App.reportRateLimited();
+				return LIMITED_BASE;
+			}
+		}
+		else if( limited(h.device) ) return LIMITED_BASE;
+		if( tenant != null && !tenant.admit( System.currentTimeMillis() / 1000 ) ) return LIMITED_BASE;
+
+		// Common report items
+		final CTIItem base = new CTIItem();
+		base.setRecvTs(ts).setRecvIp(ip);
+		if( h.org != null ) base.setOrgId(h.org);
+		if( h.sys != null ) base.setSysId(h.sys);
+		if( h.sys2 != null ) base.setSysId2(h.sys2);
+		if( h.app != null ) base.setAppId(h.app);
+		if( h.user != null ) base.setUserId(h.user);
+		if( h.user2 != null ) base.setUserId2(h.user2);
+		if( h.hasSysType ) base.setSysType(h.sysType);
+		return base;
+	}
+
+	// Asks the limiter when the sightings start, so a limited report's needn't
+	// be decoded; only if the systemId (the device) came before them, as it
+	// normally does.  The answer is counted, or the token given back, by base().
+	private static void limitEarly(byte[] ip, Header h)
+	{
+		if( _limiter == null || h.sys == null || h.sys == OVERSIZE ) return;
+		h.checked = true;
+		h.early = CoalesceCache.device(h.sys, ip);
+		h.limited = !_limiter.allow(h.early, DeviceLimiter.now());
+	}
+
+	private static long place(Sight s, long time_base)
+	{
+		long ts_ = 0;
+		if( s.hasTimestamp ) ts_ = s.timestamp;
+		else if( s.hasTimeDelta ) ts_ = s.timeDelta + time_base;
+		return ts_;
+	}
+
+	// True if the device sent the same test/subtest within the coalesce window;
+	// sightings without a time of their own are placed at the receive time
+	private static boolean coalesced(long device, boolean hasTestId, int testId, int testSubId,
+		long ts_, long recvTs)
+	{
+		if( !_coalesce || testSubId <= 0 || !hasTestId ) return false;
+		return _coalesceCache.seen( device, CoalesceCache.test(testId, testSubId),
+			ts_ != 0 ? ts_ : recvTs, recvTs );
+	}
+
+	public void undo(CTIItem[] items)
+	{
+		if( !_coalesce ) return;
+		for( int i=0; i<items.length; i++ ){
+			final CTIItem item = items[i];
+			if( item == null || item._ob == null || item._ob._test2 <= 0 ) continue;
+			_coalesceCache.forget( CoalesceCache.device(item._sys, item._recvip),
+				CoalesceCache.test((int)item._ob._test, (int)item._ob._test2),
+				item._ob._ts != 0 ? item._ob._ts : item._recvts );
+		}
+	}
+
+	private static Sight decodeSighting(CodedInputStream cis) throws IOException
+	{
+		final int oldLimit = cis.pushLimit( cis.readRawVarint32() );
+		final Sight s = new Sight();
+
+		boolean done = false;
+		while( !done ){
+			final int tag = cis.readTag();
+			switch( tag ){
+				case 0: done = true; break;
+				case TAG_SIGHTING_TYPE: s.ob.setType( cis.readUInt32() ); break;
+				case TAG_SIGHTING_TS: s.timestamp = cis.readUInt32(); s.hasTimestamp = true; break;
+				case TAG_SIGHTING_DELTA: s.timeDelta = cis.readUInt32(); s.hasTimeDelta = true; break;
+				case TAG_SIGHTING_CONF: s.ob.setConf( cis.readUInt32() ); break;
+				case TAG_SIGHTING_DATA: decodeData( cis, s.ob ); break;
+				case TAG_SIGHTING_TEST:
+					s.testId = cis.readUInt32();
+					s.hasTestId = true;
+					s.ob.setTest( s.testId );
+					break;
+				case TAG_SIGHTING_SUBTEST:
+					s.testSubId = cis.readUInt32();
+					s.hasTestSubId = true;
+					s.ob.setTest2( s.testSubId );
+					break;
+				default: if( !cis.skipField(tag) ) done = true;
+			}
+		}
+		cis.checkLastTagWas(0);
+		cis.popLimit(oldLimit);
+		return s;
+	}
+
+	private static void decodeData(CodedInputStream cis, CTIItem.Ob ob) throws IOException
+	{
+		final int oldLimit = cis.pushLimit( cis.readRawVarint32() );
+		int type = 0;
+		byte[] data = null;
+		boolean hasNum = false;
+		int num = 0;
+
+		boolean done = false;
+		while( !done ){
+			final int tag = cis.readTag();
+			switch( tag ){
+				case 0: done = true; break;
+				case TAG_DATA_TYPE: type = cis.readUInt32(); break;
+				case TAG_DATA_DATA: data = readLimited(cis, MAX_DATA_SIZE); break;
+				case TAG_DATA_NUM: num = cis.readUInt32(); hasNum = true; break;
+				default: if( !cis.skipField(tag) ) done = true;
+			}
+		}
+		cis.checkLastTagWas(0);
+		cis.popLimit(oldLimit);
+
+		// Max the number of data items per observation
+		if( ob._datas.size() >= MAX_DATA_COUNT ) return;
+
+		if( data != null ){
+			if( data != OVERSIZE ) ob.addData( new CTIItem.ObData(type, data) );
+		}
+		else if( hasNum ){
+			ob.addData( new CTIItem.ObData(type, num) );
+		}
+	}
+
+	// Read a bytes field, or skip past it and return OVERSIZE if it's over max
+	private static byte[] readLimited(CodedInputStream cis, int max) throws IOException
+	{
+		final int len = cis.readRawVarint32();
+		if( len > max ){
+			cis.skipRawBytes(len);
+			return OVERSIZE;
+		}
+		return cis.readRawBytes(len);
+	}
+
+	////////////////////////////////////////////////
+	// PRE-SCAN
+
+	// One pass over the raw bytes before anything is decoded or allocated: checks
+	// the framing (tags, wire types, lengths) of the report, its sightings and
+	// their data, the identity field limits, the sighting count and the org limit.
+	// A report it rejects would be discarded by the decoder anyway; this way
+	// garbage and abusive reports cost next to nothing.  Groups, which AddsecCti
+	// doesn't use, are rejected outright.
+	private static boolean scan(ByteBuffer b)
+	{
+		final Cursor c = new Cursor(b);
+		final int end = b.limit();
+		int sightings = 0;
+
+		// Length of the last value of each identity field (last one wins when
+		// decoding), -1 if absent
+		int org = -1, orgPos = 0;
+		int sys = -1, sys2 = -1, app = -1, user = -1, user2 = -1;
+
+		while( c._pos < end ){
+			final int tag = c.varint(end);
+			if( c._bad || (tag >>> 3) == 0 ) return false;
+			if( (tag & 7) != 2 ){
+				if( !c.skip(tag & 7, end) ) return false;
+				continue;
+			}
+
+			final int len = c.varint(end);
+			if( c._bad || len < 0 || len > end - c._pos ) return false;
+			final int next = c._pos + len;
+			switch( tag ){
+				case TAG_REPORT_ORG: org = len; orgPos = c._pos; break;
+				case TAG_REPORT_SYS: sys = len; break;
+				case TAG_REPORT_SYS2: sys2 = len; break;
+				case TAG_REPORT_APP: app = len; break;
+				case TAG_REPORT_USER: user = len; break;
+				case TAG_REPORT_USER2: user2 = len; break;
+				case TAG_REPORT_SIGHTING:
+					if( !c.message(next, TAG_SIGHTING_DATA) ) return false;
+					sightings++;
+					break;
+			}
+			c._pos = next;
+		}
+
+		if( _tenants != null && _tenants.get(b, orgPos, org) == null ) return false;
+
+		if( sightings == 0 ) return false;
+		if( _maxSightings > 0 && sightings > _maxSightings ) return false;
+
+		return org <= MAX_ORG && sys <= MAX_SYS1 && sys2 <= MAX_SYS2 &&
+			app <= MAX_APP && user <= MAX_ACCT1 && user2 <= MAX_ACCT2;
+	}
+
+	// Read position over a buffer, using absolute gets so the buffer is untouched
+	private static class Cursor {
+		private final ByteBuffer _b;
+		private int _pos;
+		private boolean _bad;
+
+		Cursor(ByteBuffer b)
+		{
+			_b = b;
+			_pos = b.position();
+		}
+
+		// Up to 10 bytes, keeping the low 32 bits, like CodedInputStream
+		int varint(int end)
+		{
+			int result = 0;
+			for( int shift = 0; shift < 70; shift += 7 ){
+				if( _pos >= end ) break;
+				final byte x = _b.get(_pos++);
+				if( shift < 32 ) result |= (x & 0x7f) << shift;
+				if( (x & 0x80) == 0 ) return result;
+			}
+			_bad = true;
+			return 0;
+		}
+
+		// Step over a value of the given wire type
+		boolean skip(int wireType, int end)
+		{
+			switch( wireType ){
+				case 0: varint(end); return !_bad;
+				case 1: _pos += 8; return _pos <= end;
+				case 5: _pos += 4; return _pos <= end;
+				case 2:
+					final int len = varint(end);
+					if( _bad || len < 0 || len > end - _pos ) return false;
+					_pos += len;
+					return true;
+				default: return false; // groups, invalid
+			}
+		}
+
+		// Check the framing of an embedded message ending at end, descending
+		// into the length-delimited fields tagged nested
+		boolean message(int end, int nested)
+		{
+			while( _pos < end ){
+				final int tag = varint(end);
+				if( _bad || (tag >>> 3) == 0 ) return false;
+				if( tag == nested && nested != 0 ){
+					final int len = varint(end);
+					if( _bad || len < 0 || len > end - _pos ) return false;
+					final int next = _pos + len;
+					if( !message(next, 0) ) return false;
+					_pos = next;
+				}
+				else if( !skip(tag & 7, end) ) return false;
+			}
+			return true;
+		}
+	}
+}
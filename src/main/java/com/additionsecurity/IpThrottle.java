@@ -0,0 +1,119 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Per source address limits on open connections and on requests a second, checked
+// before a request's body is read.  Addresses are hashed into a fixed table of
+// counters, so however many addresses show up the memory stays the same; addresses
+// that share a slot share its limits.
+class IpThrottle {
+
+	private final int _maxConnections;
+	private final int _maxRequests;
+	private final int _mask;
+
+	private final AtomicIntegerArray _connections;
+	private final AtomicLongArray _requests; // (second << 32) | count
+
+	public IpThrottle(Properties prop) throws Exception
+	{
+		// 0 disables the respective limit
+		_maxConnections = Integer.parseInt(prop.getProperty("throttle.max_connections_per_ip", "0"));
+		if( _maxConnections < 0 ) throw new Exception("throttle.max_connections_per_ip");
+
+		_maxRequests = Integer.parseInt(prop.getProperty("throttle.max_requests_per_ip", "0"));
+		if( _maxRequests < 0 ) throw new Exception("throttle.max_requests_per_ip");
+
+		final int size = Integer.parseInt(prop.getProperty("throttle.table_size", "65536"));
+		if( size < 1 || size > (1 << 24) ) throw new Exception("throttle.table_size");
+		int sz = 1;
+		while( sz < size ) sz <<= 1;
+		_mask = sz - 1;
+
+		_connections = new AtomicIntegerArray( _maxConnections > 0 ? sz : 0 );
+		_requests = new AtomicLongArray( _maxRequests > 0 ? sz : 0 );
+	}
+
+	public boolean enabled()
+	{
+		return _maxConnections > 0 || _maxRequests > 0;
+	}
+
+	public boolean limitsConnections()
+	{
+		return _maxConnections > 0;
+	}
+
+	public boolean limitsRequests()
+	{
+		return _maxRequests > 0;
+	}
+
+	public String description()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("max_connections_per_ip=").append(_maxConnections);
+		sb.append("; max_requests_per_ip=").append(_maxRequests);
+		sb.append("; table_size=").append(_mask + 1);
+		return sb.toString();
+	}
+
+	public int slot(byte[] ip)
+	{
+		int h = 0x811c9dc5; // FNV-1a
+		for( int i=0; i<ip.length; i++ ){
+			h ^= (ip[i] & 0xff);
+			h *= 0x01000193;
+		}
+		h ^= (h >>> 16);
+		return h & _mask;
+	}
+
+	// Counts a new connection from the slot; false if that's one too many, in
+	// which case it isn't counted
+	public boolean connect(int slot)
+	{
+		if( _maxConnections == 0 ) return true;
+		if( _connections.incrementAndGet(slot) <= _maxConnections ) return true;
+		_connections.decrementAndGet(slot);
+		return false;
+	}
+
+	// For each connect() that returned true
+	public void disconnect(int slot)
+	{
+		if( _maxConnections > 0 ) _connections.decrementAndGet(slot);
+	}
+
+	// Counts a request from the slot in the current second (now, in seconds);
+	// false if it's over the limit
+	public boolean request(int slot, long now)
+	{
+		if( _maxRequests == 0 ) return true;
+		while( true ){
+			final long v = _requests.get(slot);
+			final long next;
+			if( (v >>> 32) != now ) next = (now << 32) | 1;
+			else if( (int)v >= _maxRequests ) return false;
+			else next = v + 1;
+			if( _requests.compareAndSet(slot, v, next) ) return true;
+		}
+	}
+}
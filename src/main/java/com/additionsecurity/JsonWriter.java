@@ -0,0 +1,108 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+// Writes JSON values straight into a ByteBuffer, the way Vert.x's JsonObject
+// (i.e. Jackson) serializes them: strings get the short escapes (\" \\ \b \f
+// \n \r \t) and a six character one for the other control characters, the
+// rest goes out as UTF-8, and byte arrays become base64 strings.
+final class JsonWriter {
+
+	private static final Charset _UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes(_UTF8);
+	private static final byte[] B64 =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(_UTF8);
+
+	// 0 if the character goes out as is, 'u' for the six character escape,
+	// otherwise the character that follows the backslash
+	private static final byte[] ESC = new byte[128];
+	static {
+		for( int i=0; i<32; i++ ) ESC[i] = 'u';
+		ESC['"'] = '"';
+		ESC['\\'] = '\\';
+		ESC['\b'] = 'b';
+		ESC['\f'] = 'f';
+		ESC['\n'] = 'n';
+		ESC['\r'] = 'r';
+		ESC['\t'] = 't';
+	}
+
+	// A string of UTF-8; badly formed sequences become U+FFFD, the same as
+	// going through new String(data, UTF-8)
+	static void putString(ByteBuffer b, byte[] data)
+	{
+		if( !Decode.isUtf8(data) ) data = new String(data, _UTF8).getBytes(_UTF8);
+
+		b.put((byte)'"');
+		int offset = 0;
+		for( int i=0; i<data.length; i++ ){
+			final int c = data[i];
+			if( c < 0 || ESC[c] == 0 ) continue;
+
+			b.put( data, offset, (i-offset) );
+			b.put((byte)'\\');
+			if( ESC[c] == 'u' )
+				b.put((byte)'u').put((byte)'0').put((byte)'0').put(HEX[c >>> 4]).put(HEX[c & 0x0f]);
+			else
+				b.put(ESC[c]);
+			offset = i + 1;
+		}
+		b.put( data, offset, (data.length-offset) );
+		b.put((byte)'"');
+	}
+
+	static void putString(ByteBuffer b, String s)
+	{
+		putString( b, s.getBytes(_UTF8) );
+	}
+
+	// A string known not to need escaping, e.g. the Decode names
+	static void putQuoted(ByteBuffer b, byte[] data)
+	{
+		b.put((byte)'"').put(data).put((byte)'"');
+	}
+
+	static void putHex(ByteBuffer b, byte[] data)
+	{
+		b.put((byte)'"');
+		Utils.putHex( b, data, true, false );
+		b.put((byte)'"');
+	}
+
+	static void putBase64(ByteBuffer b, byte[] data)
+	{
+		b.put((byte)'"');
+		final int end = data.length - (data.length % 3);
+		int i;
+		for( i=0; i<end; i+=3 ){
+			final int v = ((data[i] & 0xff) << 16) | ((data[i+1] & 0xff) << 8) | (data[i+2] & 0xff);
+			b.put(B64[v >>> 18]).put(B64[(v >>> 12) & 0x3f]).put(B64[(v >>> 6) & 0x3f]).put(B64[v & 0x3f]);
+		}
+		if( data.length - end == 1 ){
+			final int v = (data[i] & 0xff) << 16;
+			b.put(B64[v >>> 18]).put(B64[(v >>> 12) & 0x3f]).put((byte)'=').put((byte)'=');
+		}
+		else if( data.length - end == 2 ){
+			final int v = ((data[i] & 0xff) << 16) | ((data[i+1] & 0xff) << 8);
+			b.put(B64[v >>> 18]).put(B64[(v >>> 12) & 0x3f]).put(B64[(v >>> 6) & 0x3f]).put((byte)'=');
+		}
+		b.put((byte)'"');
+	}
+}
@@ -0,0 +1,246 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Local metrics, served in the Prometheus text format by the metrics listener.
+// Everything is a LongAdder (or an array of them), so recording is a couple of
+// uncontended adds and never allocates; only rendering does.  Counters here and
+// App's counters only ever go up (App's stats payload sends differences).
+class Metrics {
+
+	static final LongAdder received = new LongAdder();  // reports (or batches) received
+	static final LongAdder bytesIn = new LongAdder();
+	static final LongAdder itemsOut = new LongAdder();
+	static final LongAdder bytesOut = new LongAdder();
+
+	// Stage timings, in nanoseconds
+	static final Histogram parse = new Histogram("asgw_parse_seconds",
+		"Time to decode a report or batch", 10, 36, 1e9);
+	static final Histogram transform = new Histogram("asgw_transform_seconds",
+		"Time to transform the items of a report or batch", 10, 36, 1e9);
+	static final Histogram output = new Histogram("asgw_output_seconds",
+		"Time to hand a set of items to the output", 10, 36, 1e9);
+	static final Histogram request = new Histogram("asgw_request_seconds",
+		"Time from an HTTP request arriving to its response", 10, 36, 1e9);
+	static final Histogram flush = new Histogram("asgw_output_flush_seconds",
+		"Time for a batching output to upload what it collected", 10, 36, 1e9);
+
+	// Items per output() call
+	static final Histogram batch = new Histogram("asgw_output_batch_items",
+		"Items handed to the output at a time", 2, 20, 1);
+
+	// Stages also go to the thread's current request trace, if there is one
+
+	static void received(int bytes)
+	{
+		received.increment();
+		bytesIn.add(bytes);
+		final SlowRequests.Trace t = SlowRequests.current();
+		if( t != null ) t.bytes += bytes;
+	}
+
+	static void parsed(long ns, int items)
+	{
+		parse.record(ns);
+		final SlowRequests.Trace t = SlowRequests.current();
+		if( t != null ){
+			t.parse += ns;
+			t.items += items;
+		}
+	}
+
+	static void transformed(long ns)
+	{
+		transform.record(ns);
+		final SlowRequests.Trace t = SlowRequests.current();
+		if( t != null ) t.transform += ns;
+	}
+
+	static void delivered(long ns)
+	{
+		output.record(ns);
+		final SlowRequests.Trace t = SlowRequests.current();
+		if( t != null ) t.output += ns;
+	}
+
+	// After a sink's items were handed to the output
+	static void sent(OutputSink sink)
+	{
+		itemsOut.add(sink.count());
+		bytesOut.add(sink.bytes());
+		batch.record(sink.count());
+	}
+
+	public static String text(ICTIInput in, ICTIOutput out, AdmissionControl admission)
+	{
+		final StringBuilder sb = new StringBuilder(16384);
+		counter(sb, "asgw_received_total", "Reports and batches received", received.sum());
+		counter(sb, "asgw_received_bytes_total", "Bytes of reports received", bytesIn.sum());
+		counter(sb, "asgw_output_items_total", "Items handed to the output", itemsOut.sum());
+		counter(sb, "asgw_output_bytes_total", "Bytes handed to the output", bytesOut.sum());
+
+		counter(sb, "asgw_ok_total", "Requests handled", App.counterOK.sum());
+		counter(sb, "asgw_errors_total", "Requests failed outside of a stage", App.counterErr.sum());
+		counter(sb, "asgw_input_errors_total", "Reports that failed to decode", App.counterErrInput.sum());
+		counter(sb, "asgw_transform_errors_total", "Reports that failed to transform",
+			App.counterErrTransform.sum());
+		counter(sb, "asgw_output_errors_total", "Output failures", App.counterErrOutput.sum());
+		counter(sb, "asgw_dropped_reports_total", "Reports discarded by the input",
+			App.counterDroppedInput.sum());
+		counter(sb, "asgw_dropped_data_total", "Data fields dropped by the input",
+			App.counterDroppedData.sum());
+		counter(sb, "asgw_rate_limited_total", "Reports dropped by the device rate limit",
+			App.counterRateLimited.sum());
+
+		in.tenantMetrics(sb);
+
+		gauge(sb, "asgw_output_pending", "Items accepted by the output but not yet delivered",
+			out.pending());
+		gauge(sb, "asgw_inflight", "Admitted HTTP requests in flight", admission.inflight());
+		final PooledByteBufAllocatorMetric pool = PooledByteBufAllocator.DEFAULT.metric();
+		gauge(sb, "asgw_buffer_pool_heap_bytes", "Pooled heap buffer memory in use",
+			pool.usedHeapMemory());
+		gauge(sb, "asgw_buffer_pool_direct_bytes", "Pooled direct buffer memory in use",
+			pool.usedDirectMemory());
+
+		parse.text(sb);
+		transform.text(sb);
+		output.text(sb);
+		request.text(sb);
+		flush.text(sb);
+		batch.text(sb);
+		return sb.toString();
+	}
+
+	private static void counter(StringBuilder sb, String name, String help, long v)
+	{
+		header(sb, name, help, "counter");
+		sb.append(name).append(' ').append(v).append('\n');
+	}
+
+	private static void gauge(StringBuilder sb, String name, String help, long v)
+	{
+		header(sb, name, help, "gauge");
+		sb.append(name).append(' ').append(v).append('\n');
+	}
+
+	// A labeled sample, after its header
+	static void sample(StringBuilder sb, String name, String label, String value, long v)
+	{
+		sb.append(name).append('{').append(label).append("=\"").append(value).append("\"} ")
+			.append(v).append('\n');
+	}
+
+	static void header(StringBuilder sb, String name, String help, String type)
+	{
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	// Log-linear buckets: everything under 2^min in the first, then SUB equal
+	// buckets for each power of two up to 2^max, then everything past that.
+	// Values are recorded in their own unit and divided down (e.g. nanoseconds
+	// to seconds) only for rendering.
+	static final class Histogram {
+		private static final int SUB_BITS = 2;
+		private static final int SUB = 1 << SUB_BITS;
+
+		private final String _name, _help;
+		private final int _min, _max;
+		private final double _unit;
+		private final LongAdder[] _counts;
+		private final LongAdder _sum = new LongAdder();
+
+		Histogram(String name, String help, int minExp, int maxExp, double unit)
+		{
+			_name = name;
+			_help = help;
+			_min = minExp;
+			_max = maxExp;
+			_unit = unit;
+			_counts = new LongAdder[ 2 + ((maxExp - minExp) * SUB) ];
+			for( int i=0; i<_counts.length; i++ ) _counts[i] = new LongAdder();
+		}
+
+		void record(long v)
+		{
+			if( v < 0 ) v = 0;
+			_counts[ bucket(v) ].increment();
+			_sum.add(v);
+		}
+
+		int bucket(long v)
+		{
+			if( v < (1L << _min) ) return 0;
+			final int e = 63 - Long.numberOfLeadingZeros(v);
+			if( e >= _max ) return _counts.length - 1;
+			return 1 + ((e - _min) * SUB) + (int)((v >>> (e - SUB_BITS)) & (SUB - 1));
+		}
+
+		// Bucket i holds values under this; the last one has no bound
+		long upper(int i)
+		{
+			if( i == 0 ) return 1L << _min;
+			final int e = _min + ((i - 1) / SUB);
+			return (1L << e) + ((long)(((i - 1) % SUB) + 1) << (e - SUB_BITS));
+		}
+
+		// Upper bound of the bucket the q quantile falls in; the last bucket
+		// only has a lower one.  0 if nothing's been recorded.
+		long quantile(double q)
+		{
+			final long[] c = new long[_counts.length];
+			long total = 0;
+			for( int i=0; i<c.length; i++ ){
+				c[i] = _counts[i].sum();
+				total += c[i];
+			}
+			if( total == 0 ) return 0;
+			final long rank = (long)Math.ceil( q * total );
+			long n = 0;
+			for( int i=0; i<c.length - 1; i++ ){
+				n += c[i];
+				if( n >= rank ) return upper(i);
+			}
+			return 1L << _max;
+		}
+
+		void text(StringBuilder sb)
+		{
+			header(sb, _name, _help, "histogram");
+			long total = 0;
+			for( int i=0; i<_counts.length - 1; i++ ){
+				total += _counts[i].sum();
+				sb.append(_name).append("_bucket{le=\"");
+				if( _unit == 1 ) sb.append( upper(i) );
+				else sb.append( upper(i) / _unit );
+				sb.append("\"} ").append(total).append('\n');
+			}
+			total += _counts[_counts.length - 1].sum();
+			sb.append(_name).append("_bucket{le=\"+Inf\"} ").append(total).append('\n');
+			sb.append(_name).append("_sum ");
+			if( _unit == 1 ) sb.append( _sum.sum() );
+			else sb.append( _sum.sum() / _unit );
+			sb.append('\n');
+			sb.append(_name).append("_count ").append(total).append('\n');
+		}
+	}
+}
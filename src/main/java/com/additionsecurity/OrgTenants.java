@@ -0,0 +1,271 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+import javax.xml.bind.DatatypeConverter;
+
+// The orgs a gateway accepts reports for, each with its own quota of reports a
+// second and a day.  Org IDs (SHA1, 20 bytes) are looked up straight from the
+// bytes they arrive in, in a fixed open-addressed table.  Every tenant keeps its
+// own quota state and lock, so one tenant's burst only ever uses up its own quota.
+class OrgTenants {
+
+	private static final int ORG_SIZE = 20;
+
+	static class Tenant {
+		final byte[] id;
+		final String hex;
+		final int rate;    // a second; 0 for no limit
+		final long daily;  // a UTC day; 0 for no limit
+
+		// Only ever go up; stats() reports differences
+		final LongAdder accepted = new LongAdder();
+		final LongAdder overRate = new LongAdder();
+		final LongAdder overDaily = new LongAdder();
+		private long _lastAccepted, _lastOverRate, _lastOverDaily;
+
+		private long _sec, _day;
+		private int _secCount;
+		private long _dayCount;
+
+		Tenant(byte[] id, String hex, int rate, long daily)
+		{
+			this.id = id;
+			this.hex = hex;
+			this.rate = rate;
+			this.daily = daily;
+		}
+
+		// Takes one report off the quotas as of now (in seconds); false if
+		// either is used up
+		boolean admit(long now)
+		{
+			synchronized( this ){
+				if( now != _sec ){
+					_sec = now;
+					_secCount = 0;
+				}
+				final long day = now / 86400;
+				if( day != _day ){
+					_day = day;
+					_dayCount = 0;
+				}
+				if( rate > 0 && _secCount >= rate ){
+					overRate.increment();
+					return false;
+				}
+				if( daily > 0 && _dayCount >= daily ){
+					overDaily.increment();
+					return false;
+				}
+				_secCount++;
+				_dayCount++;
+			}
+			accepted.increment();
+			return true;
+		}
+	}
+
+	private final Tenant[] _tenants;
+	private final Tenant[] _table;
+	private final int _mask;
+
+	// Orgs come from input.limit_orgs (comma separated hex) plus input.limit_org,
+	// an org listed twice being one tenant; quotas from input.org_rate /
+	// input.org_daily, or input.org_quota.<org> (in any case) as "rate,daily"
+	// for a particular one.  Returns null if there are no orgs.
+	public static OrgTenants create(Properties prop) throws Exception
+	{
+		final ArrayList<String> orgs = new ArrayList<String>();
+		final String one = prop.getProperty("input.limit_org",null);
+		if( one != null ) orgs.add(one.trim().toLowerCase());
+		final String many = prop.getProperty("input.limit_orgs","");
+		for( String o : many.split(",") ){
+			final String hex = o.trim().toLowerCase();
+			if( !hex.isEmpty() && !orgs.contains(hex) ) orgs.add(hex);
+		}
+		if( orgs.isEmpty() ) return null;
+
+		final String prefix = "input.org_quota.";
+		final HashMap<String,String> quotas = new HashMap<String,String>();
+		for( String key : prop.stringPropertyNames() ){
+			if( !key.regionMatches(true, 0, prefix, 0, prefix.length()) ) continue;
+			final String hex = key.substring(prefix.length()).trim().toLowerCase();
+			if( quotas.put(hex, prop.getProperty(key)) != null )
+				throw new Exception("duplicate " + prefix + hex);
+		}
+
+		final int rate = Integer.parseInt(prop.getProperty("input.org_rate","0"));
+		if( rate < 0 ) throw new Exception("input.org_rate");
+		final long daily = Long.parseLong(prop.getProperty("input.org_daily","0"));
+		if( daily < 0 ) throw new Exception("input.org_daily");
+
+		final ArrayList<Tenant> tenants = new ArrayList<Tenant>();
+		for( String hex : orgs ){
+			// ORG is SHA1, aka 20 bytes, 40 hex chars
+			if( hex.length() != 40 )
+				throw new Exception("input.limit_org(s) must be 40 hex chars");
+			final byte[] id = DatatypeConverter.parseHexBinary(hex);
+
+			int r = rate;
+			long d = daily;
+			final String q = quotas.get(hex);
+			if( q != null ){
+				final String[] p = q.split(",");
+				if( p.length != 2 ) throw new Exception("input.org_quota." + hex);
+				r = Integer.parseInt(p[0].trim());
+				d = Long.parseLong(p[1].trim());
+				if( r < 0 || d < 0 ) throw new Exception("input.org_quota." + hex);
+			}
+			tenants.add( new Tenant(id, hex, r, d) );
+		}
+		return new OrgTenants( tenants.toArray(new Tenant[tenants.size()]) );
+	}
+
+	private OrgTenants(Tenant[] tenants) throws Exception
+	{
+		_tenants = tenants;
+		int size = 4;
+		while( size < (tenants.length * 2) ) size <<= 1;
+		_table = new Tenant[size];
+		_mask = size - 1;
+
+		for( Tenant t : tenants ){
+			int i = hash(t.id, 0) & _mask;
+			while( _table[i] != null ){
+				if( same(_table[i].id, t.id, 0) ) throw new Exception("duplicate org " + t.hex);
+				i = (i + 1) & _mask;
+			}
+			_table[i] = t;
+		}
+	}
+
+	public Tenant first()
+	{
+		return _tenants[0];
+	}
+
+	public String description()
+	{
+		StringBuilder sb = new StringBuilder();
+		for( int i=0; i<_tenants.length; i++ ){
+			final Tenant t = _tenants[i];
+			if( i > 0 ) sb.append(",");
+			sb.append(t.hex);
+			if( t.rate > 0 || t.daily > 0 ) sb.append("(").append(t.rate).append("/s,")
+				.append(t.daily).append("/day)");
+		}
+		return sb.toString();
+	}
+
+	// Per tenant counts since the last call, one line each
+	public synchronized String stats()
+	{
+		StringBuilder sb = new StringBuilder();
+		for( Tenant t : _tenants ){
+			final long accepted = t.accepted.sum();
+			final long overRate = t.overRate.sum();
+			final long overDaily = t.overDaily.sum();
+			sb.append("Tenant ").append(t.hex);
+			sb.append(": Accepted=").append(accepted - t._lastAccepted);
+			sb.append(" OverRate=").append(overRate - t._lastOverRate);
+			sb.append(" OverDaily=").append(overDaily - t._lastOverDaily);
+			sb.append("\n");
+			t._lastAccepted = accepted;
+			t._lastOverRate = overRate;
+			t._lastOverDaily = overDaily;
+		}
+		return sb.toString();
+	}
+
+	// Per tenant counters (since startup) for /metrics, labeled by org
+	public void metrics(StringBuilder sb)
+	{
+		Metrics.header(sb, "asgw_tenant_accepted_total", "Reports accepted, by tenant", "counter");
+		for( Tenant t : _tenants ) Metrics.sample(sb, "asgw_tenant_accepted_total", "org", t.hex, t.accepted.sum());
+		Metrics.header(sb, "asgw_tenant_over_rate_total", "Reports dropped over a tenant's rate", "counter");
+		for( Tenant t : _tenants ) Metrics.sample(sb, "asgw_tenant_over_rate_total", "org", t.hex, t.overRate.sum());
+		Metrics.header(sb, "asgw_tenant_over_daily_total", "Reports dropped over a tenant's daily quota", "counter");
+		for( Tenant t : _tenants ) Metrics.sample(sb, "asgw_tenant_over_daily_total", "org", t.hex, t.overDaily.sum());
+	}
+
+	// The tenant for the org ID in b[off..off+len), or null
+	public Tenant get(byte[] b, int off, int len)
+	{
+		if( len != ORG_SIZE ) return null;
+		int i = hash(b, off) & _mask;
+		Tenant t;
+		while( (t = _table[i]) != null ){
+			if( same(t.id, b, off) ) return t;
+			i = (i + 1) & _mask;
+		}
+		return null;
+	}
+
+	// Same, reading the org ID in place (absolute gets; b is untouched)
+	public Tenant get(ByteBuffer b, int off, int len)
+	{
+		if( len != ORG_SIZE ) return null;
+		final int h = (b.get(off) & 0xff) | ((b.get(off + 1) & 0xff) << 8) |
+			((b.get(off + 2) & 0xff) << 16) | ((b.get(off + 3) & 0xff) << 24);
+		int i = h & _mask;
+		Tenant t;
+		while( (t = _table[i]) != null ){
+			boolean same = true;
+			for( int k=0; k<ORG_SIZE && same; k++ ) same = ( t.id[k] == b.get(off + k) );
+			if( same ) return t;
+			i = (i + 1) & _mask;
+		}
+		return null;
+	}
+
+	// Same, without copying the org ID out of the message
+	public Tenant get(ByteString bs)
+	{
+		if( bs.size() != ORG_SIZE ) return null;
+		final int h = (bs.byteAt(0) & 0xff) | ((bs.byteAt(1) & 0xff) << 8) |
+			((bs.byteAt(2) & 0xff) << 16) | ((bs.byteAt(3) & 0xff) << 24);
+		int i = h & _mask;
+		Tenant t;
+		while( (t = _table[i]) != null ){
+			boolean same = true;
+			for( int k=0; k<ORG_SIZE && same; k++ ) same = ( t.id[k] == bs.byteAt(k) );
+			if( same ) return t;
+			i = (i + 1) & _mask;
+		}
+		return null;
+	}
+
+	// Org IDs are hashes already
+	private static int hash(byte[] b, int off)
+	{
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) |
+			((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+	}
+
+	private static boolean same(byte[] id, byte[] b, int off)
+	{
+		for( int k=0; k<ORG_SIZE; k++ ) if( id[k] != b[off + k] ) return false;
+		return true;
+	}
+}
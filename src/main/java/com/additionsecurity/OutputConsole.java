@@ -15,6 +15,8 @@
 
 package com.additionsecurity;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.Properties;
 import java.io.FileOutputStream;
 import java.lang.Exception;
@@ -48,11 +50,37 @@ class OutputConsole implements ICTIOutput {
 		return DESC;
 	}
 
+	public boolean isBlocking()
+	{
+		return true;
+	}
+
+	public int pending()
+	{
+		return 0;
+	}
+
 	public void nowTick(long ts)
 	{
 		// NO-OP
 	}
 
+	public OutputSink sink(int items)
+	{
+		return OutputSink.lines(items);
+	}
+
+	public void output(OutputSink sink) throws ICTIOutputException
+	{
+		try {
+			final ByteBuf b = sink.buffer();
+			b.getBytes( b.readerIndex(), System.out, b.readableBytes() );
+			System.out.flush();
+		} catch(Exception e){
+			// Swallow on purpose
+		}
+	}
+
 	public void output(byte[][] datas) throws ICTIOutputException
 	{
 		try {
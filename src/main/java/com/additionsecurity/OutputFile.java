@@ -15,6 +15,8 @@
 
 package com.additionsecurity;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.Properties;
 import java.io.FileOutputStream;
 import java.lang.Exception;
@@ -72,11 +74,37 @@ class OutputFile implements ICTIOutput {
 		return sb.toString();
 	}
 
+	public boolean isBlocking()
+	{
+		return true;
+	}
+
+	public int pending()
+	{
+		return 0;
+	}
+
 	public void nowTick(long ts)
 	{
 		// NO-OP
 	}
 
+	public OutputSink sink(int items)
+	{
+		return OutputSink.lines(items);
+	}
+
+	public void output(OutputSink sink) throws ICTIOutputException
+	{
+		try {
+			final ByteBuf b = sink.buffer();
+			b.getBytes( b.readerIndex(), _fos, b.readableBytes() );
+		}
+		catch(Exception e){
+			throw new ICTIOutputException("write",e);
+		}
+	}
+
 	public void output(byte[][] datas) throws ICTIOutputException
 	{
 		try {
@@ -51,6 +51,9 @@ class OutputS3 implements ICTIOutput {
 	private static String _ext;
 	private static Buffer _header;
 
+	// Items sent to the worker verticle that it hasn't consumed yet
+	private static final AtomicInteger _pending = new AtomicInteger();
+
 	private int _maxMemory;
 	private long _interval;
 
@@ -91,6 +94,7 @@ class OutputS3 implements ICTIOutput {
 
 		// Configure our worker verticle
 		_eb = App.vertx.eventBus();
+		OutputSink.registerCodec( _eb );
 		DeploymentOptions options = new DeploymentOptions().setWorker(true);
 		MsgWorkerVerticle verticle = new MsgWorkerVerticle(_endpoint, _bucket, 
 			_accessKey, _secretKey, _maxMemory, _interval);
@@ -111,20 +115,48 @@ class OutputS3 implements ICTIOutput {
 		return sb.toString();
 	}
 
+	public boolean isBlocking()
+	{
+		// Items are handed to the worker verticle via the event bus
+		return false;
+	}
+
+	public int pending()
+	{
+		return _pending.get();
+	}
+
 	public void nowTick(long ts)
 	{
 		// NO-OP
 	}
 
+	public OutputSink sink(int items)
+	{
+		return OutputSink.lines(items);
+	}
+
 	public void output(byte[][] datas) throws ICTIOutputException
 	{
+		final OutputSink sink = sink( datas.length );
+		for( int i=0; i<datas.length; i++){
+			if( datas[i] == null ) continue;
+			sink.add( datas[i] );
+		}
+		output( sink );
+	}
+
+	// The whole sink goes to the worker as one message, which appends its
+	// buffer to the batch as is
+	public void output(OutputSink sink) throws ICTIOutputException
+	{
+		if( sink.count() == 0 ) return;
+		_pending.addAndGet( sink.count() );
 		try {
-			for( int i=0; i<datas.length; i++){
-				if( datas[i] == null ) continue;
-				_eb.send("cti.s3", datas[i]);
-			}
+			_eb.send("cti.s3", sink, OutputSink.deliveryOptions());
 		}
 		catch(Exception e){
+			_pending.addAndGet( -sink.count() );
 			throw new ICTIOutputException("write",e);
 		}
 	}
@@ -229,17 +261,15 @@ class OutputS3 implements ICTIOutput {
 
 			vertx.eventBus().consumer("cti.s3", message -> {
 
-				// Process the payload
-				byte[] payload = (byte[])message.body();
-				if( payload != null && payload.length > 0 ){
+				// Process the payload; items come already newline terminated
+				final OutputSink payload = (OutputSink)message.body();
+				if( payload != null ){
 					//if( App.DEBUG ) System.out.println("+ Processing message");
+					_pending.addAndGet( -payload.count() );
 
-					final Buffer b = Buffer.buffer(payload);
-					b.appendByte( (byte)0x0a);
+					final Buffer b = payload.toBuffer();
 
 					// Save the payload immediately to our memory buffer
-					//mem_buffer.b.appendBytes(payload);
-					//mem_buffer.b.appendByte('\n');
 					mem_buffer.b.appendBuffer( b );
 
 					// Write the payload to our safety cache; it's best-effort
@@ -286,7 +316,11 @@ class OutputS3 implements ICTIOutput {
 					"."+_ext;
 
 				// Do the upload
+				final long t0 = System.nanoTime();
+				final Events.Flush ev = Events.flush("s3");
 				int responseCode = s3_put( objectName, buffer_to_send );
+				Metrics.flush.record( System.nanoTime() - t0 );
+				if( ev != null ) ev.done( buffer_to_send.length(), responseCode );
 
 				// We need to close our safety file regardless
 				_cacheFile.f.close();
@@ -0,0 +1,258 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.MessageCodec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// A set of items for an output, in one buffer.  Transforms write each item
+// straight into buffer(), between begin() and end(), and the output frames it
+// there (an output's own sink writes its framing in open()/close()), so the
+// output can send the buffer, or pieces of it, as is.  Each item's frame is
+// from(i) to to(i) in the buffer.
+//
+// A plain OutputSink has no framing; it's what outputs that only take byte[][]
+// get, see ICTIOutput.sink().
+public class OutputSink {
+
+	private static final int ITEM_SIZE = 512; // a first guess at an item, framed
+
+	protected final ByteBuf _buf;
+	private final int _base;
+	private int[] _from;
+	private int[] _to;
+	private long[] _sum; // item bytes (without framing) up to and including each item
+	private int _count;
+	private int _mark, _start;
+	private ArrayList<CTIItem[]> _reports; // see report()
+
+	public OutputSink(int items)
+	{
+		this( Unpooled.buffer( Math.max(items, 1) * ITEM_SIZE ), items );
+	}
+
+	public OutputSink(ByteBuf buf, int items)
+	{
+		_buf = buf;
+		_base = buf.writerIndex();
+		items = Math.max( items, 1 );
+		_from = new int[items];
+		_to = new int[items];
+		_sum = new long[items];
+	}
+
+	// Where the current item goes
+	public ByteBuf buffer()
+	{
+		return _buf;
+	}
+
+	public int count()
+	{
+		return _count;
+	}
+
+	// Bytes of the items themselves
+	public long bytes()
+	{
+		return ( _count == 0 ) ? 0 : _sum[_count - 1];
+	}
+
+	public int from(int i)
+	{
+		return _from[i];
+	}
+
+	public int to(int i)
+	{
+		return _to[i];
+	}
+
+	public void begin()
+	{
+		_mark = _buf.writerIndex();
+		open();
+		_start = _buf.writerIndex();
+	}
+
+	// wrote is false if the transform didn't write an item, in which case its
+	// framing is taken back out; returns the item's size (0 if it was dropped)
+	public int end(boolean wrote)
+	{
+		if( !wrote ){
+			_buf.writerIndex( _mark );
+			return 0;
+		}
+		final int len = _buf.writerIndex() - _start;
+		final int from = close( _mark, _start );
+		if( from < 0 ){
+			_buf.writerIndex( _mark );
+			return 0;
+		}
+
+		if( _count == _from.length ){
+			_from = Arrays.copyOf( _from, _count * 2 );
+			_to = Arrays.copyOf( _to, _count * 2 );
+			_sum = Arrays.copyOf( _sum, _count * 2 );
+		}
+		_from[_count] = from;
+		_to[_count] = _buf.writerIndex();
+		_sum[_count] = bytes() + len;
+		_count++;
+		return len;
+	}
+
+	// An item that's already encoded
+	public void add(byte[] data)
+	{
+		begin();
+		_buf.writeBytes( data );
+		end( true );
+	}
+
+	// Takes back the items past the first count, e.g. those of a report that
+	// failed part way
+	public void truncate(int count)
+	{
+		if( count >= _count ) return;
+		_buf.writerIndex( count == 0 ? _base : _to[count - 1] );
+		_count = count;
+	}
+
+	// The items of a report are in the sink, so if it isn't delivered the
+	// input can take the report back (see ICTIInput.undo())
+	public void report(CTIItem[] items)
+	{
+		if( _reports == null ) _reports = new ArrayList<CTIItem[]>();
+		_reports.add( items );
+	}
+
+	public List<CTIItem[]> reports()
+	{
+		if( _reports == null ) return Collections.emptyList();
+		return _reports;
+	}
+
+	// Framing before an item
+	protected void open()
+	{
+	}
+
+	// Framing after an item; mark is where the writer was at begin() and start
+	// where the item starts.  Returns where the item's frame starts, or -1 if
+	// the item can't be framed, which drops it.
+	protected int close(int mark, int start)
+	{
+		return mark;
+	}
+
+	// Each item (with its framing) as an array of its own
+	public byte[][] items()
+	{
+		final byte[][] items = new byte[_count][];
+		for( int i=0; i<_count; i++ ){
+			items[i] = new byte[ _to[i] - _from[i] ];
+			_buf.getBytes( _from[i], items[i] );
+		}
+		return items;
+	}
+
+	// Items that each end with a newline, in one buffer to be written as is
+	public static OutputSink lines(int items)
+	{
+		return new OutputSink(items){
+			@Override protected int close(int mark, int start)
+			{
+				_buf.writeByte( 0x0a );
+				return mark;
+			}
+		};
+	}
+
+	// Everything written, as a Vert.x Buffer (not a copy)
+	public Buffer toBuffer()
+	{
+		return Buffer.buffer( _buf );
+	}
+
+	// Lets a sink be sent on the event bus, with DeliveryOptions from
+	// deliveryOptions(): a local send passes the sink itself, rather than a
+	// copy; a send that goes over the wire carries its buffer and offsets
+	static final String CODEC = "asgw.sink";
+
+	static void registerCodec(EventBus eb)
+	{
+		try {
+			eb.registerCodec( new Codec() );
+		}
+		catch(IllegalStateException e){
+			// Already registered on this event bus
+		}
+	}
+
+	static DeliveryOptions deliveryOptions()
+	{
+		return new DeliveryOptions().setCodecName( CODEC );
+	}
+
+	static final class Codec implements MessageCodec<OutputSink,OutputSink> {
+		public void encodeToWire(Buffer buffer, OutputSink s)
+		{
+			final int length = s._buf.writerIndex() - s._base;
+			buffer.appendInt( 4 + s._count * 16 + 4 + length ); // what follows
+			buffer.appendInt( s._count );
+			for( int i=0; i<s._count; i++ ){
+				buffer.appendInt( s._from[i] - s._base );
+				buffer.appendInt( s._to[i] - s._base );
+				buffer.appendLong( s._sum[i] );
+			}
+			buffer.appendInt( length );
+			buffer.appendBytes( s.toBuffer().getBytes( s._base, s._buf.writerIndex() ) );
+		}
+
+		public OutputSink decodeFromWire(int pos, Buffer buffer)
+		{
+			pos += 4; // the whole length
+			final int count = buffer.getInt( pos );
+			pos += 4;
+			final OutputSink s = new OutputSink( Unpooled.buffer(), count );
+			for( int i=0; i<count; i++ ){
+				s._from[i] = buffer.getInt( pos );
+				s._to[i] = buffer.getInt( pos + 4 );
+				s._sum[i] = buffer.getLong( pos + 8 );
+				pos += 16;
+			}
+			final int length = buffer.getInt( pos );
+			pos += 4;
+			s._buf.writeBytes( buffer.getBytes( pos, pos + length ) );
+			s._count = count;
+			return s;
+		}
+
+		public OutputSink transform(OutputSink s){ return s; }
+		public String name(){ return CODEC; }
+		public byte systemCodecID(){ return -1; }
+	}
+}
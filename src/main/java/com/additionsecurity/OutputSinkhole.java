@@ -48,6 +48,16 @@ class OutputSinkhole implements ICTIOutput {
 		return DESC;
 	}
 
+	public boolean isBlocking()
+	{
+		return false;
+	}
+
+	public int pending()
+	{
+		return 0;
+	}
+
 	public void nowTick(long ts)
 	{
 		// NO-OP
@@ -57,4 +67,9 @@ class OutputSinkhole implements ICTIOutput {
 	{
 		// sinkhole: do nothing/throw it away
 	}
+
+	public void output(OutputSink sink) throws ICTIOutputException
+	{
+		// sinkhole: do nothing/throw it away
+	}
 }
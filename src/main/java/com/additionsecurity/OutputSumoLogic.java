@@ -46,6 +46,9 @@ class OutputSumoLogic implements ICTIOutput {
 	private static String _ext;
 	private static Buffer _header;
 
+	// Items sent to the worker verticle that it hasn't consumed yet
+	private static final AtomicInteger _pending = new AtomicInteger();
+
 	private int _maxMemory;
 	private long _interval;
 
@@ -75,6 +78,7 @@ class OutputSumoLogic implements ICTIOutput {
 
 		// Configure our worker verticle
 		_eb = App.vertx.eventBus();
+		OutputSink.registerCodec( _eb );
 		DeploymentOptions options = new DeploymentOptions().setWorker(true);
 		MsgWorkerVerticle verticle = new MsgWorkerVerticle(_endpoint, _maxMemory, _interval);
 		App.vertx.deployVerticle(verticle, options, res-> {
@@ -95,20 +99,48 @@ class OutputSumoLogic implements ICTIOutput {
 		return sb.toString();
 	}
 
+	public boolean isBlocking()
+	{
+		// Items are handed to the worker verticle via the event bus
+		return false;
+	}
+
+	public int pending()
+	{
+		return _pending.get();
+	}
+
 	public void nowTick(long ts)
 	{
 		// NO-OP
 	}
 
+	public OutputSink sink(int items)
+	{
+		return OutputSink.lines(items);
+	}
+
 	public void output(byte[][] datas) throws ICTIOutputException
 	{
+		final OutputSink sink = sink( datas.length );
+		for( int i=0; i<datas.length; i++){
+			if( datas[i] == null ) continue;
+			sink.add( datas[i] );
+		}
+		output( sink );
+	}
+
+	// The whole sink goes to the worker as one message, which appends its
+	// buffer to the batch as is
+	public void output(OutputSink sink) throws ICTIOutputException
+	{
+		if( sink.count() == 0 ) return;
+		_pending.addAndGet( sink.count() );
 		try {
-			for( int i=0; i<datas.length; i++){
-				if( datas[i] == null ) continue;
-				_eb.send("cti.sumologic", datas[i]);
-			}
+			_eb.send("cti.sumologic", sink, OutputSink.deliveryOptions());
 		}
 		catch(Exception e){
+			_pending.addAndGet( -sink.count() );
 			throw new ICTIOutputException("write",e);
 		}
 	}
@@ -218,17 +250,15 @@ class OutputSumoLogic implements ICTIOutput {
 
 			vertx.eventBus().consumer("cti.sumologic", message -> {
 
-				// Process the payload
-				byte[] payload = (byte[])message.body();
-				if( payload != null && payload.length > 0 ){
+				// Process the payload; items come already newline terminated
+				final OutputSink payload = (OutputSink)message.body();
+				if( payload != null ){
 					//if( App.DEBUG ) System.out.println("+ Processing message");
+					_pending.addAndGet( -payload.count() );
 
-					final Buffer b = Buffer.buffer(payload);
-					b.appendByte( (byte)0x0a);
+					final Buffer b = payload.toBuffer();
 
 					// Save the payload immediately to our memory buffer
-					//mem_buffer.b.appendBytes(payload);
-					//mem_buffer.b.appendByte('\n');
 					mem_buffer.b.appendBuffer( b );
 
 					// Write the payload to our safety cache; it's best-effort
@@ -293,9 +323,13 @@ class OutputSumoLogic implements ICTIOutput {
 				HttpClientOptions opts = new HttpClientOptions()
 					.setDefaultPort(443).setSsl(true).setTrustAll(true);
 				HttpClient client = vertx.createHttpClient(opts);
+				final long t0 = System.nanoTime();
+				final Events.Flush ev = Events.flush("sumologic");
 				client.postAbs(_endpoint, new Handler<HttpClientResponse>(){
 						@Override
 						public void handle(HttpClientResponse event){
+							Metrics.flush.record( System.nanoTime() - t0 );
+							if( ev != null ) ev.done( buffer_to_send.length(), event.statusCode() );
 							if( event.statusCode() == 200 ){
 								if( App.DEBUG ) System.out.println("+ Successfully sent to SumoLogic");
 								// Successfully uploaded; we can delete the old safety file
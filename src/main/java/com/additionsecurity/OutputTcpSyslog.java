@@ -15,18 +15,18 @@
 
 package com.additionsecurity;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.Properties;
 import java.lang.Exception;
 import java.lang.StringBuilder;
-import java.time.Instant;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
 import java.text.DateFormat;
 import java.util.Date;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.io.OutputStream;
 import java.lang.Integer;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.nio.charset.Charset;
 
 import com.additionsecurity.ICTIOutput.ICTIOutputException;
@@ -48,6 +48,9 @@ class OutputTcpSyslog implements ICTIOutput {
 	private Object _os_socket_lock = new Object();
 	private OutputStream _os_socket;
 
+	// Callers currently inside output(), i.e. queued on the socket
+	private final AtomicInteger _pending = new AtomicInteger();
+
 	private boolean _bom;
 	private int _facility;
 	private int _severity;
@@ -119,54 +122,127 @@ class OutputTcpSyslog implements ICTIOutput {
 		return sb.toString();
 	}
 
+	public boolean isBlocking()
+	{
+		return true;
+	}
+
+	public int pending()
+	{
+		return _pending.get();
+	}
+
 	public void nowTick(long ts)
 	{
-		// TODO
+		header();
 	}
 
+	// The header for the current second; made once a second, whoever comes first
+	private static final class Header {
+		final long ts;
+		final byte[] bytes;
 
-        private static DateTimeFormatter _formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'")
-                .withZone(ZoneId.systemDefault());
+		Header(long ts, byte[] bytes)
+		{
+			this.ts = ts;
+			this.bytes = bytes;
+		}
+	}
+	private volatile Header _header;
 
-	public void output(byte[][] datas) throws ICTIOutputException
+	private byte[] header()
 	{
-		// TODO: find the largest datas, allocate one byte array w/ header for the largest,
-		// then reuse it for everything by copying over existing and just specifying shorter
-		// length in the packet send
+		final long ts = System.currentTimeMillis() / 1000;
+		final Header h = _header;
+		if( h != null && h.ts == ts ) return h.bytes;
 
-		// Calculate a header once
-		final String ds = _formatter.format(Instant.now());
-		final byte[] dsb = ds.getBytes();
+		final byte[] dsb = TimeCache.SYSLOG.get( ts );
 		final byte[] header = new byte[ _h1.length + dsb.length + _h2.length ];
 
 		System.arraycopy(_h1, 0, header, 0, _h1.length);
 		System.arraycopy(dsb, 0, header, _h1.length, dsb.length);
 		System.arraycopy(_h2, 0, header, (_h1.length+dsb.length), _h2.length);
 
-		int i;
-		for( i=0; i<datas.length; i++){
-			if(datas[i] == null) continue;
-			try {
-				// NOTE: +6 is room for 5 number chars + space:
-				final byte[] payload = new byte[header.length + datas[i].length + 6];
-				if( payload.length > MAX_SIZE )
-					throw new Exception("Payload size exceeds syslog max");
+		_header = new Header( ts, header );
+		return header;
+	}
+
+	// Each item framed as syslog over TCP (octet counting): its length, a
+	// space, the header and then the item.  The length isn't known until the
+	// item is written, so room for it is left in front and the frame starts
+	// wherever the length ends up starting.
+	private static class Frames extends OutputSink {
+		private final byte[] _header;
+
+		Frames(int items, byte[] header)
+		{
+			super(items);
+			_header = header;
+		}
+
+		@Override protected void open()
+		{
+			// NOTE: 6 is room for 5 number chars + space
+			_buf.writeZero(6);
+			_buf.writeBytes(_header);
+		}
 
-				System.arraycopy(header, 0, payload, 6, header.length);
-				System.arraycopy(datas[i], 0, payload, header.length + 6, datas[i].length);
+		@Override protected int close(int mark, int start)
+		{
+			final int len = _buf.writerIndex() - (mark + 6);
+			final byte[] len_payload = (String.valueOf(len) + " ").getBytes(_UTF8);
+			if( len_payload.length + len > MAX_SIZE ){
+				// Too big for a frame (and maybe for the room left for its length)
+				App.reportDroppedData();
+				return -1;
+			}
+			final int off = mark + 6 - len_payload.length;
+			_buf.setBytes( off, len_payload );
+			return off;
+		}
+	}
+
+	public OutputSink sink(int items)
+	{
+		return new Frames( items, header() );
+	}
+
+	public void output(byte[][] datas) throws ICTIOutputException
+	{
+		final OutputSink sink = sink( datas.length );
+		for( int i=0; i<datas.length; i++ ){
+			if( datas[i] == null ) continue;
+			sink.add( datas[i] );
+		}
+		output( sink );
+	}
 
-				// Prefix with the length
-				int len = payload.length - 6;
-				String len_str = String.valueOf(len) + " ";
-				byte[] len_payload = len_str.getBytes(_UTF8);
-				int off = 6 - len_payload.length;
-				System.arraycopy( len_payload, 0, payload, off, len_payload.length );
+	public void output(OutputSink sink) throws ICTIOutputException
+	{
+		final int count = sink.count();
+		_pending.addAndGet( count );
+		try {
+			send(sink);
+		}
+		finally {
+			_pending.addAndGet( -count );
+		}
+	}
 
+	private void send(OutputSink sink) throws ICTIOutputException
+	{
+		// The frames are written straight out of the sink's buffer
+		final ByteBuf b = sink.buffer();
+		int i;
+		for( i=0; i<sink.count(); i++){
+			try {
+				final int off = b.arrayOffset() + sink.from(i);
+				final int len = sink.to(i) - sink.from(i);
 				int tries = 2;
 				while( tries-- > 0 ){
 					synchronized(_os_socket_lock){
 						try {
-							_os_socket.write( payload, off, (payload.length - off) );
+							_os_socket.write( b.array(), off, len );
 							break;
 
 						} catch(Exception ioe){
@@ -182,8 +258,15 @@ class OutputTcpSyslog implements ICTIOutput {
 								// tries == 1
 
 							// refresh/open a new connection
-							Socket sock = new Socket(_addr, _port);
-							_os_socket = sock.getOutputStream();
+							final Events.Reconnect ev = Events.reconnect( _host, _port );
+							try {
+								Socket sock = new Socket(_addr, _port);
+								_os_socket = sock.getOutputStream();
+							} catch(Exception e){
+								if( ev != null ) ev.done( e );
+								throw e;
+							}
+							if( ev != null ) ev.done( null );
 
 							// and loop
 						}
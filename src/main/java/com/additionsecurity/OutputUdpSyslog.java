@@ -15,13 +15,12 @@
 
 package com.additionsecurity;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.Properties;
 import java.io.FileOutputStream;
 import java.lang.Exception;
 import java.lang.StringBuilder;
-import java.time.Instant;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
 import java.text.DateFormat;
 import java.util.Date;
 import java.net.DatagramSocket;
@@ -118,53 +117,78 @@ class OutputUdpSyslog implements ICTIOutput {
 	}
 
 
-        private static DateTimeFormatter _formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'")
-                .withZone(ZoneId.systemDefault());
+	public boolean isBlocking()
+	{
+		// Datagram sends don't wait on the remote side
+		return false;
+	}
+
+	public int pending()
+	{
+		return 0;
+	}
 
 	public void nowTick(long ts)
 	{
-		_datestamp = _formatter.format(Instant.now()).getBytes();
+		_datestamp = TimeCache.SYSLOG.get( System.currentTimeMillis() / 1000 );
 
 	}
 	private byte[] _datestamp;
 
+	// Each item is a datagram of its own: the header, then the item
+	private class Datagrams extends OutputSink {
+		private final byte[] _ds;
+		private final int _header;
+
+		Datagrams(int items, byte[] ds)
+		{
+			super(items);
+			_ds = ds;
+			_header = _h1.length + ds.length + _h2.length;
+		}
+
+		@Override protected void open()
+		{
+			_buf.writeBytes(_h1).writeBytes(_ds).writeBytes(_h2);
+		}
+	}
+
+	public OutputSink sink(int items)
+	{
+		return new Datagrams( items, _datestamp ); // Get ref due to TOCTOU
+	}
+
 	public void output(byte[][] datas) throws ICTIOutputException
 	{
-		// Calculate a header once
-		/*
-		final String ds = _formatter.format(Instant.now());
-		final byte[] dsb = ds.getBytes();
-		*/
-
-		/*
-		final byte[] header = new byte[ _h1.length + dsb.length + _h2.length ];
-		System.arraycopy(_h1, 0, header, 0, _h1.length);
-		System.arraycopy(dsb, 0, header, _h1.length, dsb.length);
-		System.arraycopy(_h2, 0, header, (_h1.length+dsb.length), _h2.length);
-		*/
-
-		// Find largest data item
-		int i, largest=0;
-		for( i=0; i<datas.length; i++){
+		final OutputSink sink = sink( datas.length );
+		for( int i=0; i<datas.length; i++ ){
 			if( datas[i] == null ) continue;
+			sink.add( datas[i] );
+		}
+		output( sink );
+	}
+
+	public void output(OutputSink sink) throws ICTIOutputException
+	{
+		if( !(sink instanceof Datagrams) ){
+			// Not one of ours, so without the headers
+			output( sink.items() );
+			return;
+		}
+		final Datagrams d = (Datagrams)sink;
+		int i;
+		for( i=0; i<d.count(); i++ ){
 			// TODO:
-			if( datas[i].length > 65535 ) throw new ICTIOutputException("Message item size exceeds max");
-			if( datas[i].length > largest ) largest = datas[i].length;
+			if( d.to(i) - d.from(i) - d._header > 65535 )
+				throw new ICTIOutputException("Message item size exceeds max");
 		}
 
-		// Now allocate one byte buffer that can fit everything
-		byte[] ds = _datestamp; // Get ref due to TOCTOU
-		final int o = _h1.length + ds.length + _h2.length;
-		final byte[] payload = new byte[ o + largest ];
-		System.arraycopy(_h1, 0, payload, 0, _h1.length);
-		System.arraycopy(ds, 0, payload, _h1.length, ds.length);
-		System.arraycopy(_h2, 0, payload, (_h1.length+ds.length), _h2.length);
-		
-		for( i=0; i<datas.length; i++){
-			if( datas[i] == null ) continue;
+		// The datagrams are sent straight out of the sink's buffer
+		final ByteBuf b = d.buffer();
+		for( i=0; i<d.count(); i++ ){
 			try {
-				System.arraycopy(datas[i], 0, payload, o, datas[i].length);
-				final DatagramPacket packet = new DatagramPacket(payload, (o + datas[i].length));
+				final DatagramPacket packet = new DatagramPacket(b.array(),
+					b.arrayOffset() + d.from(i), d.to(i) - d.from(i));
 				_socket.send(packet);
 			}
 			catch(Exception e){
@@ -0,0 +1,67 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+// Pre-encoded output fragments (e.g. a CEF header with its title) keyed by
+// (eventId, subId, impact).  It's direct mapped: a key that lands on a taken
+// slot just replaces what was there.  Entries are immutable, so a lookup racing
+// a replacement either sees a whole entry or misses; there's no locking.
+final class PrefixCache {
+
+	private static final class Entry {
+		final long event, subevent;
+		final int impact;
+		final byte[] bytes;
+
+		Entry(long event, long subevent, int impact, byte[] bytes)
+		{
+			this.event = event;
+			this.subevent = subevent;
+			this.impact = impact;
+			this.bytes = bytes;
+		}
+	}
+
+	private final Entry[] _table;
+
+	// size is rounded up to a power of two
+	PrefixCache(int size)
+	{
+		int n = 1;
+		while( n < size ) n <<= 1;
+		_table = new Entry[n];
+	}
+
+	byte[] get(long event, long subevent, int impact)
+	{
+		final Entry e = _table[ slot(event, subevent, impact) ];
+		if( e != null && e.event == event && e.subevent == subevent && e.impact == impact )
+			return e.bytes;
+		return null;
+	}
+
+	void put(long event, long subevent, int impact, byte[] bytes)
+	{
+		_table[ slot(event, subevent, impact) ] = new Entry(event, subevent, impact, bytes);
+	}
+
+	private int slot(long event, long subevent, int impact)
+	{
+		long h = (event * 0x9e3779b97f4a7c15L) ^ (subevent * 0xc2b2ae3d27d4eb4fL) ^ impact;
+		h ^= h >>> 31;
+		return (int)h & (_table.length - 1);
+	}
+}
@@ -0,0 +1,183 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+
+// The slowest HTTP requests of the current and the last interval, each with what
+// its stages took.  A request faster than every one already kept (once there are
+// enough) is turned away with a single volatile read; only the few that make it
+// in take the lock, and are copied into preallocated entries.
+class SlowRequests {
+
+	// What one request's stages took (nanoseconds), and what it carried.  The
+	// stages record into the thread's current trace, see enter()/exit().
+	static final class Trace {
+		final long start = System.nanoTime();
+		final String path;
+		final Events.Request event;
+		long parse, transform, output;
+		int bytes, items;
+
+		Trace(String path)
+		{
+			this.path = path;
+			this.event = Events.request(path);
+		}
+	}
+
+	private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<Trace>();
+
+	static void enter(Trace t){ CURRENT.set(t); }
+	static void exit(){ CURRENT.remove(); }
+	static Trace current(){ return CURRENT.get(); }
+
+	private static final class Entry {
+		long when; // ms
+		long total, parse, transform, output;
+		int bytes, items, status;
+		String path;
+	}
+
+	private final long _intervalNs;
+	private Entry[] _cur, _last;
+	private int _curCount, _lastCount;
+	private long _lastWhen; // when the last interval started, ms
+	private long _curWhen;
+	private volatile long _start;  // of the current interval, nanoTime
+	private volatile long _floor;  // a request must be slower than this to be kept
+
+	public SlowRequests(int size, int intervalSecs)
+	{
+		_intervalNs = intervalSecs * 1000000000L;
+		_cur = new Entry[size];
+		_last = new Entry[size];
+		for( int i=0; i<size; i++ ){
+			_cur[i] = new Entry();
+			_last[i] = new Entry();
+		}
+		_start = System.nanoTime();
+		_curWhen = System.currentTimeMillis();
+	}
+
+	public void offer(Trace t, int status)
+	{
+		final long now = System.nanoTime();
+		final long total = now - t.start;
+		if( (now - _start) >= _intervalNs ) rotate(now);
+		if( total <= _floor || _cur.length == 0 ) return;
+
+		synchronized( this ){
+			Entry e;
+			if( _curCount < _cur.length ) e = _cur[_curCount++];
+			else {
+				e = _cur[0];
+				for( int i=1; i<_cur.length; i++ ) if( _cur[i].total < e.total ) e = _cur[i];
+				if( total <= e.total ) return;
+			}
+			e.when = System.currentTimeMillis();
+			e.total = total;
+			e.parse = t.parse;
+			e.transform = t.transform;
+			e.output = t.output;
+			e.bytes = t.bytes;
+			e.items = t.items;
+			e.status = status;
+			e.path = t.path;
+
+			if( _curCount == _cur.length ){
+				long min = Long.MAX_VALUE;
+				for( int i=0; i<_cur.length; i++ ) min = Math.min( min, _cur[i].total );
+				_floor = min;
+			}
+		}
+	}
+
+	private synchronized void rotate(long now)
+	{
+		if( (now - _start) < _intervalNs ) return;
+		final Entry[] t = _last;
+		_last = _cur;
+		_lastCount = _curCount;
+		_lastWhen = _curWhen;
+		_cur = t;
+		_curCount = 0;
+		_curWhen = System.currentTimeMillis();
+		_floor = 0;
+		_start = now;
+	}
+
+	public synchronized String text()
+	{
+		final long now = System.nanoTime();
+		if( (now - _start) >= _intervalNs ) rotate(now);
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("Stage percentiles (ms): p50 p90 p99\n");
+		stage( sb, "parse", Metrics.parse );
+		stage( sb, "transform", Metrics.transform );
+		stage( sb, "output", Metrics.output );
+		stage( sb, "flush", Metrics.flush );
+		stage( sb, "request", Metrics.request );
+
+		final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		if( _lastCount > 0 ){
+			sb.append("\nSlowest requests, interval from ").append( df.format(new Date(_lastWhen)) ).append(":\n");
+			entries( sb, df, _last, _lastCount );
+		}
+		sb.append("\nSlowest requests, interval from ").append( df.format(new Date(_curWhen)) ).append(":\n");
+		entries( sb, df, _cur, _curCount );
+		return sb.toString();
+	}
+
+	private static void stage(StringBuilder sb, String name, Metrics.Histogram h)
+	{
+		sb.append(name);
+		sb.append(' ').append( ms( h.quantile(0.5) ) );
+		sb.append(' ').append( ms( h.quantile(0.9) ) );
+		sb.append(' ').append( ms( h.quantile(0.99) ) );
+		sb.append('\n');
+	}
+
+	private static void entries(StringBuilder sb, SimpleDateFormat df, Entry[] entries, int count)
+	{
+		sb.append("when total_ms parse_ms transform_ms output_ms bytes items status path\n");
+		final Entry[] sorted = Arrays.copyOf( entries, count );
+		Arrays.sort( sorted, new Comparator<Entry>(){
+			@Override public int compare(Entry a, Entry b){ return Long.compare(b.total, a.total); }
+		});
+		for( Entry e : sorted ){
+			sb.append( df.format(new Date(e.when)) );
+			sb.append(' ').append( ms(e.total) );
+			sb.append(' ').append( ms(e.parse) );
+			sb.append(' ').append( ms(e.transform) );
+			sb.append(' ').append( ms(e.output) );
+			sb.append(' ').append( e.bytes );
+			sb.append(' ').append( e.items );
+			sb.append(' ').append( e.status );
+			sb.append(' ').append( e.path );
+			sb.append('\n');
+		}
+	}
+
+	private static String ms(long ns)
+	{
+		return String.format("%.3f", ns / 1000000.0);
+	}
+}
@@ -0,0 +1,123 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// Timestamps (epoch seconds) already formatted, as bytes.  Event timestamps
+// are mostly within a few minutes of now, so the cache holds whole minutes
+// around now: a minute is formatted once, and its other seconds are made from
+// that by rewriting the seconds digits.  A timestamp far from now is just
+// formatted, and not kept, so odd device clocks don't push out the minutes
+// that matter.
+//
+// Minutes are direct mapped and immutable, so lookups don't lock; a lookup
+// racing a replacement either sees a whole minute or misses.
+final class TimeCache {
+
+	private static final Charset _UTF8 = Charset.forName("UTF-8");
+
+	// ISO-8601, e.g. 2016-03-16T16:50:16Z
+	static final TimeCache ISO = new TimeCache( DateTimeFormatter.ISO_INSTANT );
+
+	// Local time, e.g. Mar 16 2016 16:50:16
+	static final TimeCache LOCAL = new TimeCache( DateTimeFormatter.ofPattern("MMM dd yyyy HH:mm:ss")
+		.withZone(ZoneId.systemDefault()) );
+
+	// The syslog header's
+	static final TimeCache SYSLOG = new TimeCache( DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'")
+		.withZone(ZoneId.systemDefault()) );
+
+	private static final int MINUTES = 64; // a power of two
+
+	private static final class Minute {
+		final long minute;
+		final byte[][] seconds;
+
+		Minute(long minute, byte[][] seconds)
+		{
+			this.minute = minute;
+			this.seconds = seconds;
+		}
+	}
+
+	private final DateTimeFormatter _formatter;
+	private final Minute[] _table = new Minute[MINUTES];
+
+	TimeCache(DateTimeFormatter formatter)
+	{
+		_formatter = formatter;
+	}
+
+	byte[] get(long ts)
+	{
+		final long minute = Math.floorDiv( ts, 60L );
+		final Minute m = _table[ (int)minute & (MINUTES - 1) ];
+		if( m != null && m.minute == minute ) return m.seconds[ (int)(ts - minute * 60) ];
+
+		// Only minutes around now are worth keeping
+		final long now = System.currentTimeMillis() / 60000L;
+		if( Math.abs(minute - now) >= MINUTES / 2 ) return format( ts );
+
+		final Minute n = new Minute( minute, seconds(minute) );
+		_table[ (int)minute & (MINUTES - 1) ] = n;
+		return n.seconds[ (int)(ts - minute * 60) ];
+	}
+
+	private byte[] format(long ts)
+	{
+		return _formatter.format( Instant.ofEpochSecond(ts) ).getBytes(_UTF8);
+	}
+
+	// All of a minute's seconds
+	private byte[][] seconds(long minute)
+	{
+		final byte[][] s = new byte[60][];
+		s[0] = format( minute * 60 );
+		s[59] = format( minute * 60 + 59 );
+
+		// Find the seconds digits: the only difference between :00 and :59.  If
+		// that's not all that differs (no seconds in the format, or the zone's
+		// offset changes within the minute) every second is formatted.
+		int p = -1;
+		if( s[0].length == s[59].length ){
+			for( int i=0; i<s[0].length; i++ ){
+				if( s[0][i] == s[59][i] ) continue;
+				if( p < 0 && i + 1 < s[0].length && s[0][i] == '0' && s[0][i+1] == '0'
+					&& s[59][i] == '5' && s[59][i+1] == '9' ){
+					p = i++;
+					continue;
+				}
+				p = -1;
+				break;
+			}
+		}
+
+		for( int i=1; i<59; i++ ){
+			if( p < 0 ){
+				s[i] = format( minute * 60 + i );
+				continue;
+			}
+			s[i] = s[0].clone();
+			s[i][p] = (byte)('0' + i / 10);
+			s[i][p+1] = (byte)('0' + i % 10);
+		}
+		return s;
+	}
+}
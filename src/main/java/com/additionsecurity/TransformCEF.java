@@ -24,14 +24,14 @@ import com.additionsecurity.Utils;
 import com.additionsecurity.Decode;
 
 import java.lang.StringBuilder;
+import java.lang.ThreadLocal;
 import java.util.ArrayList;
 import java.util.Properties;
-import java.time.Instant;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.HashSet;
 import java.nio.charset.Charset;
 
+import java.nio.ByteBuffer;
+import io.netty.buffer.ByteBuf;
+
 public class TransformCEF implements ICTITransform {
 
 	private static final String VER = App.VER;
@@ -72,6 +72,7 @@ public class TransformCEF implements ICTITransform {
 		else _resource2String = false;
 
 		_hostname = " " + prop.getProperty("_hostname","asgw") + " ";
+		_nowBytes = (_nowString + _hostname).getBytes(_UTF8);
 	}
 
 	public TransformCEF(Properties prop)
@@ -105,80 +106,62 @@ public class TransformCEF implements ICTITransform {
 		return "cef";
 	}
 
-	private static DateTimeFormatter _formatter = DateTimeFormatter.ofPattern("MMM dd yyyy HH:mm:ss")
-		.withZone(ZoneId.systemDefault());
-
 	private String _nowString;
+	private byte[] _nowBytes;
 	public void nowTick(long ts)
 	{
-		_nowString = _formatter.format(Instant.ofEpochSecond(ts));
+		_nowString = new String( TimeCache.LOCAL.get(ts), _UTF8 );
+		_nowBytes = (_nowString + _hostname).getBytes(_UTF8);
 	}
 
-	private static String strTs(long ts)
+	private static byte[] strTs(long ts)
 	{
-		final Instant instant = Instant.ofEpochSecond(ts);
-		return _formatter.format(instant);
+		return TimeCache.LOCAL.get(ts);
 	}
 
 	public byte[] dataToByteString(byte[] data) throws ICTITransformException
 	{
-		return dataToString(data).getBytes(_UTF8);
+		// At most 4 bytes out for every one in
+		ByteBuffer b = ByteBuffer.allocate( data.length * 4 );
+		putEscaped( b, data );
+		byte result[] = new byte[ b.position() ];
+		b.rewind();
+		b.get( result );
+		return result;
 	}
 
-        public String dataToString(byte[] data) throws ICTITransformException
-        {
-		StringBuilder sb = null;
-		int i;
+	public String dataToString(byte[] data) throws ICTITransformException
+	{
+		return new String( dataToByteString(data), _UTF8 );
+	}
+
+	private static final byte[] SX = new byte[]{(byte)'\\',(byte)'x'};
+
+	static void putEscaped(ByteBuffer b, byte[] data)
+	{
 		int offset = 0;
-		byte[] ba = new byte[1];
-		
-		try {
-			for( i=offset; i<data.length; i++){
-
-				// General characters that don't need escaping
-				// CEF: doesn't like pipe (124), backslash (92), and equals (61)
-				if( data[i] >= 32 && data[i] <= 127 && data[i] != 124 
-					&& data[i] != 92 && data[i] != 61 ) continue;
-
-				// Something needs escaping
-
-				// allocate an SB if we don't have it
-				if( sb == null ) sb = new StringBuilder();
-
-				// Copy everything up to now to the sb
-				if( (i-offset) > 0 )
-					sb.append( new String(data, offset, (i-offset), _UTF8) );
-
-				// Figure out the escape char
-				if( data[i] == 124 || data[i] == 92 || data[i] == 61 ){
-					sb.append('\\');
-					sb.append((char)data[i]);
-				} else {
-					sb.append("\\x");
-					ba[0] = data[i];
-					sb.append( Utils.hex(ba) );
-				}
-
-				offset = i + 1;
-			}
+		for( int i=0; i<data.length; i++ ){
 
-			if( sb == null ){
-				// Nothing needed escaping, it's a clean string
-				return new String(data, _UTF8);
-			}
+			// General characters that don't need escaping
+			// CEF: doesn't like pipe (124), backslash (92), and equals (61)
+			if( data[i] >= 32 && data[i] <= 127 && data[i] != 124
+				&& data[i] != 92 && data[i] != 61 ) continue;
 
-			if( (data.length - offset) > 0 ){
-				// Need to push the trailer into the sb
-				sb.append( new String(data, offset, (data.length-offset), _UTF8) );
-			}
+			// Something needs escaping; copy everything up to now
+			b.put( data, offset, (i-offset) );
 
-			return sb.toString();
+			// Figure out the escape char
+			if( data[i] == 124 || data[i] == 92 || data[i] == 61 ){
+				b.put((byte)'\\').put(data[i]);
+			} else {
+				final int v = data[i] & 0xff;
+				b.put(SX).put((byte)Utils.hexArray[v >>> 4]).put((byte)Utils.hexArray[v & 0x0f]);
+			}
 
-		} catch(Exception e){
-			// Something went awry, just return hex encoded data
-			return "0x" + Utils.hex(data);
+			offset = i + 1;
 		}
-        }
+		b.put( data, offset, (data.length-offset) );
+	}
 
 	public Object groupObject(CTIItem items[]) throws ICTITransformException
 	{
@@ -196,128 +179,180 @@ public class TransformCEF implements ICTITransform {
 		return '0'; // None/Unknown
 	}
 
+	// Everything up to the start timestamp only depends on the event, subevent
+	// and impact, so it's encoded once per combination
+	private final PrefixCache _prefixes = new PrefixCache(1024);
+
+	private byte[] prefix(CTIItem.Ob ob)
+	{
+		byte[] p = _prefixes.get( ob._test, ob._test2, ob._imp );
+		if( p != null ) return p;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(CEFHEADER).append(ob._test).append("|");
+		sb.append(Decode.title(ob._test, ob._test2));
+		sb.append("|").append(_severity(ob._imp)).append("|");
+		sb.append("start=");
+		p = sb.toString().getBytes(_UTF8);
+		_prefixes.put( ob._test, ob._test2, ob._imp, p );
+		return p;
+	}
+
+	// " csNLabel=" and " csN=" (or cn), pre-encoded for the first KEYS of N
+	private static final int KEYS = 64;
+	private static final class Keys {
+		final String _pre;
+		final byte[][] _label = new byte[KEYS][];
+		final byte[][] _value = new byte[KEYS][];
+
+		Keys(String pre)
+		{
+			_pre = pre;
+			for( int i=0; i<KEYS; i++ ){
+				_label[i] = (pre + i + "Label=").getBytes(_UTF8);
+				_value[i] = (pre + i + "=").getBytes(_UTF8);
+			}
+		}
+
+		void put(ByteBuffer b, int n, byte[] label)
+		{
+			if( n < KEYS ) b.put(_label[n]).put(label).put(_value[n]);
+			else b.put((_pre + n + "Label=").getBytes(_UTF8)).put(label).put((_pre + n + "=").getBytes(_UTF8));
+		}
+	}
+	private static final Keys CS = new Keys(" cs");
+	private static final Keys CN = new Keys(" cn");
+
+	private static final byte[] C_DVC = " dvc=".getBytes(_UTF8);
+	private static final byte[] C_ORG = " cs1Label=org cs1=".getBytes(_UTF8);
+	private static final byte[] C_SUSER = " suser=".getBytes(_UTF8);
+	private static final byte[] C_DEVEXTID = " deviceExternalId=".getBytes(_UTF8);
+	private static final byte[] C_PROCESS = " deviceProcessName=".getBytes(_UTF8);
+	private static final byte[] L_SUSER2 = "suser2".getBytes(_UTF8);
+	private static final byte[] L_DEVTYPE = "deviceType".getBytes(_UTF8);
+	private static final byte[] L_DEVEXTID2 = "deviceExternalId2".getBytes(_UTF8);
+	private static final byte[] L_EVENTSUBID = "eventSubId".getBytes(_UTF8);
+
+	private static final ThreadLocal<ByteBuffer> threadBuffer =
+		new ThreadLocal<ByteBuffer>() {
+			@Override protected ByteBuffer initialValue() {
+				return ByteBuffer.allocate(4096);
+			}
+		};
+
 	public byte[] transform(CTIItem item, Object group) throws ICTITransformException
+	{
+		final ByteBuffer b = render( item );
+		byte result[] = new byte[ b.position() ];
+		b.rewind();
+		b.get( result );
+		return result;
+	}
+
+	public boolean transform(CTIItem item, Object group, ByteBuf out) throws ICTITransformException
+	{
+		final ByteBuffer b = render( item );
+		out.writeBytes( b.array(), 0, b.position() );
+		return true;
+	}
+
+	// The item, in this thread's buffer
+	private ByteBuffer render(CTIItem item) throws ICTITransformException
 	{
 	  try {
-		StringBuilder sb = new StringBuilder();
+		ByteBuffer b = threadBuffer.get();
+		while( true ){
+			b.clear();
+			try {
+				put( b, item );
+				return b;
+			}
+			catch( java.nio.BufferOverflowException e ){
+				// Doesn't fit, start over with a bigger buffer (which this
+				// thread keeps)
+				b = ByteBuffer.allocate( b.capacity() * 2 );
+				threadBuffer.set( b );
+			}
+		}
 
+	  } catch(Exception e){
+		throw new ICTITransformException("transform", e);
+	  }
+	}
+
+	private void put(ByteBuffer b, CTIItem item)
+	{
 		int cs_ctr = 1;
 		int cn_ctr = 1;
 
-		if( _includeTs ){
-			//sb.append(DateTimeFormatter.ISO_INSTANT.format(Instant.now()));
-			//sb.append(_formatter.format(Instant.now()));
-			sb.append(_nowString);
-			sb.append(_hostname);
-		}
-		sb.append(CEFHEADER).append(item._ob._test).append("|");
-		sb.append(Decode.title(item._ob._test, item._ob._test2));
-		sb.append("|").append(_severity(item._ob._imp)).append("|");
+		if( _includeTs ) b.put( _nowBytes );
+		b.put( prefix(item._ob) );
 
 		// Extensions after this point
-		sb.append("start=").append( strTs(item._ob._ts) );
-		sb.append(" dvc=").append(Decode.ipv4ToString(item._recvip));
+		b.put( strTs(item._ob._ts) );
+		b.put( C_DVC );
+		Decode.putIp( b, item._recvip );
 
 		if( _includeOrg ){
-			sb.append(" cs1Label=org cs1=");
-			sb.append(Utils.hex(item._org, true));
+			b.put( C_ORG );
+			Utils.putHex( b, item._org, true, false );
 			cs_ctr++;
 		}
 
-		//sb.append("\tcat=").append(Decode.observationType(item._ob._type));
-		//if( item._ob._conf > 0 ) sb.append("\tconfidence=")
-		//	.append(Decode.confidence(item._ob._conf));
-
-		if( item._user != null && item._user.length > 0 )
-			sb.append(" suser=").append(Utils.hex(item._user, true));
+		if( item._user != null && item._user.length > 0 ){
+			b.put( C_SUSER );
+			Utils.putHex( b, item._user, true, false );
+		}
 		if( item._user2 != null && item._user2.length > 0 ){
-			sb.append(" cs");
-			sb.append(cs_ctr);
-			sb.append("Label=suser2 cs");
-			sb.append(cs_ctr);
-			sb.append("=");
-			cs_ctr++;
+			CS.put( b, cs_ctr++, L_SUSER2 );
 			if( _accountName2String )
-				sb.append(new String(item._user2, "UTF-8"));
+				Decode.putUtf8( b, item._user2 );
 			else
-				sb.append(Utils.hex(item._user2, true));
+				Utils.putHex( b, item._user2, true, false );
 		}
 
 		if( item._sysType > 0 ){
-			sb.append(" cs");
-			sb.append(cs_ctr);
-			sb.append("Label=deviceType cs");
-			sb.append(cs_ctr);
-			sb.append("=");
-			cs_ctr++;
-			sb.append(Decode.systemType(item._sysType));
+			CS.put( b, cs_ctr++, L_DEVTYPE );
+			b.put( Decode.systemTypeBytes(item._sysType) );
 		}
 
-		if( item._sys != null && item._sys.length > 0 )
-			sb.append(" deviceExternalId=").append(Utils.hex(item._sys, true));
+		if( item._sys != null && item._sys.length > 0 ){
+			b.put( C_DEVEXTID );
+			Utils.putHex( b, item._sys, true, false );
+		}
 		if( item._sys2 != null && item._sys2.length > 0 ){
-			sb.append(" cs");
-			sb.append(cs_ctr);
-			sb.append("Label=deviceExternalId2 cs");
-			sb.append(cs_ctr);
-			sb.append("=");
-			cs_ctr++;
+			CS.put( b, cs_ctr++, L_DEVEXTID2 );
 			if( _resource2String )
-				sb.append(new String(item._sys2, "UTF-8"));
+				Decode.putUtf8( b, item._sys2 );
 			else
-				sb.append(Utils.hex(item._sys2, true));
+				Utils.putHex( b, item._sys2, true, false );
 		}
 
-		if( item._app != null && item._app.length > 0 )
-			sb.append(" deviceProcessName=").append(new String(item._app, "UTF-8"));
+		if( item._app != null && item._app.length > 0 ){
+			b.put( C_PROCESS );
+			Decode.putUtf8( b, item._app );
+		}
 
 		if( item._ob._test2 > 0 ) {
-			sb.append(" cn");
-			sb.append(cn_ctr);
-			sb.append("Label=eventSubId cn");
-			sb.append(cn_ctr);
-			sb.append("=");
-			cn_ctr++;
-			sb.append(item._ob._test2);
+			CN.put( b, cn_ctr++, L_EVENTSUBID );
+			Decode.putLong( b, item._ob._test2 );
 		}
 
-		final HashSet<String> seen = new HashSet<String>();
-		for( CTIItem.ObData obd : item._ob._datas ){
-
-			// Performant way of lowercasing the first character
-			char c[] = Decode.dataType(obd._type).toCharArray();
-			c[0] += 32;
-			String dtype = new String(c);
+		final ArrayList<CTIItem.ObData> datas = item._ob._datas;
+		for( int i=0; i<datas.size(); i++ ){
+			final CTIItem.ObData obd = datas.get(i);
+			final byte[] dtype = Decode.dataTypeKeyBytes(obd._type);
 
 			if( obd._data != null ){
-				sb.append(" cs");
-				sb.append(cs_ctr);
-				sb.append("Label=");
-				sb.append(dtype);
-				sb.append(" cs");
-				sb.append(cs_ctr);
-				sb.append("=");
-				cs_ctr++;
-				String dval = Decode.dataToString(obd._type, obd._data, this);
-				sb.append(dval);
+				CS.put( b, cs_ctr++, dtype );
+				if( Decode.isStringData(obd._type) )
+					putEscaped( b, obd._data );
+				else
+					Decode.putData( b, obd._type, obd._data, this );
 			} else {
-				sb.append(" cn");
-				sb.append(cn_ctr);
-				sb.append("Label=");
-				sb.append(dtype);
-				sb.append(" cn");
-				sb.append(cn_ctr);
-				sb.append("=");
-				cn_ctr++;
-				String dval = Decode.dataToString(obd._type, obd._num);
-				sb.append(dval);
+				CN.put( b, cn_ctr++, dtype );
+				Decode.putLong( b, obd._num );
 			}
 		}
-
-		return sb.toString().getBytes(_UTF8);
-
-	  } catch(Exception e){
-		throw new ICTITransformException("transform", e);
-	  }
 	}
 }
@@ -27,13 +27,10 @@ import java.lang.StringBuilder;
 import java.lang.ThreadLocal;
 import java.util.ArrayList;
 import java.util.Properties;
-import java.time.Instant;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.HashSet;
 import java.nio.charset.Charset;
 
 import java.nio.ByteBuffer;
+import io.netty.buffer.ByteBuf;
 
 public class TransformCSV3 implements ICTITransform {
 
@@ -117,19 +114,15 @@ public class TransformCSV3 implements ICTITransform {
 		return "csv";
 	}
 
-        private static DateTimeFormatter _formatter = DateTimeFormatter.ofPattern("MMM dd yyyy HH:mm:ss")
-                .withZone(ZoneId.systemDefault());
-
-	private String _nowString;
+	private byte[] _nowBytes;
 	public void nowTick(long ts)
 	{
-		_nowString = _formatter.format(Instant.ofEpochSecond(ts));
+		_nowBytes = TimeCache.LOCAL.get(ts);
 	}
 
-	private static String strTs(long ts)
+	private static byte[] strTs(long ts)
 	{
-		final Instant instant = Instant.ofEpochSecond(ts);
-		return DateTimeFormatter.ISO_INSTANT.format(instant);
+		return TimeCache.ISO.get(ts);
 	}
 
 	public byte[] dataToByteString(byte[] data) throws ICTITransformException
@@ -200,7 +193,6 @@ public class TransformCSV3 implements ICTITransform {
 	{
 		ByteBuffer b;
 		int leader;
-		HashSet<String> seen = new HashSet<String>();
 		byte dc;
 	}
 
@@ -209,6 +201,7 @@ public class TransformCSV3 implements ICTITransform {
 	public static byte[] COMMAQ = new byte[]{(byte)',',(byte)'"'};
 	public static byte[] CD = new byte[]{(byte)',',(byte)'-'};
 	public static byte[] QQ = new byte[]{(byte)'"',(byte)'"'};
+	private static final DataKeys KEYS = new DataKeys(",\"", "", "=");
 
 
 	private static final ThreadLocal<ByteBuffer> threadBuffer =
@@ -230,7 +223,7 @@ public class TransformCSV3 implements ICTITransform {
 		GroupInfo go = new GroupInfo();
 
 		if( _includeTs ){
-			b.put( _nowString.getBytes(_UTF8) );
+			b.put( _nowBytes );
 			b.put( _hostname.getBytes(_UTF8) );
 		}
 
@@ -238,7 +231,8 @@ public class TransformCSV3 implements ICTITransform {
 		b.put( FORMAT_VER );
 
 		// RecvIp
-		b.put(C).put( Decode.ipv4ToString(item._recvip).getBytes(_UTF8) );
+		b.put(C);
+		Decode.putIp( b, item._recvip );
 
 		// Optional organization value
 		if( _includeOrg )
@@ -305,6 +299,23 @@ public class TransformCSV3 implements ICTITransform {
 
 
 	public byte[] transform(CTIItem item, Object group) throws ICTITransformException
+	{
+		final ByteBuffer b = render( item, group );
+		byte result[] = new byte[ b.position() ];
+		b.rewind();
+		b.get( result );
+		return result;
+	}
+
+	public boolean transform(CTIItem item, Object group, ByteBuf out) throws ICTITransformException
+	{
+		final ByteBuffer b = render( item, group );
+		out.writeBytes( b.array(), 0, b.position() );
+		return true;
+	}
+
+	// The item after the group's leader, in the group's buffer
+	private ByteBuffer render(CTIItem item, Object group) throws ICTITransformException
 	{
 	  try {
 		GroupInfo go = (GroupInfo)group;
@@ -324,7 +335,7 @@ public class TransformCSV3 implements ICTITransform {
 			b.put(CD);
 
 		// Timestamp
-		b.put(C).put( strTs(item._ob._ts).getBytes(_UTF8) );
+		b.put(C).put( strTs(item._ob._ts) );
 
 		// Category
 		b.put(C).put(Decode.observationTypeBytes(item._ob._type));
@@ -344,32 +355,14 @@ public class TransformCSV3 implements ICTITransform {
 
 		// Extensions are zero or more, in the form:
 		// "nom=""val"""
-		go.seen.clear();
+		final DataKeys.Seen seen = DataKeys.seen();
 		for( CTIItem.ObData obd : item._ob._datas ){
 
 			b.mark();
 
 			try {
-				String dtype = Decode.dataType(obd._type);
-				byte c[];
-
-				// Append _2, _3 for subsequent same key names
-				if( go.seen.contains(dtype) ){
-					int i = 2;
-					String k;
-					while(true){
-						k = dtype + String.valueOf(i);
-						if( !go.seen.contains(k) ) break;
-						i = i + 1;
-					}
-					dtype = k;
-				}
-				c = dtype.getBytes();
-				// Performant way of lowercasing the first character
-				c[0] += 32;
-				go.seen.add(dtype);
-
-				b.put(COMMAQ).put(c).put((byte)'=');
+				// Append 2, 3 for subsequent same key names
+				b.put( KEYS.get( obd._type, seen.next(obd._type) ) );
 
 				if( obd._data != null ){
 					b.put(QQ).put( Decode.dataToByteString(obd._type, obd._data, this) ).put(QQ);
@@ -387,10 +380,7 @@ public class TransformCSV3 implements ICTITransform {
 			}
 		}
 
-		byte result[] = new byte[ b.position() ];
-		b.rewind();
-		b.get( result );
-		return result;
+		return b;
 
 	  } catch(Exception e){
 		throw new ICTITransformException("transform", e);
@@ -23,17 +23,15 @@ import com.additionsecurity.ICTITransform.ICTITransformException;
 import com.additionsecurity.Utils;
 import com.additionsecurity.Decode;
 
-import io.vertx.core.json.*;
-
 import java.lang.StringBuilder;
+import java.lang.ThreadLocal;
 import java.util.ArrayList;
 import java.util.Properties;
-import java.time.Instant;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.HashSet;
 import java.nio.charset.Charset;
 
+import java.nio.ByteBuffer;
+import io.netty.buffer.ByteBuf;
+
 public class TransformJSON implements ICTITransform {
 
 	private static final String VER = "1.0";
@@ -73,6 +71,8 @@ public class TransformJSON implements ICTITransform {
 		else _resource2String = false;
 
 		_hostname = " " + prop.getProperty("_hostname","asgw") + " ";
+		_nowBytes = (_nowString + _hostname).getBytes(_UTF8);
+		_prefixes = new PrefixCache(1024);
 	}
 
 	public TransformJSON(Properties prop)
@@ -106,19 +106,17 @@ public class TransformJSON implements ICTITransform {
 		return "json";
 	}
 
-        private static DateTimeFormatter _formatter = DateTimeFormatter.ofPattern("MMM dd yyyy HH:mm:ss")
-                .withZone(ZoneId.systemDefault());
-
 	private String _nowString;
+	private byte[] _nowBytes;
 	public void nowTick(long ts)
 	{
-		_nowString = _formatter.format(Instant.ofEpochSecond(ts));
+		_nowString = new String( TimeCache.LOCAL.get(ts), _UTF8 );
+		_nowBytes = (_nowString + _hostname).getBytes(_UTF8);
 	}
 
-	private static String strTs(long ts)
+	private static byte[] strTs(long ts)
 	{
-		final Instant instant = Instant.ofEpochSecond(ts);
-		return DateTimeFormatter.ISO_INSTANT.format(instant);
+		return TimeCache.ISO.get(ts);
 	}
 
 	public byte[] dataToByteString(byte[] data) throws ICTITransformException
@@ -143,98 +141,165 @@ public class TransformJSON implements ICTITransform {
 		return null;
 	}
 
+	// {"id":..,"title":"..","subId":..,"timestamp": only depends on the event and
+	// subevent, so it's encoded once per combination
+	private PrefixCache _prefixes = new PrefixCache(1024);
+
+	private byte[] prefix(CTIItem.Ob ob)
+	{
+		byte[] p = _prefixes.get( ob._test, ob._test2, 0 );
+		if( p != null ) return p;
+
+		byte[] title = null;
+		if( _includeTitle ) title = Decode.title(ob._test, ob._test2).getBytes(_UTF8);
+
+		ByteBuffer b = ByteBuffer.allocate( 128 + (title == null ? 0 : title.length * 6) );
+		b.put( K_ID );
+		Decode.putLong( b, ob._test );
+		if( title != null ){
+			b.put( K_TITLE );
+			JsonWriter.putString( b, title );
+		}
+		if( ob._test2 > 0 ){
+			b.put( K_SUBID );
+			Decode.putLong( b, ob._test2 );
+		}
+		b.put( K_TIMESTAMP );
+
+		p = new byte[ b.position() ];
+		b.rewind();
+		b.get( p );
+		_prefixes.put( ob._test, ob._test2, 0, p );
+		return p;
+	}
+
+	private static final byte[] K_ID = "{\"id\":".getBytes(_UTF8);
+	private static final byte[] K_TITLE = ",\"title\":".getBytes(_UTF8);
+	private static final byte[] K_SUBID = ",\"subId\":".getBytes(_UTF8);
+	private static final byte[] K_TIMESTAMP = ",\"timestamp\":".getBytes(_UTF8);
+	private static final byte[] K_CATEGORY = ",\"category\":".getBytes(_UTF8);
+	private static final byte[] K_RECVIP = ",\"recvIp\":\"".getBytes(_UTF8);
+	private static final byte[] K_ORG = ",\"org\":".getBytes(_UTF8);
+	private static final byte[] K_IMPACT = ",\"impact\":".getBytes(_UTF8);
+	private static final byte[] K_CONF = ",\"confidence\":".getBytes(_UTF8);
+	private static final byte[] K_ACCT = ",\"accountId\":".getBytes(_UTF8);
+	private static final byte[] K_ACCT2 = ",\"accountId2\":".getBytes(_UTF8);
+	private static final byte[] K_SYSTYPE = ",\"systemType\":".getBytes(_UTF8);
+	private static final byte[] K_SYSID = ",\"systemId\":".getBytes(_UTF8);
+	private static final byte[] K_SYSID2 = ",\"systemId2\":".getBytes(_UTF8);
+	private static final byte[] K_APP = ",\"application\":".getBytes(_UTF8);
+	private static final byte[] K_DATA = ",\"observableData\":{".getBytes(_UTF8);
+
+	private static final ThreadLocal<ByteBuffer> threadBuffer =
+		new ThreadLocal<ByteBuffer>() {
+			@Override protected ByteBuffer initialValue() {
+				return ByteBuffer.allocate(4096);
+			}
+		};
+
+	private static final DataKeys KEYS = new DataKeys("\"", "", "\":");
+
 	public byte[] transform(CTIItem item, Object group) throws ICTITransformException
 	{
-	  try {
+		final ByteBuffer b = render( item );
+		byte result[] = new byte[ b.position() ];
+		b.rewind();
+		b.get( result );
+		return result;
+	}
 
-		JsonObject js = new JsonObject();
-		js.put("id", item._ob._test);
+	public boolean transform(CTIItem item, Object group, ByteBuf out) throws ICTITransformException
+	{
+		final ByteBuffer b = render( item );
+		out.writeBytes( b.array(), 0, b.position() );
+		return true;
+	}
 
-		if( _includeTitle ){
-			js.put("title", Decode.title(item._ob._test,item._ob._test2));
+	// The item, in this thread's buffer
+	private ByteBuffer render(CTIItem item) throws ICTITransformException
+	{
+	  try {
+		ByteBuffer b = threadBuffer.get();
+		while( true ){
+			b.clear();
+			try {
+				put( b, item );
+				return b;
+			}
+			catch( java.nio.BufferOverflowException e ){
+				// Doesn't fit, start over with a bigger buffer (which this
+				// thread keeps)
+				b = ByteBuffer.allocate( b.capacity() * 2 );
+				threadBuffer.set( b );
+			}
 		}
 
-		if( item._ob._test2 > 0 ) js.put("subId", item._ob._test2);
+	  } catch(Exception e){
+		throw new ICTITransformException("transform", e);
+	  }
+	}
 
-		js.put("timestamp", strTs(item._ob._ts));
+	private void put(ByteBuffer b, CTIItem item)
+	{
+		if( _includeTs ) b.put( _nowBytes );
+		b.put( prefix(item._ob) );
+		JsonWriter.putQuoted( b, strTs(item._ob._ts) );
 
-		if( item._ob._type > 0 ) js.put("category", Decode.observationType(item._ob._type));
-		js.put("recvIp", Decode.ipv4ToString(item._recvip));
+		if( item._ob._type > 0 )
+			JsonWriter.putQuoted( b.put(K_CATEGORY), Decode.observationTypeBytes(item._ob._type) );
+		b.put( K_RECVIP );
+		Decode.putIp( b, item._recvip );
+		b.put( (byte)'"' );
 
-		if( _includeOrg ) js.put("org", Utils.hex(item._org, true) );
+		if( _includeOrg ) JsonWriter.putHex( b.put(K_ORG), item._org );
 
-		if( item._ob._imp > 0 ) js.put("impact",Decode.impact(item._ob._imp));
-		if( item._ob._conf > 0 ) js.put("confidence",Decode.confidence(item._ob._conf));
+		if( item._ob._imp > 0 )
+			JsonWriter.putQuoted( b.put(K_IMPACT), Decode.impactBytes(item._ob._imp) );
+		if( item._ob._conf > 0 )
+			JsonWriter.putQuoted( b.put(K_CONF), Decode.confidenceBytes(item._ob._conf) );
 
 		if( item._user != null && item._user.length > 0 )
-			js.put("accountId",Utils.hex(item._user, true));
+			JsonWriter.putHex( b.put(K_ACCT), item._user );
 		if( item._user2 != null && item._user2.length > 0 ){
 			if( _accountName2String )
-				js.put("accountId2",item._user2);
-				//js.put("accountId2",new String(item._user2, _UTF8));
+				JsonWriter.putBase64( b.put(K_ACCT2), item._user2 );
 			else
-				js.put("accountId2",Utils.hex(item._user2, true));
+				JsonWriter.putHex( b.put(K_ACCT2), item._user2 );
 		}
 
 		if( item._sysType > 0 )
-			js.put("systemType",Decode.systemType(item._sysType));
+			JsonWriter.putQuoted( b.put(K_SYSTYPE), Decode.systemTypeBytes(item._sysType) );
 		if( item._sys != null && item._sys.length > 0 )
-			js.put("systemId",Utils.hex(item._sys, true));
+			JsonWriter.putHex( b.put(K_SYSID), item._sys );
 		if( item._sys2 != null && item._sys2.length > 0 ){
 			if( _resource2String )
-				js.put("systemId2",new String(item._sys2, _UTF8));
+				JsonWriter.putString( b.put(K_SYSID2), item._sys2 );
 			else
-				js.put("systemId2",Utils.hex(item._sys2, true));
+				JsonWriter.putHex( b.put(K_SYSID2), item._sys2 );
 		}
 
 		if( item._app != null && item._app.length > 0 )
-			js.put("application",item._app);
-			//js.put("application",new String(item._app, _UTF8));
-
-		JsonObject js2 = new JsonObject();
-		js.put("observableData", js2);
-
-		final HashSet<String> seen = new HashSet<String>();
-		for( CTIItem.ObData obd : item._ob._datas ){
+			JsonWriter.putBase64( b.put(K_APP), item._app );
 
-			// Performant way of lowercasing the first character
-			char c[] = Decode.dataType(obd._type).toCharArray();
-			c[0] += 32;
-			String dtype = new String(c);
+		b.put( K_DATA );
+		final DataKeys.Seen seen = DataKeys.seen();
+		final ArrayList<CTIItem.ObData> datas = item._ob._datas;
+		for( int i=0; i<datas.size(); i++ ){
+			final CTIItem.ObData obd = datas.get(i);
 
-			// Append _2, _3 for subsequent same key names (since JSON doesn't allow
+			// Append 2, 3 for subsequent same key names (since JSON doesn't allow
 			// dupes)
-			if( seen.contains(dtype) ){
-				int i = 2;
-				String k;
-				while(true){
-					k = dtype + String.valueOf(i);
-					if( !seen.contains(k) ) break;
-					i = i + 1;
-				}
-				dtype = k;
-			}
-			seen.add(dtype);
-
-			String dval;
-			if( obd._data != null )
-				js2.put(dtype, Decode.dataToByteString(obd._type, obd._data, this));
+			if( i > 0 ) b.put( (byte)',' );
+			b.put( KEYS.get( obd._type, seen.next(obd._type) ) );
+
+			// Data goes out the way JsonObject has byte arrays, as base64
+			if( obd._data == null )
+				Decode.putLong( b, obd._num );
+			else if( Decode.isStringData(obd._type) )
+				JsonWriter.putBase64( b, obd._data );
 			else
-				js2.put(dtype, obd._num);
+				JsonWriter.putBase64( b, Decode.dataToByteString(obd._type, obd._data, this) );
 		}
-
-		if( _includeTs ){
-			StringBuilder sb = new StringBuilder();
-			sb.append(_formatter.format(Instant.now()));
-			sb.append(_hostname);
-			sb.append( js.toString() );
-			return sb.toString().getBytes(_UTF8);
-		}
-
-		return js.toString().getBytes(_UTF8);
-
-	  } catch(Exception e){
-		throw new ICTITransformException("transform", e);
-	  }
+		b.put( (byte)'}' ).put( (byte)'}' );
 	}
 }
@@ -24,15 +24,13 @@ import com.additionsecurity.Utils;
 import com.additionsecurity.Decode;
 
 import java.lang.StringBuilder;
+import java.lang.ThreadLocal;
 import java.util.ArrayList;
 import java.util.Properties;
-import java.time.Instant;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.HashSet;
 import java.nio.charset.Charset;
 
 import java.nio.ByteBuffer;
+import io.netty.buffer.ByteBuf;
 
 public class TransformKVP2 implements ICTITransform {
 
@@ -108,20 +106,15 @@ public class TransformKVP2 implements ICTITransform {
 		return "txt";
 	}
 
-        private static DateTimeFormatter _formatter = DateTimeFormatter.ofPattern("MMM dd yyyy HH:mm:ss")
-                .withZone(ZoneId.systemDefault());
-
-
-	private String _nowString;
+	private byte[] _nowBytes;
 	public void nowTick(long ts)
 	{
-		_nowString = _formatter.format(Instant.ofEpochSecond(ts));
+		_nowBytes = TimeCache.LOCAL.get(ts);
 	}
 
-	private static String strTs(long ts)
+	private static byte[] strTs(long ts)
 	{
-		final Instant instant = Instant.ofEpochSecond(ts);
-		return DateTimeFormatter.ISO_INSTANT.format(instant);
+		return TimeCache.ISO.get(ts);
 	}
 
 	public byte[] dataToByteString(byte[] data) throws ICTITransformException
@@ -195,7 +188,6 @@ public class TransformKVP2 implements ICTITransform {
 	{
 		ByteBuffer b;
 		int leader;
-		HashSet<String> seen = new HashSet<String>();
 	}
 
 	public static byte[] RECVIP = "recvIp=".getBytes();
@@ -214,24 +206,34 @@ public class TransformKVP2 implements ICTITransform {
 	public static byte[] C_SEV = ", sev=".getBytes();
 	public static byte[] C_CONF = ", conf=".getBytes();
 	public static byte[] C_S = ", ".getBytes();
+	private static final DataKeys KEYS = new DataKeys(", ", "_", "=");
+
+	private static final ThreadLocal<ByteBuffer> threadBuffer =
+		new ThreadLocal<ByteBuffer>() {
+			@Override protected ByteBuffer initialValue() {
+				return ByteBuffer.allocate(4096);
+			}
+		};
 
 	public Object groupObject(CTIItem items[]) throws ICTITransformException
 	{
 		if( items.length == 0 ) return null;
-		ByteBuffer b = ByteBuffer.allocate(4096);
+		ByteBuffer b = threadBuffer.get();
+		b.clear();
 
 		CTIItem item = items[0];
 		GroupInfo go = new GroupInfo();
 
 		if( _includeTs ){
 			//b.put( _formatter.format(Instant.now()).getBytes() );
-			b.put( _nowString.getBytes(_UTF8) );
+			b.put( _nowBytes );
 			b.put( _hostname_bytes );
 			//String s = _formatter.format(Instant.now()) + _hostname;
 			//b.put( s.getBytes() );
 		}
 
-		b.put( RECVIP ).put( Decode.ipv4ToString(item._recvip).getBytes(_UTF8) );
+		b.put( RECVIP );
+		Decode.putIp( b, item._recvip );
 
 		if( _includeOrg )
 			b.put(C_ORG).put( Utils.hexBytes(item._org, true, false) );
@@ -283,6 +285,23 @@ public class TransformKVP2 implements ICTITransform {
 	}
 
 	public byte[] transform(CTIItem item, Object group) throws ICTITransformException
+	{
+		final ByteBuffer b = render( item, group );
+		byte result[] = new byte[ b.position() ];
+		b.rewind();
+		b.get( result );
+		return result;
+	}
+
+	public boolean transform(CTIItem item, Object group, ByteBuf out) throws ICTITransformException
+	{
+		final ByteBuffer b = render( item, group );
+		out.writeBytes( b.array(), 0, b.position() );
+		return true;
+	}
+
+	// The item after the group's leader, in the group's buffer
+	private ByteBuffer render(CTIItem item, Object group) throws ICTITransformException
 	{
 	  try {
 		GroupInfo go = (GroupInfo)group;
@@ -294,38 +313,21 @@ public class TransformKVP2 implements ICTITransform {
 		if( _includeTitle )
 			b.put(C_TITLE_Q).put(Decode.title(item._ob._test,item._ob._test2).getBytes(_UTF8)).put((byte)'"');
 
-		b.put(C_TS).put( strTs(item._ob._ts).getBytes(_UTF8) );
+		b.put(C_TS).put( strTs(item._ob._ts) );
 		if( item._ob._type > 0 ) b.put(C_CAT).put( Decode.observationTypeBytes(item._ob._type) );
 		if( item._ob._imp > 0 ) b.put(C_SEV).put(Decode.impactBytes(item._ob._imp) );
 		if( item._ob._conf > 0 ) b.put(C_CONF).put(Decode.confidenceBytes(item._ob._conf) );
 
-		go.seen.clear();
+		final DataKeys.Seen seen = DataKeys.seen();
 		for( CTIItem.ObData obd : item._ob._datas ){
 
 			// Mark our current position
 			b.mark();
 
 			try {
-				String dtype = Decode.dataType(obd._type);
-				byte c[];
-
 				// Append _2, _3 for subsequent same key names (since LEEF doesn't allow
 				// dupes)
-				if( go.seen.contains(dtype) ){
-					int i = 2;
-					String k;
-					while(true){
-						k = dtype + "_" + String.valueOf(i);
-						if( !go.seen.contains(k) ) break;
-						i = i + 1;
-					}
-					dtype = k;
-				}
-				c = dtype.getBytes();
-				c[0] += 32; // lowercase
-				go.seen.add(dtype);
-	
-				b.put(C_S).put(c).put((byte)'=');
+				b.put( KEYS.get( obd._type, seen.next(obd._type) ) );
 
 				if( obd._data != null )
 					b.put((byte)'"').put(Decode.dataToByteString(obd._type, obd._data, this)).put((byte)'"');
@@ -340,10 +342,7 @@ public class TransformKVP2 implements ICTITransform {
 			}
 		}
 
-		byte result[] = new byte[ b.position() ];
-		b.rewind();
-		b.get( result );
-		return result;
+		return b;
 
 	  } catch(Exception e){
 		throw new ICTITransformException("transform", e);
@@ -24,14 +24,14 @@ import com.additionsecurity.Utils;
 import com.additionsecurity.Decode;
 
 import java.lang.StringBuilder;
+import java.lang.ThreadLocal;
 import java.util.ArrayList;
 import java.util.Properties;
-import java.time.Instant;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.HashSet;
 import java.nio.charset.Charset;
 
+import java.nio.ByteBuffer;
+import io.netty.buffer.ByteBuf;
+
 public class TransformLEEF implements ICTITransform {
 
 	private static final String VER = App.VER;
@@ -72,6 +72,7 @@ public class TransformLEEF implements ICTITransform {
 		else _resource2String = false;
 
 		_hostname = " " + prop.getProperty("_hostname","asgw") + " ";
+		_nowBytes = (_nowString + _hostname).getBytes(_UTF8);
 	}
 
 	public TransformLEEF(Properties prop)
@@ -105,170 +106,229 @@ public class TransformLEEF implements ICTITransform {
 		return "leef";
 	}
 
-	private static DateTimeFormatter _formatter = DateTimeFormatter.ofPattern("MMM dd yyyy HH:mm:ss")
-		.withZone(ZoneId.systemDefault());
-
 	private String _nowString;
+	private byte[] _nowBytes;
 	public void nowTick(long ts)
 	{
-		_nowString = _formatter.format(Instant.ofEpochSecond(ts));
+		_nowString = new String( TimeCache.LOCAL.get(ts), _UTF8 );
+		_nowBytes = (_nowString + _hostname).getBytes(_UTF8);
 	}
 
-	private static String strTs(long ts)
+	private static byte[] strTs(long ts)
 	{
-		final Instant instant = Instant.ofEpochSecond(ts);
-		return _formatter.format(instant);
+		return TimeCache.LOCAL.get(ts);
 	}
 
 	public byte[] dataToByteString(byte[] data) throws ICTITransformException
 	{
-		return dataToString(data).getBytes();
+		// At most 4 bytes out for every one in
+		ByteBuffer b = ByteBuffer.allocate( data.length * 4 );
+		putEscaped( b, data );
+		byte result[] = new byte[ b.position() ];
+		b.rewind();
+		b.get( result );
+		return result;
 	}
 
-        public String dataToString(byte[] data) throws ICTITransformException
-        {
-		StringBuilder sb = null;
-		int i;
+	public String dataToString(byte[] data) throws ICTITransformException
+	{
+		return new String( dataToByteString(data), _UTF8 );
+	}
+
+	private static final byte[] SX = new byte[]{(byte)'\\',(byte)'x'};
+
+	static void putEscaped(ByteBuffer b, byte[] data)
+	{
 		int offset = 0;
-		byte[] ba = new byte[1];
-		
-		try {
-			for( i=offset; i<data.length; i++){
+		for( int i=0; i<data.length; i++ ){
 
-				// General characters that don't need escaping
-				// LEEF: doesn't like pipe (124), caret (94), and tab (9)
-				if( data[i] >= 32 && data[i] <= 127 && data[i] != 124 
-					&& data[i] != 94) continue;
+			// General characters that don't need escaping
+			// LEEF: doesn't like pipe (124), caret (94), and tab (9)
+			if( data[i] >= 32 && data[i] <= 127 && data[i] != 124
+				&& data[i] != 94) continue;
 
-				// Something needs escaping
+			// Something needs escaping; copy everything up to now
+			b.put( data, offset, (i-offset) );
 
-				// allocate an SB if we don't have it
-				if( sb == null ) sb = new StringBuilder();
+			// NOTE: just hex encode everything, there is no escape char
+			final int v = data[i] & 0xff;
+			b.put(SX).put((byte)Utils.hexArray[v >>> 4]).put((byte)Utils.hexArray[v & 0x0f]);
 
-				// Copy everything up to now to the sb
-				if( (i-offset) > 0 )
-					sb.append( new String(data, offset, (i-offset), _UTF8) );
+			offset = i + 1;
+		}
+		b.put( data, offset, (data.length-offset) );
+	}
 
-				// Figure out the escape char
-				// NOTE: just hex encode everything, there is no escape char
-				sb.append("\\x");
-				ba[0] = data[i];
-				sb.append( Utils.hex(ba) );
+	public Object groupObject(CTIItem items[]) throws ICTITransformException
+	{
+		return null;
+	}
 
-				offset = i + 1;
-			}
+	// The header up to the device timestamp only depends on the event, and the
+	// title on the event and subevent, so they're encoded once each
+	private final PrefixCache _prefixes = new PrefixCache(1024);
+	private final PrefixCache _titles = new PrefixCache(1024);
 
-			if( sb == null ){
-				// Nothing needed escaping, it's a clean string
-				return new String(data, _UTF8);
-			}
+	private byte[] prefix(CTIItem.Ob ob)
+	{
+		byte[] p = _prefixes.get( ob._test, 0, 0 );
+		if( p != null ) return p;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(LEEFHEADER).append(ob._test).append("|");
+		sb.append("devTimeFormat=MMM dd yyyy HH:mm:ss\tdevTime=");
+		p = sb.toString().getBytes(_UTF8);
+		_prefixes.put( ob._test, 0, 0, p );
+		return p;
+	}
+
+	private byte[] title(CTIItem.Ob ob)
+	{
+		byte[] t = _titles.get( ob._test, ob._test2, 0 );
+		if( t != null ) return t;
+
+		t = Decode.title(ob._test, ob._test2).getBytes(_UTF8);
+		_titles.put( ob._test, ob._test2, 0, t );
+		return t;
+	}
 
-			if( (data.length - offset) > 0 ){
-				// Need to push the trailer into the sb
-				sb.append( new String(data, offset, (data.length-offset), _UTF8) );
+	private static final byte[] C_CAT = "\tcat=".getBytes(_UTF8);
+	private static final byte[] C_SRC = "\tsrc=".getBytes(_UTF8);
+	private static final byte[] C_ORG = "\torg=".getBytes(_UTF8);
+	private static final byte[] C_SEV = "\tsev=".getBytes(_UTF8);
+	private static final byte[] C_CONF = "\tconfidence=".getBytes(_UTF8);
+	private static final byte[] C_TITLE = "\ttitle=".getBytes(_UTF8);
+	private static final byte[] C_ACCT = "\taccountName=".getBytes(_UTF8);
+	private static final byte[] C_ACCT2 = "\taccountName2=".getBytes(_UTF8);
+	private static final byte[] C_RESTYPE = "\tresourceType=".getBytes(_UTF8);
+	private static final byte[] C_RES = "\tresource=".getBytes(_UTF8);
+	private static final byte[] C_RES2 = "\tresource2=".getBytes(_UTF8);
+	private static final byte[] C_APP = "\tapplication=".getBytes(_UTF8);
+	private static final byte[] C_EVENT2 = "\tevent2=".getBytes(_UTF8);
+
+	private static final ThreadLocal<ByteBuffer> threadBuffer =
+		new ThreadLocal<ByteBuffer>() {
+			@Override protected ByteBuffer initialValue() {
+				return ByteBuffer.allocate(4096);
 			}
+		};
 
-			return sb.toString();
+	private static final DataKeys KEYS = new DataKeys("\t", "_", "=");
 
-		} catch(Exception e){
-			// Something went awry, just return hex encoded data
-			return "0x" + Utils.hex(data);
-		}
-        }
+	public byte[] transform(CTIItem item, Object group) throws ICTITransformException
+	{
+		final ByteBuffer b = render( item );
+		byte result[] = new byte[ b.position() ];
+		b.rewind();
+		b.get( result );
+		return result;
+	}
 
-	public Object groupObject(CTIItem items[]) throws ICTITransformException
+	public boolean transform(CTIItem item, Object group, ByteBuf out) throws ICTITransformException
 	{
-		return null;
+		final ByteBuffer b = render( item );
+		out.writeBytes( b.array(), 0, b.position() );
+		return true;
 	}
 
-	public byte[] transform(CTIItem item, Object group) throws ICTITransformException
+	// The item, in this thread's buffer
+	private ByteBuffer render(CTIItem item) throws ICTITransformException
 	{
 	  try {
-		StringBuilder sb = new StringBuilder();
-
-		if( _includeTs ){
-			//sb.append(DateTimeFormatter.ISO_INSTANT.format(Instant.now()));
-			//sb.append(_formatter.format(Instant.now()));
-			sb.append( _nowString );
-			sb.append(_hostname);
+		ByteBuffer b = threadBuffer.get();
+		while( true ){
+			b.clear();
+			try {
+				put( b, item );
+				return b;
+			}
+			catch( java.nio.BufferOverflowException e ){
+				// Doesn't fit, start over with a bigger buffer (which this
+				// thread keeps)
+				b = ByteBuffer.allocate( b.capacity() * 2 );
+				threadBuffer.set( b );
+			}
 		}
-		sb.append(LEEFHEADER).append(item._ob._test).append("|");
 
-		sb.append("devTimeFormat=MMM dd yyyy HH:mm:ss\tdevTime=");
-		sb.append( strTs(item._ob._ts) );
-		if( item._ob._type > 0 ) sb.append("\tcat=").append(Decode.observationType(item._ob._type));
-		sb.append("\tsrc=").append(Decode.ipv4ToString(item._recvip));
+	  } catch(Exception e){
+		throw new ICTITransformException("transform", e);
+	  }
+	}
 
-		if( _includeOrg ) sb.append("\torg=").append(Utils.hex(item._org, true));
+	private void put(ByteBuffer b, CTIItem item)
+	{
+		if( _includeTs ) b.put( _nowBytes );
+		b.put( prefix(item._ob) );
 
-		if( item._ob._imp > 0 ) sb.append("\tsev=").append(item._ob._imp);
-		if( item._ob._conf > 0 ) sb.append("\tconfidence=")
-			.append(Decode.confidence(item._ob._conf));
+		b.put( strTs(item._ob._ts) );
+		if( item._ob._type > 0 ) b.put( C_CAT ).put( Decode.observationTypeBytes(item._ob._type) );
+		b.put( C_SRC );
+		Decode.putIp( b, item._recvip );
 
-		if( _includeTitle ){
-			sb.append("\ttitle=").append(Decode.title(item._ob._test,item._ob._test2));
+		if( _includeOrg ){
+			b.put( C_ORG );
+			Utils.putHex( b, item._org, true, false );
 		}
 
-		if( item._user != null && item._user.length > 0 )
-			sb.append("\taccountName=").append(Utils.hex(item._user, true));
+		if( item._ob._imp > 0 ){
+			b.put( C_SEV );
+			Decode.putLong( b, item._ob._imp );
+		}
+		if( item._ob._conf > 0 ) b.put( C_CONF ).put( Decode.confidenceBytes(item._ob._conf) );
+
+		if( _includeTitle ) b.put( C_TITLE ).put( title(item._ob) );
+
+		if( item._user != null && item._user.length > 0 ){
+			b.put( C_ACCT );
+			Utils.putHex( b, item._user, true, false );
+		}
 		if( item._user2 != null && item._user2.length > 0 ){
+			b.put( C_ACCT2 );
 			if( _accountName2String )
-				sb.append("\taccountName2=").append(new String(item._user2, "UTF-8"));
+				Decode.putUtf8( b, item._user2 );
 			else
-				sb.append("\taccountName2=").append(Utils.hex(item._user2, true));
+				Utils.putHex( b, item._user2, true, false );
 		}
 
 		if( item._sysType > 0 )
-			sb.append("\tresourceType=").append(Decode.systemType(item._sysType));
-		if( item._sys != null && item._sys.length > 0 )
-			sb.append("\tresource=").append(Utils.hex(item._sys, true));
+			b.put( C_RESTYPE ).put( Decode.systemTypeBytes(item._sysType) );
+		if( item._sys != null && item._sys.length > 0 ){
+			b.put( C_RES );
+			Utils.putHex( b, item._sys, true, false );
+		}
 		if( item._sys2 != null && item._sys2.length > 0 ){
+			b.put( C_RES2 );
 			if( _resource2String )
-				sb.append("\tresource2=").append(new String(item._sys2, "UTF-8"));
+				Decode.putUtf8( b, item._sys2 );
 			else
-				sb.append("\tresource2=").append(Utils.hex(item._sys2, true));
+				Utils.putHex( b, item._sys2, true, false );
 		}
 
-		if( item._app != null && item._app.length > 0 )
-			sb.append("\tapplication=").append(new String(item._app, "UTF-8"));
-
-		if( item._ob._test2 > 0 )
-			sb.append("\tevent2=").append(item._ob._test2);
+		if( item._app != null && item._app.length > 0 ){
+			b.put( C_APP );
+			Decode.putUtf8( b, item._app );
+		}
 
-		final HashSet<String> seen = new HashSet<String>();
-		for( CTIItem.ObData obd : item._ob._datas ){
+		if( item._ob._test2 > 0 ){
+			b.put( C_EVENT2 );
+			Decode.putLong( b, item._ob._test2 );
+		}
 
-			// Performant way of lowercasing the first character
-			char c[] = Decode.dataType(obd._type).toCharArray();
-			c[0] += 32;
-			String dtype = new String(c);
+		final DataKeys.Seen seen = DataKeys.seen();
+		final ArrayList<CTIItem.ObData> datas = item._ob._datas;
+		for( int i=0; i<datas.size(); i++ ){
+			final CTIItem.ObData obd = datas.get(i);
 
 			// Append _2, _3 for subsequent same key names (since LEEF doesn't allow
 			// dupes)
-			if( seen.contains(dtype) ){
-				int i = 2;
-				String k;
-				while(true){
-					k = dtype + "_" + String.valueOf(i);
-					if( !seen.contains(k) ) break;
-					i = i + 1;
-				}
-				dtype = k;
-			}
-			seen.add(dtype);
+			b.put( KEYS.get( obd._type, seen.next(obd._type) ) );
 
-			String dval;
-			if( obd._data != null )
-				dval = Decode.dataToString(obd._type, obd._data, this);
+			if( obd._data == null )
+				Decode.putLong( b, obd._num );
+			else if( Decode.isStringData(obd._type) )
+				putEscaped( b, obd._data );
 			else
-				dval = Decode.dataToString(obd._type, obd._num);
-			sb.append("\t").append(dtype).append("=").append(dval);
+				Decode.putData( b, obd._type, obd._data, this );
 		}
-
-		return sb.toString().getBytes(_UTF8);
-
-	  } catch(Exception e){
-		throw new ICTITransformException("transform", e);
-	  }
 	}
 }
@@ -0,0 +1,644 @@
+// Copyright 2019 J Forristal LLC
+// Copyright 2016 Addition Security Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.additionsecurity;
+
+import com.additionsecurity.CTIItem;
+import com.additionsecurity.ICTITransform;
+import com.additionsecurity.ICTITransform.ICTITransformException;
+import com.additionsecurity.Utils;
+import com.additionsecurity.Decode;
+
+import java.lang.StringBuilder;
+import java.lang.ThreadLocal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+import java.nio.charset.Charset;
+
+import java.nio.ByteBuffer;
+import io.netty.buffer.ByteBuf;
+
+// A transform laid out by the configuration (transform.template), e.g.:
+//    recvIp={recvIp}[, accountId={accountId}], eventId={eventId}, ts={ts}[, {datas}]
+//
+// A field is {name} or {name:encoder}; a part in [ ] is left out when a field
+// in it has no value; {{ }} [[ ]] are the characters themselves.  {datas} is
+// every data item, each laid out by transform.template.data (fields {key},
+// {type} and {value}) with transform.template.data_separator between them.
+//
+// The layout is compiled at reconfigure() into a flat array of steps, each
+// bound to its field and encoder; the steps up to the first one that depends on
+// the item (rather than its report) make a leader that's written once per
+// report, and the data values go through a table by data type.
+public class TransformTemplate implements ICTITransform {
+
+	private static final String DESC = "Template";
+
+	private static Charset _UTF8 = null;
+	static { _UTF8 = Charset.forName("UTF-8"); }
+
+	// Roughly what the kvp transform writes
+	private static final String DEFAULT_TEMPLATE =
+		"recvIp={recvIp}[, accountId={accountId}][, systemType={systemType}][, systemId={systemId}]" +
+		"[, application=\"{application:kvp}\"], eventId={eventId}[, eventSubId={eventSubId}]" +
+		", ts={ts}[, cat={cat}][, sev={sev}][, conf={conf}][, {datas}]";
+	private static final String DEFAULT_DATA = "{key}=\"{value:kvp}\"";
+	private static final String DEFAULT_SEPARATOR = ", ";
+
+	// Everything the steps need, swapped as a whole on reconfigure()
+	private static final class Plan {
+		Step[] leader;
+		Step[] rest;
+		int steps;
+		String extension;
+	}
+
+	private Plan _plan;
+	private byte[] _hostname;
+	private byte[] _nowBytes = new byte[0];
+
+	public void reconfigure(Properties prop)
+	{
+		_hostname = prop.getProperty("_hostname","asgw").getBytes(_UTF8);
+
+		Plan p = new Plan();
+		p.extension = prop.getProperty("transform.template.extension", "txt");
+		final Step[] data = new Compiler( prop.getProperty("transform.template.data", DEFAULT_DATA),
+			true, null ).steps();
+
+		final Compiler c = new Compiler( prop.getProperty("transform.template", DEFAULT_TEMPLATE), false, new Datas( data,
+			prop.getProperty("transform.template.data_separator", DEFAULT_SEPARATOR).getBytes(_UTF8) ) );
+		final Step[] all = c.steps();
+		int n = 0;
+		while( n < all.length && c.report.get(n) ) n++;
+		p.leader = new Step[n];
+		p.rest = new Step[all.length - n];
+		System.arraycopy( all, 0, p.leader, 0, n );
+		System.arraycopy( all, n, p.rest, 0, all.length - n );
+		p.steps = c.count + data.length;
+		_plan = p;
+	}
+
+	public TransformTemplate(Properties prop)
+	{
+		reconfigure(prop);
+	}
+
+	public String description()
+	{
+		final Plan p = _plan;
+		StringBuilder sb = new StringBuilder();
+		sb.append(DESC);
+		sb.append("; steps=").append(p.steps);
+		sb.append("; leader=").append(p.leader.length);
+		return sb.toString();
+	}
+
+	public String header()
+	{
+		return null;
+	}
+
+	public boolean isMultiLine()
+	{
+		return false;
+	}
+
+	public String extension()
+	{
+		return _plan.extension;
+	}
+
+	public void nowTick(long ts)
+	{
+		_nowBytes = TimeCache.LOCAL.get(ts);
+	}
+
+	private static byte[] strTs(long ts)
+	{
+		return TimeCache.ISO.get(ts);
+	}
+
+	// String data the way the kvp encoder writes it
+	public byte[] dataToByteString(byte[] data) throws ICTITransformException
+	{
+		ByteBuffer b = ByteBuffer.allocate( data.length * 4 );
+		KVP.put( b, data );
+		byte result[] = new byte[ b.position() ];
+		b.rewind();
+		b.get( result );
+		return result;
+	}
+
+	public String dataToString(byte[] data) throws ICTITransformException
+	{
+		return new String( dataToByteString(data), _UTF8 );
+	}
+
+
+	/////////////////////////////////////////////////////////////////////////
+	// Encoders
+
+	// How a field's value is written, the same way whatever the field; numbers
+	// are always just their digits
+	private static abstract class Encoder {
+		private final byte[] _quote;
+
+		Encoder(String quote)
+		{
+			_quote = quote.getBytes(_UTF8);
+		}
+
+		// A value that may need escaping
+		abstract void put(ByteBuffer b, byte[] data);
+
+		// A value that's already text needing no escaping, e.g. a name, an
+		// address or a timestamp
+		void putSafe(ByteBuffer b, byte[] data)
+		{
+			b.put(_quote).put(data).put(_quote);
+		}
+
+		void open(ByteBuffer b){ b.put(_quote); }
+		void close(ByteBuffer b){ b.put(_quote); }
+	}
+
+	private static final Encoder RAW = new Encoder(""){
+		void put(ByteBuffer b, byte[] data){ Decode.putUtf8( b, data ); }
+	};
+
+	// Every byte of the value, text or not, as two hex digits
+	private static final Encoder HEX = new Encoder(""){
+		void put(ByteBuffer b, byte[] data){ Utils.putHex( b, data, false, false ); }
+		@Override void putSafe(ByteBuffer b, byte[] data){ put( b, data ); }
+	};
+
+	// Backslash before quote, equals and backslash, \xHH for anything not
+	// printable ASCII; same as the kvp transform
+	private static final Encoder KVP = new Encoder(""){
+		void put(ByteBuffer b, byte[] data)
+		{
+			int offset = 0;
+			for( int i=0; i<data.length; i++ ){
+				if( data[i] >= 32 && data[i] <= 127 && data[i] != 34 &&
+					data[i] != 61 && data[i] != 92 ) continue;
+
+				b.put( data, offset, (i-offset) );
+				if( data[i] == 34 || data[i] == 61 || data[i] == 92 ){
+					b.put((byte)'\\').put(data[i]);
+				} else {
+					final int v = data[i] & 0xff;
+					b.put((byte)'\\').put((byte)'x');
+					b.put((byte)Utils.hexArray[v >>> 4]).put((byte)Utils.hexArray[v & 0x0f]);
+				}
+				offset = i + 1;
+			}
+			b.put( data, offset, (data.length-offset) );
+		}
+	};
+
+	private static final Encoder CEF = new Encoder(""){
+		void put(ByteBuffer b, byte[] data){ TransformCEF.putEscaped( b, data ); }
+	};
+
+	private static final Encoder LEEF = new Encoder(""){
+		void put(ByteBuffer b, byte[] data){ TransformLEEF.putEscaped( b, data ); }
+	};
+
+	// A JSON string, quotes and all
+	private static final Encoder JSON = new Encoder("\""){
+		void put(ByteBuffer b, byte[] data){ JsonWriter.putString( b, data ); }
+	};
+
+	private static Encoder encoder(String name)
+	{
+		if( name.equals("raw") ) return RAW;
+		if( name.equals("hex") ) return HEX;
+		if( name.equals("kvp") ) return KVP;
+		if( name.equals("cef") ) return CEF;
+		if( name.equals("leef") ) return LEEF;
+		if( name.equals("json") ) return JSON;
+		throw new IllegalArgumentException("transform.template: unknown encoder '" + name + "'");
+	}
+
+
+	/////////////////////////////////////////////////////////////////////////
+	// Steps
+
+	// One piece of the layout; returns false if it's a field with no value.
+	// obd and n (its count among the item's data of that type) are only set
+	// for the data layout.
+	private interface Step {
+		boolean put(ByteBuffer b, CTIItem item, CTIItem.ObData obd, int n) throws Exception;
+	}
+
+	private static boolean putAll(Step[] steps, ByteBuffer b, CTIItem item, CTIItem.ObData obd, int n)
+		throws Exception
+	{
+		for( int i=0; i<steps.length; i++ ) steps[i].put( b, item, obd, n );
+		return true;
+	}
+
+	// A [ ] part; everything or nothing
+	private static Step optional(final Step[] steps)
+	{
+		return (b, item, obd, n) -> {
+			final int mark = b.position();
+			for( int i=0; i<steps.length; i++ ){
+				if( !steps[i].put( b, item, obd, n ) ){
+					b.position( mark );
+					break;
+				}
+			}
+			return true;
+		};
+	}
+
+	private static Step literal(final byte[] bytes)
+	{
+		return (b, item, obd, n) -> { b.put( bytes ); return true; };
+	}
+
+	// An id; with no encoder (null) it's hex without its trailing zero bytes
+	private static Step id(final Encoder e, final Function<CTIItem,byte[]> f)
+	{
+		if( e == null ) return (b, item, obd, n) -> {
+			final byte[] v = f.apply( item );
+			if( v == null || v.length == 0 ) return false;
+			Utils.putHex( b, v, true, false );
+			return true;
+		};
+		return (b, item, obd, n) -> {
+			final byte[] v = f.apply( item );
+			if( v == null || v.length == 0 ) return false;
+			e.put( b, v );
+			return true;
+		};
+	}
+
+	// A name from one of the Decode tables, 0 being none
+	private static Step name(final Encoder e, final ToIntFunction<CTIItem> f,
+		final IntFunction<byte[]> names)
+	{
+		return (b, item, obd, n) -> {
+			final int v = f.applyAsInt( item );
+			if( v <= 0 ) return false;
+			e.putSafe( b, names.apply(v) );
+			return true;
+		};
+	}
+
+	// {datas}
+	private static final class Datas implements Step {
+		private final Step[] _steps;
+		private final byte[] _separator;
+
+		Datas(Step[] steps, byte[] separator)
+		{
+			_steps = steps;
+			_separator = separator;
+		}
+
+		public boolean put(ByteBuffer b, CTIItem item, CTIItem.ObData unused, int unusedN) throws Exception
+		{
+			final ArrayList<CTIItem.ObData> datas = item._ob._datas;
+			if( datas.isEmpty() ) return false;
+
+			final DataKeys.Seen seen = DataKeys.seen();
+			boolean first = true;
+			for( int i=0; i<datas.size(); i++ ){
+				final CTIItem.ObData obd = datas.get(i);
+				final int mark = b.position();
+				try {
+					if( !first ) b.put( _separator );
+					putAll( _steps, b, item, obd, seen.next(obd._type) );
+					first = false;
+				}
+				catch( java.nio.BufferOverflowException e ){
+					// Too much data; keep what we have and skip this data item
+					b.position( mark );
+					App.reportDroppedData();
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final int NUMBER = 1, STRING = 2, OTHER = 3;
+
+	// {value}, dispatched on the data type through a table made up front
+	private Step value(final Encoder e)
+	{
+		final int[] kinds = new int[ Decode.dataTypeCount() ];
+		for( int typ=0; typ<kinds.length; typ++ ){
+			if( Decode.isNumberData(typ) ) kinds[typ] = NUMBER;
+			else if( Decode.isStringData(typ) ) kinds[typ] = STRING;
+			else kinds[typ] = OTHER;
+		}
+		final ICTITransform t = this;
+
+		return (b, item, obd, n) -> {
+			if( obd._data == null ){
+				Decode.putLong( b, obd._num );
+				return true;
+			}
+			switch( kinds[ DataKeys.type(obd._type) ] ){
+				case NUMBER:
+					Decode.putLong( b, Decode.uint32(obd._data) );
+					break;
+				case STRING:
+					e.put( b, obd._data );
+					break;
+				default:
+					// hex is of the data itself, not its text
+					if( e == HEX ) e.put( b, obd._data );
+					else e.put( b, Decode.dataToByteString(obd._type, obd._data, t) );
+			}
+			return true;
+		};
+	}
+
+	// A field, bound to its encoder
+	private Step field(String name, Encoder e, boolean data)
+	{
+		final Encoder enc = ( e == null ) ? RAW : e;
+		if( data ){
+			if( name.equals("key") ){
+				final DataKeys keys = ( e == JSON ) ? new DataKeys("\"", "_", "\"") : new DataKeys("", "_", "");
+				if( e == HEX ) return (b, item, obd, n) -> { HEX.put( b, keys.get(obd._type, n) ); return true; };
+				return (b, item, obd, n) -> { b.put( keys.get(obd._type, n) ); return true; };
+			}
+			if( name.equals("type") )
+				return (b, item, obd, n) -> { enc.putSafe( b, Decode.dataTypeBytes(obd._type) ); return true; };
+			if( name.equals("value") )
+				return value( enc );
+			throw new IllegalArgumentException("transform.template.data: unknown field '" + name + "'");
+		}
+
+		switch( name ){
+			case "now":
+				return (b, item, obd, n) -> { enc.putSafe( b, _nowBytes ); return true; };
+			case "host":
+				return (b, item, obd, n) -> { enc.put( b, _hostname ); return true; };
+			case "recvIp":
+				if( enc == HEX ) return (b, item, obd, n) -> {
+					enc.put( b, Decode.ipToString(item._recvip).getBytes(_UTF8) );
+					return true;
+				};
+				return (b, item, obd, n) -> {
+					enc.open( b );
+					Decode.putIp( b, item._recvip );
+					enc.close( b );
+					return true;
+				};
+			case "org":
+				return id( e, item -> item._org );
+			case "accountId":
+				return id( e, item -> item._user );
+			case "accountId2":
+				return id( e, item -> item._user2 );
+			case "systemId":
+				return id( e, item -> item._sys );
+			case "systemId2":
+				return id( e, item -> item._sys2 );
+			case "application":
+				return id( enc, item -> item._app );
+			case "systemType":
+				return name( enc, item -> item._sysType, Decode::systemTypeBytes );
+			case "eventId":
+				return (b, item, obd, n) -> { Decode.putLong( b, item._ob._test ); return true; };
+			case "eventSubId":
+				return (b, item, obd, n) -> {
+					if( item._ob._test2 <= 0 ) return false;
+					Decode.putLong( b, item._ob._test2 );
+					return true;
+				};
+			case "title":
+				return title( enc );
+			case "ts":
+				return (b, item, obd, n) -> { enc.putSafe( b, strTs(item._ob._ts) ); return true; };
+			case "cat":
+				return name( enc, item -> item._ob._type, Decode::observationTypeBytes );
+			case "sev":
+				return name( enc, item -> item._ob._imp, Decode::impactBytes );
+			case "conf":
+				return name( enc, item -> item._ob._conf, Decode::confidenceBytes );
+		}
+		throw new IllegalArgumentException("transform.template: unknown field '" + name + "'");
+	}
+
+	// Titles only depend on the event and subevent, so each is encoded once
+	private static Step title(final Encoder e)
+	{
+		final PrefixCache titles = new PrefixCache(1024);
+		return (b, item, obd, n) -> {
+			byte[] t = titles.get( item._ob._test, item._ob._test2, 0 );
+			if( t == null ){
+				final byte[] s = Decode.title(item._ob._test, item._ob._test2).getBytes(_UTF8);
+				final ByteBuffer tb = ByteBuffer.allocate( s.length * 6 + 2 );
+				e.put( tb, s );
+				t = new byte[ tb.position() ];
+				tb.rewind();
+				tb.get( t );
+				titles.put( item._ob._test, item._ob._test2, 0, t );
+			}
+			b.put( t );
+			return true;
+		};
+	}
+
+	// Which fields are about the report (the same for all of its items) rather
+	// than the item
+	private static boolean isReportField(String name)
+	{
+		switch( name ){
+			case "now": case "host": case "recvIp": case "org": case "accountId": case "accountId2":
+			case "systemId": case "systemId2": case "application": case "systemType":
+				return true;
+		}
+		return false;
+	}
+
+	// Turns a layout into steps
+	private final class Compiler {
+		private final String _s;
+		private final boolean _data;
+		private final Step _datas;
+		private int _pos = 0;
+		final List<Boolean> report = new ArrayList<Boolean>(); // of the top level steps
+		int count = 0;
+
+		Compiler(String s, boolean data, Step datas)
+		{
+			_s = s;
+			_data = data;
+			_datas = datas;
+		}
+
+		Step[] steps()
+		{
+			final Step[] steps = parse( false, report );
+			if( _pos < _s.length() ) error("unexpected ']'");
+			return steps;
+		}
+
+		private void error(String what)
+		{
+			throw new IllegalArgumentException( (_data ? "transform.template.data: " : "transform.template: ")
+				+ what + " at " + _pos );
+		}
+
+		// Up to the end, or the ']' of the part we're in
+		private Step[] parse(boolean inPart, List<Boolean> report)
+		{
+			final List<Step> steps = new ArrayList<Step>();
+			final StringBuilder lit = new StringBuilder();
+
+			while( _pos < _s.length() ){
+				final char c = _s.charAt(_pos);
+				final char d = ( _pos + 1 < _s.length() ) ? _s.charAt(_pos + 1) : 0;
+
+				if( (c == '{' || c == '}' || c == '[' || c == ']') && d == c ){
+					lit.append(c);
+					_pos += 2;
+					continue;
+				}
+				if( c == '}' ) error("unexpected '}'");
+				if( c == ']' ){
+					if( !inPart ) break;
+					_pos++;
+					flush( lit, steps, report );
+					return steps.toArray( new Step[0] );
+				}
+				if( c != '{' && c != '[' ){
+					lit.append(c);
+					_pos++;
+					continue;
+				}
+
+				flush( lit, steps, report );
+				_pos++;
+				if( c == '[' ){
+					final List<Boolean> inner = new ArrayList<Boolean>();
+					final Step[] part = parse( true, inner );
+					steps.add( optional(part) );
+					report.add( !inner.contains(Boolean.FALSE) );
+					count++;
+					continue;
+				}
+
+				final int end = _s.indexOf('}', _pos);
+				if( end < 0 ) error("missing '}'");
+				final String spec = _s.substring(_pos, end).trim();
+				_pos = end + 1;
+				final int colon = spec.indexOf(':');
+				final String name = ( colon < 0 ) ? spec : spec.substring(0, colon).trim();
+				final Encoder e = ( colon < 0 ) ? null : encoder( spec.substring(colon + 1).trim() );
+
+				if( !_data && name.equals("datas") ){
+					steps.add( _datas );
+					report.add( false );
+				} else {
+					steps.add( field( name, e, _data ) );
+					report.add( !_data && isReportField(name) );
+				}
+				count++;
+			}
+
+			if( inPart ) error("missing ']'");
+			flush( lit, steps, report );
+			return steps.toArray( new Step[0] );
+		}
+
+		private void flush(StringBuilder lit, List<Step> steps, List<Boolean> report)
+		{
+			if( lit.length() == 0 ) return;
+			steps.add( literal( lit.toString().getBytes(_UTF8) ) );
+			report.add( true );
+			lit.setLength(0);
+			count++;
+		}
+	}
+
+
+	/////////////////////////////////////////////////////////////////////////
+	// Transform
+
+	private static class GroupInfo
+	{
+		ByteBuffer b;
+		int leader;
+		Plan plan;
+	}
+
+	private static final ThreadLocal<ByteBuffer> threadBuffer =
+		new ThreadLocal<ByteBuffer>() {
+			@Override protected ByteBuffer initialValue() {
+				return ByteBuffer.allocate(8192);
+			}
+		};
+
+	public Object groupObject(CTIItem items[]) throws ICTITransformException
+	{
+		if( items.length == 0 ) return null;
+		ByteBuffer b = threadBuffer.get();
+		b.clear();
+
+		GroupInfo go = new GroupInfo();
+		go.plan = _plan;
+		try {
+			putAll( go.plan.leader, b, items[0], null, 0 );
+		} catch(Exception e){
+			throw new ICTITransformException("groupObject", e);
+		}
+		go.leader = b.position();
+		go.b = b;
+		return go;
+	}
+
+	public byte[] transform(CTIItem item, Object group) throws ICTITransformException
+	{
+		final ByteBuffer b = render( item, group );
+		byte result[] = new byte[ b.position() ];
+		b.rewind();
+		b.get( result );
+		return result;
+	}
+
+	public boolean transform(CTIItem item, Object group, ByteBuf out) throws ICTITransformException
+	{
+		final ByteBuffer b = render( item, group );
+		out.writeBytes( b.array(), 0, b.position() );
+		return true;
+	}
+
+	// The item after the group's leader, in the group's buffer
+	private ByteBuffer render(CTIItem item, Object group) throws ICTITransformException
+	{
+	  try {
+		GroupInfo go = (GroupInfo)group;
+		ByteBuffer b = (ByteBuffer)go.b.position(go.leader);
+		putAll( go.plan.rest, b, item, null, 0 );
+		return b;
+
+	  } catch(Exception e){
+		throw new ICTITransformException("transform", e);
+	  }
+	}
+}
@@ -14,6 +14,7 @@
 // limitations under the License.
 
 package com.additionsecurity;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 public class Utils {
@@ -86,4 +87,25 @@ public class Utils {
 		return hexChars;
 	}
 
+	// Same as hexBytes(), written into b
+	public static void putHex(ByteBuffer b, byte[] bytes, boolean shrink, boolean prefix)
+	{
+		int end = ( bytes == null ) ? 0 : bytes.length;
+		if( shrink ){
+			for ( ; end > 0; end-- ){
+				if( bytes[end-1] != 0 ) break;
+			}
+		}
+		if( end == 0 ){
+			b.put( prefix ? NULL2 : NULL );
+			return;
+		}
+
+		if( prefix ) b.put((byte)'0').put((byte)'x');
+		for ( int j = 0; j < end; j++ ) {
+			int v = bytes[j] & 0xFF;
+			b.put((byte)hexArray[v >>> 4]).put((byte)hexArray[v & 0x0F]);
+		}
+	}
+
 }
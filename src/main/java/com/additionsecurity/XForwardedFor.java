@@ -13,72 +13,280 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
-
 package com.additionsecurity;
 
+// Works out a request's client address from its X-Forwarded-For header and the
+// address it came in from.  Addresses are IPv4 (4 bytes) or IPv6 (16 bytes; IPv4
+// mapped addresses come out as IPv4), read straight out of the header's chars;
+// the only allocation is the result.
+//
+// With trusted proxies set, the header is only believed if the connecting address
+// is one of them, and then its hops are walked from the right (the nearest proxy)
+// to the first that isn't.  Without, every hop is believed and the leftmost is
+// the client, as the header was always taken to mean.
 public class XForwardedFor {
 
 	public static byte[] NULL = new byte[]{0,0,0,0};
 
-	public static byte[] parse( byte[] data, int start ){
-		//long result = 0;
-		int octet = 0;
-		//int i;
-		int ptr = start;
+	// Trusted networks, in the IPv6 (IPv4 mapped) space
+	private static long[] _netHi, _netLo, _maskHi, _maskLo;
 
-		try {
-			byte[] result = new byte[4];
+	// Set the trusted proxies: a comma separated list of addresses and CIDRs,
+	// or null/empty for none (believe every hop)
+	public static void trust(String cidrs) throws Exception
+	{
+		if( cidrs == null || cidrs.trim().isEmpty() ){
+			_netHi = null;
+			return;
+		}
 
-			octet = ( data[ptr++] - '0' );
-			if( data[ptr] != '.' ){
-				octet = (octet * 10) + (data[ptr++] - '0');
-				if( data[ptr] != '.' ){
-					octet = (octet * 10) + (data[ptr++] - '0');
-				}
+		final String[] parts = cidrs.split(",");
+		final long[] nh = new long[parts.length], nl = new long[parts.length];
+		final long[] mh = new long[parts.length], ml = new long[parts.length];
+		final Parser p = new Parser();
+		for( int i=0; i<parts.length; i++ ){
+			final String c = parts[i].trim();
+			final int slash = c.indexOf('/');
+			if( !p.parse(c, 0, slash < 0 ? c.length() : slash) ) throw new Exception(c);
+
+			int bits = p.v4 ? 32 : 128;
+			if( slash >= 0 ) bits = Integer.parseInt( c.substring(slash + 1) );
+			if( bits < 0 || bits > (p.v4 ? 32 : 128) ) throw new Exception(c);
+			if( p.v4 ) bits += 96;
+
+			mh[i] = bits >= 64 ? -1L : (bits == 0 ? 0 : -1L << (64 - bits));
+			ml[i] = bits <= 64 ? 0 : (bits == 128 ? -1L : -1L << (128 - bits));
+			nh[i] = p.hi & mh[i];
+			nl[i] = p.lo & ml[i];
+		}
+		_netHi = nh; _netLo = nl; _maskHi = mh; _maskLo = ml;
+	}
+
+	// The client address for a request with the given header (null if it has
+	// none) that came from peer; NULL if that can't be told
+	public static byte[] client(CharSequence xff, CharSequence peer)
+	{
+		final Parser p = PARSER.get();
+
+		if( _netHi == null ){
+			if( xff == null ) return address(peer);
+			int end = 0;
+			while( end < xff.length() && xff.charAt(end) != ',' ) end++;
+			return p.parse(xff, 0, end) ? p.result() : NULL;
+		}
+
+		// Only a trusted proxy gets to speak for someone else
+		if( peer == null || !p.parse(peer, 0, peer.length()) ) return NULL;
+		if( xff == null || !p.trusted() ) return p.result();
+
+		int end = xff.length();
+		while( end > 0 ){
+			int start = end;
+			while( start > 0 && xff.charAt(start - 1) != ',' ) start--;
+			if( !blank(xff, start, end) ){
+				if( !p.parse(xff, start, end) ) return NULL;
+				if( !p.trusted() ) return p.result();
 			}
-			if( octet < 0 || octet > 255 ) throw new Exception();
-			result[0] = (byte)octet;
+			end = start - 1;
+		}
 
-			ptr++;
+		// Proxies all the way; the leftmost is as far back as it goes
+		return p.result();
+	}
+
+	// A single address, e.g. a socket's; NULL if it isn't one
+	public static byte[] address(CharSequence s)
+	{
+		if( s == null ) return NULL;
+		final Parser p = PARSER.get();
+		return p.parse(s, 0, s.length()) ? p.result() : NULL;
+	}
+
+	private static boolean blank(CharSequence s, int start, int end)
+	{
+		for( int i=start; i<end; i++ ) if( s.charAt(i) != ' ' && s.charAt(i) != '\t' ) return false;
+		return true;
+	}
+
+	private static final ThreadLocal<Parser> PARSER = new ThreadLocal<Parser>(){
+		@Override protected Parser initialValue(){ return new Parser(); }
+	};
+
+	// Parses one address into hi/lo (IPv4 as IPv4 mapped), allowing for the
+	// surrounding whitespace, [brackets], a :port and a %zone
+	private static class Parser {
+		final int[] g = new int[8];
+		long hi, lo;
+		boolean v4;
 
-			octet = ( data[ptr++] - '0' );
-			if( data[ptr] != '.' ){
-				octet = (octet * 10) + (data[ptr++] - '0');
-				if( data[ptr] != '.' ){
-					octet = (octet * 10) + (data[ptr++] - '0');
+		boolean trusted()
+		{
+			for( int i=0; i<_netHi.length; i++ ){
+				if( (hi & _maskHi[i]) == _netHi[i] && (lo & _maskLo[i]) == _netLo[i] ) return true;
+			}
+			return false;
+		}
+
+		byte[] result()
+		{
+			if( v4 ){
+				return new byte[]{ (byte)(lo >>> 24), (byte)(lo >>> 16), (byte)(lo >>> 8), (byte)lo };
+			}
+			final byte[] r = new byte[16];
+			for( int i=0; i<8; i++ ){
+				r[i] = (byte)(hi >>> (56 - (8 * i)));
+				r[i + 8] = (byte)(lo >>> (56 - (8 * i)));
+			}
+			return r;
+		}
+
+		boolean parse(CharSequence s, int start, int end)
+		{
+			while( start < end && (s.charAt(start) == ' ' || s.charAt(start) == '\t') ) start++;
+			while( end > start && (s.charAt(end - 1) == ' ' || s.charAt(end - 1) == '\t') ) end--;
+			if( start == end ) return false;
+
+			if( s.charAt(start) == '[' ){
+				int close = start + 1;
+				while( close < end && s.charAt(close) != ']' ) close++;
+				if( close == end ) return false;
+				if( close + 1 < end && !port(s, close + 1, end) ) return false;
+				return v6(s, start + 1, zone(s, start + 1, close));
+			}
+
+			// More than one colon is IPv6; just one is IPv4 with a port
+			int colons = 0, first = -1;
+			for( int i=start; i<end && colons < 2; i++ ){
+				if( s.charAt(i) == ':' ){
+					if( first < 0 ) first = i;
+					colons++;
 				}
 			}
-			if( octet < 0 || octet > 255 ) throw new Exception();
-			result[1] = (byte)octet;
+			if( colons >= 2 ) return v6(s, start, zone(s, start, end));
+			if( colons == 1 ){
+				if( !port(s, first, end) ) return false;
+				end = first;
+			}
+
+			final long a = v4(s, start, end);
+			if( a < 0 ) return false;
+			setV4(a);
+			return true;
+		}
 
-			ptr++;
+		private void setV4(long a)
+		{
+			hi = 0;
+			lo = 0xffff00000000L | a;
+			v4 = true;
+		}
+
+		// End of the address proper, before any %zone
+		private static int zone(CharSequence s, int start, int end)
+		{
+			for( int i=start; i<end; i++ ) if( s.charAt(i) == '%' ) return i;
+			return end;
+		}
+
+		// A :port suffix
+		private static boolean port(CharSequence s, int start, int end)
+		{
+			if( s.charAt(start) != ':' || (end - start) < 2 || (end - start) > 6 ) return false;
+			for( int i=start+1; i<end; i++ ){
+				final char c = s.charAt(i);
+				if( c < '0' || c > '9' ) return false;
+			}
+			return true;
+		}
 
-			octet = ( data[ptr++] - '0' );
-			if( data[ptr] != '.' ){
-				octet = (octet * 10) + (data[ptr++] - '0');
-				if( data[ptr] != '.' ){
-					octet = (octet * 10) + (data[ptr++] - '0');
+		// Dotted quad as an unsigned 32 bit value, or -1
+		private static long v4(CharSequence s, int start, int end)
+		{
+			long a = 0;
+			int octets = 0, digits = 0, octet = 0;
+			for( int i=start; i<=end; i++ ){
+				final char c = ( i == end ) ? '.' : s.charAt(i);
+				if( c == '.' ){
+					if( digits == 0 || octet > 255 || ++octets > 4 ) return -1;
+					a = (a << 8) | octet;
+					digits = 0;
+					octet = 0;
 				}
+				else if( c >= '0' && c <= '9' && digits < 3 ){
+					octet = (octet * 10) + (c - '0');
+					digits++;
+				}
+				else return -1;
 			}
-			if( octet < 0 || octet > 255 ) throw new Exception();
-			result[2] = (byte)octet;
+			return ( octets == 4 ) ? a : -1;
+		}
 
-			ptr++;
+		private boolean v6(CharSequence s, int start, int end)
+		{
+			int n = 0;         // groups so far
+			int gap = -1;      // where the :: is, in groups
+			int i = start;
+
+			if( (end - start) >= 2 && s.charAt(i) == ':' && s.charAt(i + 1) == ':' ){
+				gap = 0;
+				i += 2;
+			}
+			else if( i < end && s.charAt(i) == ':' ) return false;
+
+			while( i < end ){
+				if( n == 8 ) return false;
+
+				// A trailing dotted quad fills the last two groups
+				int j = i;
+				while( j < end && s.charAt(j) != ':' && s.charAt(j) != '.' ) j++;
+				if( j < end && s.charAt(j) == '.' ){
+					if( n > 6 ) return false;
+					final long a = v4(s, i, end);
+					if( a < 0 ) return false;
+					g[n++] = (int)(a >>> 16);
+					g[n++] = (int)(a & 0xffff);
+					i = end;
+					break;
+				}
 
-			octet = ( data[ptr++] - '0' );
-			if( data.length > ptr && data[ptr] != '.' && data[ptr] != ',' ){
-				octet = (octet * 10) + (data[ptr++] - '0');
-				if( data.length > ptr && data[ptr] != '.' && data[ptr] != ',' ){
-					octet = (octet * 10) + (data[ptr++] - '0');
+				if( j == i || (j - i) > 4 ) return false;
+				int v = 0;
+				for( int k=i; k<j; k++ ){
+					final char c = s.charAt(k);
+					if( c >= '0' && c <= '9' ) v = (v << 4) | (c - '0');
+					else if( c >= 'a' && c <= 'f' ) v = (v << 4) | (c - 'a' + 10);
+					else if( c >= 'A' && c <= 'F' ) v = (v << 4) | (c - 'A' + 10);
+					else return false;
+				}
+				g[n++] = v;
+				i = j;
+
+				if( i < end ){
+					// ':' then either another group, or a second ':' for the gap
+					i++;
+					if( i < end && s.charAt(i) == ':' ){
+						if( gap >= 0 ) return false;
+						gap = n;
+						i++;
+					}
+					else if( i == end ) return false;
 				}
 			}
-			if( octet < 0 || octet > 255 ) throw new Exception();
-			result[3] = (byte)octet;
 
-			return result;
-		}
-		catch (Exception e ){
-			return NULL;
+			if( gap < 0 && n != 8 ) return false;
+			if( gap >= 0 && n == 8 ) return false;
+
+			hi = 0;
+			lo = 0;
+			final int fill = 8 - n;
+			for( int k=0, idx=0; k<8; k++ ){
+				final int v = ( gap >= 0 && k >= gap && k < gap + fill ) ? 0 : g[idx++];
+				if( k < 4 ) hi = (hi << 16) | v;
+				else lo = (lo << 16) | v;
+			}
+
+			v4 = ( hi == 0 && (lo >>> 32) == 0xffff );
+			return true;
 		}
 	}
 }
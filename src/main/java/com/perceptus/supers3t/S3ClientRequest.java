@@ -5,7 +5,10 @@ import io.vertx.core.MultiMap;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpConnection;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.http.StreamPriority;
 //import org.slf4j.Logger;
 //import org.slf4j.LoggerFactory;
 
@@ -118,6 +121,81 @@ public class S3ClientRequest implements HttpClientRequest {
         return request.uri();
     }
 
+    @Override
+    public String getRawMethod() {
+        return request.getRawMethod();
+    }
+
+    @Override
+    public HttpClientRequest setRawMethod(String method) {
+        return request.setRawMethod(method);
+    }
+
+    @Override
+    public String absoluteURI() {
+        return request.absoluteURI();
+    }
+
+    @Override
+    public String path() {
+        return request.path();
+    }
+
+    @Override
+    public String query() {
+        return request.query();
+    }
+
+    @Override
+    public HttpClientRequest setHost(String host) {
+        return request.setHost(host);
+    }
+
+    @Override
+    public String getHost() {
+        return request.getHost();
+    }
+
+    @Override
+    public HttpClientRequest setFollowRedirects(boolean followRedirects) {
+        return request.setFollowRedirects(followRedirects);
+    }
+
+    @Override
+    public HttpClientRequest fetch(long amount) {
+        return request.fetch(amount);
+    }
+
+    @Override
+    public HttpClientRequest pushHandler(Handler<HttpClientRequest> handler) {
+        return request.pushHandler(handler);
+    }
+
+    @Override
+    public HttpConnection connection() {
+        return request.connection();
+    }
+
+    @Override
+    public HttpClientRequest connectionHandler(Handler<HttpConnection> handler) {
+        return request.connectionHandler(handler);
+    }
+
+    @Override
+    public HttpClientRequest writeCustomFrame(int type, int flags, Buffer payload) {
+        return request.writeCustomFrame(type, flags, payload);
+    }
+
+    @Override
+    public StreamPriority getStreamPriority() {
+        return request.getStreamPriority();
+    }
+
+    @Override
+    public boolean reset(long code) {
+        return request.reset(code);
+    }
+
     @Override
     public HttpClientRequest putHeader(String name, String value) {
         return request.putHeader(name, value);
@@ -166,6 +244,13 @@ public class S3ClientRequest implements HttpClientRequest {
         return request.sendHead();
     }
 
+    @Override public HttpClientRequest sendHead(Handler<HttpVersion> completionHandler) {
+        // Generate authentication header
+        initAuthenticationHeader();
+        // Send the header
+        return request.sendHead(completionHandler);
+    }
+
     @Override public void end(String chunk) {
         // Generate authentication header
         initAuthenticationHeader();
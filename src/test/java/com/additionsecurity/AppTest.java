@@ -4,6 +4,9 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
 /**
  * Unit test for simple App.
  */
@@ -35,4 +38,60 @@ public class AppTest
     {
         assertTrue( true );
     }
+
+	private static void set(String field, Object value) throws Exception
+	{
+		java.lang.reflect.Field f = App.class.getDeclaredField(field);
+		f.setAccessible(true);
+		f.set(null, value);
+	}
+
+	// A report from dev1 with a sighting of test 1234/5 at ts 100
+	private static byte[] report() throws Exception
+	{
+		java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
+		com.google.protobuf.CodedOutputStream cos = com.google.protobuf.CodedOutputStream.newInstance(bos);
+		cos.writeByteArray( 2, "dev1".getBytes() );
+		cos.writeTag( 8, com.google.protobuf.WireFormat.WIRETYPE_LENGTH_DELIMITED );
+		cos.writeUInt32NoTag( 9 );
+		cos.writeUInt32( 1, 1 ); // sighting type
+		cos.writeUInt32( 6, 1234 ); // test
+		cos.writeUInt32( 7, 5 ); // subtest
+		cos.writeUInt32( 2, 100 ); // timestamp
+		cos.flush();
+		return bos.toByteArray();
+	}
+
+	/**
+	 * A report whose output failed isn't coalesced away when it's sent again
+	 */
+	public void testRetryAfterFailedOutput() throws Exception
+	{
+		Properties prop = new Properties();
+		prop.setProperty( "input.coalesce_window", "60" );
+		prop.setProperty( "_hostname", "unitester" );
+		final int[] fail = new int[]{ 1 };
+		set( "_input", new InputCTIProtobuf( prop ) );
+		set( "_transform", new TransformKVP2( prop ) );
+		set( "_output", new ICTIOutput(){
+			public void output(byte[][] datas) throws ICTIOutput.ICTIOutputException {
+				if( fail[0]-- > 0 ) throw new ICTIOutput.ICTIOutputException("down");
+			}
+			public void nowTick(long ts) {}
+			public String description() { return "test"; }
+			public boolean isBlocking() { return false; }
+			public int pending() { return 0; }
+		});
+
+		byte[] ip = new byte[4];
+		OutputSink sink = App.ingest( ip, 1000, ByteBuffer.wrap(report()) );
+		assertEquals( 1, sink.count() );
+		assertEquals( 500, App.emit(sink) );
+
+		// The retry comes through; once it's been delivered, the next is coalesced
+		sink = App.ingest( ip, 1001, ByteBuffer.wrap(report()) );
+		assertEquals( 1, sink.count() );
+		assertEquals( 200, App.emit(sink) );
+		assertEquals( 0, App.ingest( ip, 1002, ByteBuffer.wrap(report()) ).count() );
+	}
 }
@@ -0,0 +1,71 @@
+package com.additionsecurity;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.additionsecurity.*;
+
+public class ErrorReporterTest extends TestCase
+{
+    public ErrorReporterTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( ErrorReporterTest.class );
+    }
+
+	private static Exception thrown(String msg) {
+		return new IllegalStateException(msg);
+	}
+
+	public void testFirst() throws Exception {
+		ErrorReporter r = new ErrorReporter();
+		assertNull( r.summary() );
+
+		// Same place, different message: one kind
+		String[] first = new String[3];
+		for( int i=0; i<3; i++ ) first[i] = r.first( thrown("msg " + i) );
+		assertNotNull( first[0] );
+		assertTrue( first[0].contains("IllegalStateException: msg 0") );
+		assertNull( first[1] );
+		assertNull( first[2] );
+
+		// Elsewhere is another kind
+		assertNotNull( r.first( new IllegalArgumentException("x") ) );
+		assertNotNull( r.first( new Exception(thrown("cause")) ) );
+
+		String s = r.summary();
+		assertNotNull( s );
+		assertTrue( s.contains("2 x ") );
+		assertTrue( s.contains("IllegalStateException at ") );
+
+		// Counts start over with each summary
+		assertNull( r.summary() );
+	}
+
+	public void testFull() throws Exception {
+		ErrorReporter r = new ErrorReporter();
+
+		// Fill the table with kinds that don't repeat
+		int n = 0;
+		while( r.first( at(n) ) != null ) n++;
+		assertTrue( n > 100 );
+		assertNull( r.first( at(n + 1) ) );
+		assertNull( r.first( at(0) ) );
+		assertTrue( r.summary().contains("2 x (not tracked)") );
+
+		// The summary made room: a new kind is reported in full again, and the
+		// one that repeated is still known
+		assertNotNull( r.first( at(n + 1) ) );
+		assertNull( r.first( at(0) ) );
+	}
+
+	// A kind of its own for each line
+	private static Exception at(int line) {
+		Exception e = new IllegalStateException();
+		e.setStackTrace( new StackTraceElement[]{ new StackTraceElement("C", "m", "C.java", line) } );
+		return e;
+	}
+}
@@ -44,6 +44,361 @@ public class InputCTIProtobufTest extends TestCase
 
 	}
 
+	public void testBatch() throws Exception {
+		Properties prop = new Properties();
+		ICTIInput ctiin = new InputCTIProtobuf( prop );
+
+		URL msgu = ClassLoader.getSystemResource("cti_msg.pb");
+		File msgf = new File(msgu.toURI());
+		byte[] msg = Files.readAllBytes(msgf.toPath());
+
+		// Two good reports around a malformed one, then a truncated one
+		java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
+		com.google.protobuf.CodedOutputStream cos = com.google.protobuf.CodedOutputStream.newInstance(bos);
+		cos.writeUInt32NoTag( msg.length ); cos.writeRawBytes( msg );
+		cos.writeUInt32NoTag( 3 ); cos.writeRawBytes( new byte[]{ (byte)0xff, (byte)0xff, (byte)0xff } );
+		cos.writeUInt32NoTag( msg.length ); cos.writeRawBytes( msg );
+		cos.writeUInt32NoTag( msg.length ); cos.writeRawBytes( msg, 0, msg.length / 2 );
+		cos.flush();
+
+		byte[] ip = new byte[4];
+		CTIItem[][] reports = ctiin.processBatch( ip, 0, new java.io.ByteArrayInputStream( bos.toByteArray() ) );
+		assertNotNull( reports );
+		assertEquals( 4, reports.length );
+		assertNotNull( reports[0] );
+		assertNull( reports[1] );
+		assertNotNull( reports[2] );
+		assertNull( reports[3] );
+
+		// The repeat of the first report has its coalescable sightings dropped
+		CTIItem[] items = new InputCTIProtobuf( prop ).process( ip, 0, new java.io.ByteArrayInputStream( msg ) );
+		assertEquals( items.length, reports[0].length );
+		assertTrue( reports[2].length > 0 && reports[2].length < reports[0].length );
+	}
+
+	public void testDirectDecoder() throws Exception {
+		URL msgu = ClassLoader.getSystemResource("cti_msg.pb");
+		File msgf = new File(msgu.toURI());
+		byte[] msg = Files.readAllBytes(msgf.toPath());
+
+		// The fixture, every truncation of it, and byte corruptions at every offset
+		java.util.ArrayList<byte[]> cases = new java.util.ArrayList<byte[]>();
+		cases.add( msg );
+		for( int i=0; i<msg.length; i++ ) cases.add( java.util.Arrays.copyOf(msg, i) );
+		for( int i=0; i<msg.length; i++ ){
+			for( int v : new int[]{ 0x00, 0x7f, 0x80, 0xff, msg[i] + 1, msg[i] ^ 0x80 } ){
+				byte[] c = msg.clone();
+				c[i] = (byte)v;
+				cases.add( c );
+			}
+		}
+
+		// (each decoder starts with its own, small, coalesce table)
+		Properties dprop = new Properties();
+		dprop.setProperty( "input.coalesce_max_entries", "512" );
+		Properties gprop = new Properties();
+		gprop.putAll( dprop );
+		gprop.setProperty( "input.decoder", "generated" );
+		byte[] ip = new byte[4];
+		int decoded = 0;
+
+		// Compared per source type: protobuf's stream decoder takes EOF inside a
+		// sighting as its end, while decoding from a buffer calls it truncated
+		for( byte[] c : cases ){
+			CTIItem[] expect = new InputCTIProtobuf( gprop ).process( ip, 7, new java.io.ByteArrayInputStream(c) );
+			CTIItem[] got = new InputCTIProtobuf( dprop ).process( ip, 7, new java.io.ByteArrayInputStream(c) );
+			assertItems( expect, got );
+
+			expect = new InputCTIProtobuf( gprop ).process( ip, 7, java.nio.ByteBuffer.wrap(c) );
+			got = new InputCTIProtobuf( dprop ).process( ip, 7, java.nio.ByteBuffer.wrap(c) );
+			assertItems( expect, got );
+			if( got != null ) decoded++;
+		}
+		assertTrue( decoded > 1 );
+	}
+
+	public void testLimits() throws Exception {
+		URL msgu = ClassLoader.getSystemResource("cti_msg.pb");
+		File msgf = new File(msgu.toURI());
+		byte[] msg = Files.readAllBytes(msgf.toPath());
+		byte[] ip = new byte[4];
+
+		// A trailing 8KB organizationId replaces the original one
+		java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
+		com.google.protobuf.CodedOutputStream cos = com.google.protobuf.CodedOutputStream.newInstance(bos);
+		cos.writeRawBytes( msg );
+		cos.writeByteArray( 1, new byte[8192] );
+		cos.flush();
+		byte[] large = bos.toByteArray();
+
+		ICTIInput ctiin = new InputCTIProtobuf( new Properties() );
+		assertNotNull( ctiin.process( ip, 0, java.nio.ByteBuffer.wrap(msg) ) );
+		assertNull( ctiin.process( ip, 0, java.nio.ByteBuffer.wrap(large) ) );
+		assertNull( ctiin.process( ip, 0, new java.io.ByteArrayInputStream(large) ) );
+
+		Properties prop = new Properties();
+		prop.setProperty( "input.limit_org", "bb54000000000000000000000000bbadde7d8747" );
+		ctiin = new InputCTIProtobuf( prop );
+		assertNull( ctiin.process( ip, 0, java.nio.ByteBuffer.wrap(msg) ) );
+		assertNull( ctiin.process( ip, 0, new java.io.ByteArrayInputStream(msg) ) );
+
+		prop = new Properties();
+		prop.setProperty( "input.max_sightings", "1" );
+		ctiin = new InputCTIProtobuf( prop );
+		assertNull( ctiin.process( ip, 0, java.nio.ByteBuffer.wrap(msg) ) );
+	}
+
+	public void testChunked() throws Exception {
+		URL msgu = ClassLoader.getSystemResource("cti_msg.pb");
+		File msgf = new File(msgu.toURI());
+		byte[] msg = Files.readAllBytes(msgf.toPath());
+		byte[] ip = new byte[4];
+
+		ICTIInput ctiin = new InputCTIProtobuf( new Properties() );
+		CTIItem[] whole = ctiin.process( ip, 0, java.nio.ByteBuffer.wrap(msg) );
+		int kept = 0;
+		for( CTIItem item : whole ) if( item != null ) kept++;
+		CTIItem[] expected = new CTIItem[kept];
+		kept = 0;
+		for( CTIItem item : whole ) if( item != null ) expected[kept++] = item;
+
+		// Whatever the chunk size, the same items come out, in order
+		for( int chunk=1; chunk<=kept+1; chunk++ ){
+			ctiin = new InputCTIProtobuf( new Properties() ); // fresh coalesce state
+			final java.util.ArrayList<CTIItem> got = new java.util.ArrayList<CTIItem>();
+			final int size = chunk;
+			assertTrue( ctiin.processChunked( ip, 0, java.nio.ByteBuffer.wrap(msg), chunk, (items, count) -> {
+				assertTrue( count > 0 && count <= size );
+				for( int i=0; i<count; i++ ) got.add( items[i] );
+			}));
+			assertItems( expected, got.toArray(new CTIItem[0]) );
+		}
+
+		// Discarded and malformed reports hand nothing over
+		Properties prop = new Properties();
+		prop.setProperty( "input.max_sightings", "1" );
+		ctiin = new InputCTIProtobuf( prop );
+		assertFalse( ctiin.processChunked( ip, 0, java.nio.ByteBuffer.wrap(msg), 1, (items, count) -> fail() ) );
+		byte[] trunc = java.util.Arrays.copyOf( msg, msg.length - 3 );
+		assertFalse( ctiin.processChunked( ip, 0, java.nio.ByteBuffer.wrap(trunc), 1, (items, count) -> fail() ) );
+	}
+
+	public void testCoalesce() throws Exception {
+		URL msgu = ClassLoader.getSystemResource("cti_msg.pb");
+		File msgf = new File(msgu.toURI());
+		byte[] msg = Files.readAllBytes(msgf.toPath());
+		byte[] ip = new byte[4];
+
+		// A sighting with a test/subtest pair, placed at the time given
+		java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
+		com.google.protobuf.CodedOutputStream cos = com.google.protobuf.CodedOutputStream.newInstance(bos);
+		cos.writeUInt32NoTag( 8 ); // sighting type
+		cos.writeUInt32NoTag( 1 );
+		cos.writeUInt32NoTag( 48 ); // test
+		cos.writeUInt32NoTag( 1234 );
+		cos.writeUInt32NoTag( 56 ); // subtest
+		cos.writeUInt32NoTag( 5 );
+		cos.flush();
+		byte[] sighting = bos.toByteArray();
+
+		for( int round=0; round<2; round++ ){
+			Properties prop = new Properties();
+			prop.setProperty( "input.coalesce_window", "60" );
+			if( round == 1 ) prop.setProperty( "input.decoder", "generated" );
+			ICTIInput ctiin = new InputCTIProtobuf( prop );
+
+			// Same device, same test: only the first inside the window gets through,
+			// even across reports
+			assertEquals( 1, ctiin.process( ip, 1000, java.nio.ByteBuffer.wrap(report("dev1", sighting, 100)) ).length );
+			assertEquals( 0, ctiin.process( ip, 1001, java.nio.ByteBuffer.wrap(report("dev1", sighting, 159)) ).length );
+			assertEquals( 1, ctiin.process( ip, 1002, java.nio.ByteBuffer.wrap(report("dev1", sighting, 160)) ).length );
+
+			// Another device is its own
+			assertEquals( 1, ctiin.process( ip, 1003, java.nio.ByteBuffer.wrap(report("dev2", sighting, 100)) ).length );
+		}
+
+		// Disabled, nothing is coalesced
+		Properties prop = new Properties();
+		prop.setProperty( "input.coalesce_disable", "true" );
+		ICTIInput ctiin = new InputCTIProtobuf( prop );
+		assertEquals( 1, ctiin.process( ip, 1000, java.nio.ByteBuffer.wrap(report("dev1", sighting, 100)) ).length );
+		assertEquals( 1, ctiin.process( ip, 1001, java.nio.ByteBuffer.wrap(report("dev1", sighting, 100)) ).length );
+
+		// A full table forgets the oldest, but keeps working
+		CoalesceCache cache = new CoalesceCache( 60, 1 );
+		for( int i=0; i<10000; i++ ) assertFalse( cache.seen( i, 1, 100, 100 ) );
+		assertTrue( cache.seen( 9999, 1, 101, 100 ) );
+	}
+
+	public void testDeviceLimit() throws Exception {
+		byte[] ip = new byte[4];
+		byte[] sighting = new byte[]{ 8, 1 }; // just a sighting type
+
+		Properties prop = new Properties();
+		prop.setProperty( "input.device_rate", "0.001" );
+		prop.setProperty( "input.device_burst", "2" );
+		prop.setProperty( "input.max_sightings", "1" );
+		ICTIInput ctiin = new InputCTIProtobuf( prop );
+
+		// Two make it through, the third is over the limit; other devices are
+		// limited on their own
+		final long before = App.counterRateLimited.sum();
+		assertEquals( 1, ctiin.process( ip, 0, java.nio.ByteBuffer.wrap(report("dev1", sighting, 100)) ).length );
+		assertEquals( 1, ctiin.process( ip, 0, new java.io.ByteArrayInputStream(report("dev1", sighting, 100)) ).length );
+		assertEquals( 0, ctiin.process( ip, 0, java.nio.ByteBuffer.wrap(report("dev1", sighting, 100)) ).length );
+		// (a limited report's sightings aren't even decoded)
+		assertEquals( 0, ctiin.process( ip, 0, new java.io.ByteArrayInputStream(report("dev1", new byte[]{ 0x0f }, 100)) ).length );
+		assertEquals( 1, ctiin.process( ip, 0, java.nio.ByteBuffer.wrap(report("dev2", sighting, 100)) ).length );
+		assertTrue( ctiin.processChunked( ip, 0, java.nio.ByteBuffer.wrap(report("dev1", sighting, 100)), 1,
+			(items, count) -> fail() ) );
+		assertEquals( 3, App.counterRateLimited.sum() - before );
+
+		// A report that's discarded anyway (too many sightings) doesn't use up
+		// the device's budget
+		byte[] two = report("dev3", sighting, 100);
+		two = java.util.Arrays.copyOf( two, two.length * 2 );
+		System.arraycopy( two, 0, two, two.length / 2, two.length / 2 );
+		for( int i=0; i<3; i++ )
+			assertNull( ctiin.process( ip, 0, new java.io.ByteArrayInputStream(two) ) );
+		assertEquals( 1, ctiin.process( ip, 0, new java.io.ByteArrayInputStream(report("dev3", sighting, 100)) ).length );
+		assertEquals( 1, ctiin.process( ip, 0, new java.io.ByteArrayInputStream(report("dev3", sighting, 100)) ).length );
+
+		// A systemId after the sightings is still the device
+		byte[] late = report("dev4", sighting, 100);
+		byte[] sys = java.util.Arrays.copyOf( late, 6 );
+		System.arraycopy( late, 6, late, 0, late.length - 6 );
+		System.arraycopy( sys, 0, late, late.length - 6, 6 );
+		assertEquals( 1, ctiin.process( ip, 0, new java.io.ByteArrayInputStream(late) ).length );
+		assertEquals( 1, ctiin.process( ip, 0, new java.io.ByteArrayInputStream(late) ).length );
+		assertEquals( 0, ctiin.process( ip, 0, new java.io.ByteArrayInputStream(report("dev4", sighting, 100)) ).length );
+		assertEquals( 1, ctiin.process( ip, 0, new java.io.ByteArrayInputStream(report("dev5", sighting, 100)) ).length );
+
+		// A bucket refills at the rate, up to the burst
+		DeviceLimiter limiter = new DeviceLimiter( 10, 1, 0, 1 );
+		assertTrue( limiter.allow( 1, 1000 ) );
+		assertFalse( limiter.allow( 1, 1050 ) );
+		assertTrue( limiter.allow( 1, 1100 ) );
+		assertFalse( limiter.allow( 1, 1100 ) );
+	}
+
+	public void testTenants() throws Exception {
+		URL msgu = ClassLoader.getSystemResource("cti_msg.pb");
+		File msgf = new File(msgu.toURI());
+		byte[] msg = Files.readAllBytes(msgf.toPath());
+		byte[] ip = new byte[4];
+
+		// The fixture as sent by three different orgs
+		String[] orgs = new String[]{ "bb54000000000000000000000000bbadde7d8747",
+			"0100000000000000000000000000000000000000", "0200000000000000000000000000000000000000" };
+		byte[][] other = new byte[3][];
+		for( int i=0; i<3; i++ ){
+			java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
+			com.google.protobuf.CodedOutputStream cos = com.google.protobuf.CodedOutputStream.newInstance(bos);
+			cos.writeRawBytes( msg );
+			cos.writeByteArray( 1, javax.xml.bind.DatatypeConverter.parseHexBinary(orgs[i]) );
+			cos.flush();
+			other[i] = bos.toByteArray();
+		}
+
+		for( String decoder : new String[]{ "direct", "generated" } ){
+			Properties prop = new Properties();
+			prop.setProperty( "input.decoder", decoder );
+			prop.setProperty( "input.coalesce_disable", "true" );
+			prop.setProperty( "input.limit_orgs", orgs[0] + ", " + orgs[1] );
+			prop.setProperty( "input.org_daily", "2" );
+			prop.setProperty( "input.org_quota.0100000000000000000000000000000000000000", "0,1" );
+			ICTIInput ctiin = new InputCTIProtobuf( prop );
+
+			// Listed orgs get their own quotas; the rest are discarded
+			assertTrue( ctiin.process( ip, 0, java.nio.ByteBuffer.wrap(other[0]) ).length > 0 );
+			assertTrue( ctiin.process( ip, 0, java.nio.ByteBuffer.wrap(other[1]) ).length > 0 );
+			assertEquals( 0, ctiin.process( ip, 0, java.nio.ByteBuffer.wrap(other[1]) ).length );
+			CTIItem[] items = ctiin.process( ip, 0, new java.io.ByteArrayInputStream(other[0]) );
+			assertTrue( items.length > 0 );
+			assertEquals( orgs[0], Utils.hex(items[0]._org) );
+			assertEquals( 0, ctiin.process( ip, 0, new java.io.ByteArrayInputStream(other[0]) ).length );
+			assertNull( ctiin.process( ip, 0, java.nio.ByteBuffer.wrap(other[2]) ) );
+			assertNull( ctiin.process( ip, 0, new java.io.ByteArrayInputStream(other[2]) ) );
+			assertNull( ctiin.process( ip, 0, java.nio.ByteBuffer.wrap(msg) ) );
+
+			String stats = ctiin.tenantStats();
+			assertTrue( stats.contains("Tenant " + orgs[0] + ": Accepted=2 OverRate=0 OverDaily=1") );
+			assertTrue( stats.contains("Tenant " + orgs[1] + ": Accepted=1 OverRate=0 OverDaily=1") );
+
+			// The stats line is since the last one; the metrics are since startup
+			assertTrue( ctiin.tenantStats().contains("Tenant " + orgs[0] + ": Accepted=0 OverRate=0 OverDaily=0") );
+			StringBuilder sb = new StringBuilder();
+			ctiin.tenantMetrics( sb );
+			assertTrue( sb.toString().contains("asgw_tenant_accepted_total{org=\"" + orgs[0] + "\"} 2\n") );
+			assertTrue( sb.toString().contains("asgw_tenant_over_daily_total{org=\"" + orgs[1] + "\"} 1\n") );
+		}
+
+		// The per second quota
+		Properties prop = new Properties();
+		prop.setProperty( "input.limit_orgs", orgs[0] );
+		prop.setProperty( "input.org_rate", "2" );
+		OrgTenants.Tenant t = OrgTenants.create( prop ).first();
+		assertTrue( t.admit(100) );
+		assertTrue( t.admit(100) );
+		assertFalse( t.admit(100) );
+		assertTrue( t.admit(101) );
+
+		// An org in both lists is one tenant, and quota keys are in any case
+		prop.setProperty( "input.limit_org", orgs[0].toUpperCase() );
+		prop.setProperty( "input.org_quota.BB54000000000000000000000000bbadDE7D8747", "1,0" );
+		OrgTenants tenants = OrgTenants.create( prop );
+		assertEquals( orgs[0] + "(1/s,0/day)", tenants.description() );
+	}
+
+	private static byte[] report(String sys, byte[] sighting, int ts) throws Exception {
+		java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
+		com.google.protobuf.CodedOutputStream cos = com.google.protobuf.CodedOutputStream.newInstance(bos);
+		cos.writeByteArray( 2, sys.getBytes() );
+		cos.writeTag( 8, com.google.protobuf.WireFormat.WIRETYPE_LENGTH_DELIMITED );
+		cos.writeUInt32NoTag( sighting.length + 1 + com.google.protobuf.CodedOutputStream.computeUInt32SizeNoTag(ts) );
+		cos.writeRawBytes( sighting );
+		cos.writeUInt32( 2, ts );
+		cos.flush();
+		return bos.toByteArray();
+	}
+
+	private static void assertItems(CTIItem[] a, CTIItem[] b) {
+		if( a == null || b == null ){
+			assertSame( a, b );
+			return;
+		}
+		assertEquals( a.length, b.length );
+		for( int i=0; i<a.length; i++ ){
+			if( a[i] == null || b[i] == null ){
+				assertSame( a[i], b[i] );
+				continue;
+			}
+			assertTrue( java.util.Arrays.equals( a[i]._org, b[i]._org ) );
+			assertTrue( java.util.Arrays.equals( a[i]._sys, b[i]._sys ) );
+			assertTrue( java.util.Arrays.equals( a[i]._sys2, b[i]._sys2 ) );
+			assertTrue( java.util.Arrays.equals( a[i]._app, b[i]._app ) );
+			assertTrue( java.util.Arrays.equals( a[i]._user, b[i]._user ) );
+			assertTrue( java.util.Arrays.equals( a[i]._user2, b[i]._user2 ) );
+			assertTrue( java.util.Arrays.equals( a[i]._recvip, b[i]._recvip ) );
+			assertEquals( a[i]._sysType, b[i]._sysType );
+			assertEquals( a[i]._recvts, b[i]._recvts );
+
+			CTIItem.Ob oa = a[i]._ob, ob = b[i]._ob;
+			assertEquals( oa._type, ob._type );
+			assertEquals( oa._ts, ob._ts );
+			assertEquals( oa._conf, ob._conf );
+			assertEquals( oa._imp, ob._imp );
+			assertEquals( oa._test, ob._test );
+			assertEquals( oa._test2, ob._test2 );
+			assertEquals( oa._datas.size(), ob._datas.size() );
+			for( int j=0; j<oa._datas.size(); j++ ){
+				assertEquals( oa._datas.get(j)._type, ob._datas.get(j)._type );
+				assertEquals( oa._datas.get(j)._num, ob._datas.get(j)._num );
+				assertTrue( java.util.Arrays.equals( oa._datas.get(j)._data, ob._datas.get(j)._data ) );
+			}
+		}
+	}
+
 	public void testPerformance() throws Exception {
 		Properties prop = new Properties();
 		ICTIInput ctiin = new InputCTIProtobuf( prop );
@@ -0,0 +1,59 @@
+package com.additionsecurity;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.additionsecurity.*;
+
+public class MetricsTest extends TestCase
+{
+    public MetricsTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( MetricsTest.class );
+    }
+
+	public void testHistogram() throws Exception {
+		Metrics.Histogram h = new Metrics.Histogram("t", "test", 2, 10, 1);
+
+		// Every value lands in a bucket whose bound is above it, and the
+		// previous bound isn't
+		for( long v=0; v<1024; v++ ){
+			final int b = h.bucket(v);
+			assertTrue( v < h.upper(b) );
+			if( b > 0 ) assertTrue( v >= h.upper(b - 1) );
+		}
+		assertEquals( 1024, h.upper( h.bucket(1023) ) );
+		assertEquals( h.bucket(1024), h.bucket(Long.MAX_VALUE) );
+
+		h.record(1);
+		h.record(5);
+		h.record(5000);
+		StringBuilder sb = new StringBuilder();
+		h.text(sb);
+		String s = sb.toString();
+		assertTrue( s.contains("t_bucket{le=\"4\"} 1\n") );
+		assertTrue( s.contains("t_bucket{le=\"6\"} 2\n") );
+		assertTrue( s.contains("t_bucket{le=\"1024\"} 2\n") );
+		assertTrue( s.contains("t_bucket{le=\"+Inf\"} 3\n") );
+		assertTrue( s.contains("t_sum 5006\n") );
+		assertTrue( s.contains("t_count 3\n") );
+	}
+
+	public void testQuantile() throws Exception {
+		Metrics.Histogram h = new Metrics.Histogram("t", "test", 2, 10, 1);
+		assertEquals( 0, h.quantile(0.5) );
+
+		for( int i=0; i<90; i++ ) h.record(5);
+		for( int i=0; i<10; i++ ) h.record(100);
+		assertEquals( 6, h.quantile(0.5) );
+		assertEquals( 6, h.quantile(0.9) );
+		assertEquals( 112, h.quantile(0.99) );
+
+		h.record(5000);
+		assertEquals( 1024, h.quantile(1.0) );
+	}
+}
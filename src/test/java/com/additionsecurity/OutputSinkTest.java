@@ -0,0 +1,101 @@
+package com.additionsecurity;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+
+import com.additionsecurity.*;
+
+public class OutputSinkTest extends TestCase
+{
+    public OutputSinkTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( OutputSinkTest.class );
+    }
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public void testLines() throws Exception {
+		OutputSink s = OutputSink.lines(1);
+		for( int i=0; i<100; i++ ) s.add( ("item" + i).getBytes(UTF8) );
+
+		// An item the transform didn't write leaves nothing behind
+		s.begin();
+		s.buffer().writeBytes( "partial".getBytes(UTF8) );
+		assertEquals( 0, s.end(false) );
+
+		assertEquals( 100, s.count() );
+		assertEquals( 590, s.bytes() );
+		byte[][] items = s.items();
+		assertEquals( "item0\n", new String(items[0], UTF8) );
+		assertEquals( "item99\n", new String(items[99], UTF8) );
+		assertEquals( 690, s.toBuffer().length() );
+
+		s.truncate(2);
+		assertEquals( 2, s.count() );
+		assertEquals( 10, s.bytes() );
+		assertEquals( "item0\nitem1\n", s.toBuffer().toString("UTF-8") );
+		s.add( "x".getBytes(UTF8) );
+		assertEquals( "item0\nitem1\nx\n", s.toBuffer().toString("UTF-8") );
+	}
+
+	public void testDrop() throws Exception {
+		// A sink that can't frame items over 3 bytes drops them
+		OutputSink s = new OutputSink(1){
+			@Override protected int close(int mark, int start)
+			{
+				return ( _buf.writerIndex() - start > 3 ) ? -1 : mark;
+			}
+		};
+		s.add( "abc".getBytes(UTF8) );
+		s.add( "toolong".getBytes(UTF8) );
+		s.add( "de".getBytes(UTF8) );
+		assertEquals( 2, s.count() );
+		assertEquals( "abcde", s.toBuffer().toString("UTF-8") );
+	}
+
+	public void testEventBus() throws Exception {
+		OutputSink s = OutputSink.lines(2);
+		s.add( "a".getBytes(UTF8) );
+		s.add( "bc".getBytes(UTF8) );
+
+		// Sent locally, the consumer gets the sink itself
+		Vertx vertx = Vertx.vertx();
+		try {
+			OutputSink.registerCodec( vertx.eventBus() );
+			OutputSink.registerCodec( vertx.eventBus() );
+			final AtomicReference<Object> got = new AtomicReference<>();
+			final CountDownLatch latch = new CountDownLatch(1);
+			vertx.eventBus().consumer("test.sink", message -> {
+				got.set( message.body() );
+				latch.countDown();
+			});
+			vertx.eventBus().send("test.sink", s, OutputSink.deliveryOptions());
+			assertTrue( latch.await(10, TimeUnit.SECONDS) );
+			assertSame( s, got.get() );
+		}
+		finally {
+			vertx.close();
+		}
+
+		// Over the wire, it comes out the same
+		Buffer wire = Buffer.buffer().appendString("x");
+		new OutputSink.Codec().encodeToWire( wire, s );
+		OutputSink d = new OutputSink.Codec().decodeFromWire( 1, wire );
+		assertEquals( 2, d.count() );
+		assertEquals( 3, d.bytes() );
+		assertEquals( "a\nbc\n", d.toBuffer().toString("UTF-8") );
+		assertEquals( "bc\n", new String(d.items()[1], UTF8) );
+	}
+}
@@ -0,0 +1,52 @@
+package com.additionsecurity;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+import com.additionsecurity.*;
+
+public class TimeCacheTest extends TestCase
+{
+    public TimeCacheTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( TimeCacheTest.class );
+    }
+
+	private static void check(TimeCache c, DateTimeFormatter f, long ts) throws Exception {
+		assertEquals( f.format(Instant.ofEpochSecond(ts)), new String(c.get(ts), "UTF-8") );
+	}
+
+	public void testFormats() throws Exception {
+		final DateTimeFormatter local = DateTimeFormatter.ofPattern("MMM dd yyyy HH:mm:ss")
+			.withZone(ZoneId.systemDefault());
+		final DateTimeFormatter syslog = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'")
+			.withZone(ZoneId.systemDefault());
+		final long now = System.currentTimeMillis() / 1000;
+
+		// Around now (cached), twice over, and far from it (not)
+		for( int pass=0; pass<2; pass++ ){
+			for( long ts = now - 3600; ts < now + 600; ts += 7 ){
+				check( TimeCache.ISO, DateTimeFormatter.ISO_INSTANT, ts );
+				check( TimeCache.LOCAL, local, ts );
+				check( TimeCache.SYSLOG, syslog, ts );
+			}
+		}
+		for( long ts : new long[]{ 0, 59, 60, 1458147016L, now - 86400 * 400, now + 86400 * 400 } ){
+			check( TimeCache.ISO, DateTimeFormatter.ISO_INSTANT, ts );
+			check( TimeCache.LOCAL, local, ts );
+		}
+
+		// A format without seconds still comes out right for every second
+		final DateTimeFormatter hm = DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.of("UTC"));
+		final TimeCache c = new TimeCache( hm );
+		for( long ts = now - 120; ts < now + 120; ts++ ) check( c, hm, ts );
+	}
+}
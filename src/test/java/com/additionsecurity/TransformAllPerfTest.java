@@ -82,6 +82,10 @@ public class TransformAllPerfTest extends TestCase
 		t_csv3.reconfigure(_prop);
 		t_csv3.nowTick(ts);
 
+		ICTITransform t_tpl = new TransformTemplate( _prop );
+		t_tpl.reconfigure(_prop);
+		t_tpl.nowTick(ts);
+
 		ICTITransform _t;
 		CTIItem item = _items[1];
 		CTIItem items[] = new CTIItem[]{ item };
@@ -120,6 +124,15 @@ public class TransformAllPerfTest extends TestCase
 		delta = t_stop - t_start;
 		System.out.println("- KVP2 in ms: " + String.valueOf(delta));
 
+		_t = t_tpl;
+		go = _t.groupObject(items);
+		for( i=0; i<100; i++) res = _t.transform(item, go);
+		t_start = System.currentTimeMillis();
+		for( i=0; i< max; i++ ) res = _t.transform(item, go);
+		t_stop = System.currentTimeMillis();
+		delta = t_stop - t_start;
+		System.out.println("- Template in ms: " + String.valueOf(delta));
+
 		/*
 		_t = t_csv;	
 		go = _t.groupObject(items, "");
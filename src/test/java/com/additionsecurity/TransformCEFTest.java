@@ -66,5 +66,27 @@ public class TransformCEFTest extends TestCase
 			assertTrue( res.length > 0 );
 		}
 	}
-	
+
+	public void testEscapeAndLarge() throws Exception {
+		_transform = new TransformCEF( _prop );
+		_transform.nowTick( System.currentTimeMillis() / 1000 );
+
+		// Bigger than the transform's initial buffer once escaped
+		byte[] big = new byte[5000];
+		java.util.Arrays.fill( big, (byte)'=' );
+		CTIItem item = _items[0].cloneBase();
+		item.setObservation( new CTIItem.Ob().setTest(1)
+			.addData( new CTIItem.ObData(18, "a|b\\c=d\u00e9".getBytes("UTF-8")) )
+			.addData( new CTIItem.ObData(18, big) )
+			.addData( new CTIItem.ObData(19, 42) ) );
+
+		String res = new String( _transform.transform(item, null), "UTF-8" );
+		assertTrue( res.contains("Label=string cs") );
+		assertTrue( res.contains("=a\\|b\\\\c\\=d\\xc3\\xa9 ") );
+		assertTrue( res.contains("Label=number cn") );
+		assertTrue( res.endsWith("=42") );
+		assertTrue( res.length() > 10000 );
+		assertEquals( "a\\|b", _transform.dataToString("a|b".getBytes("UTF-8")) );
+	}
+
 }
@@ -66,5 +66,25 @@ public class TransformJSONTest extends TestCase
 			assertTrue( res.length > 0 );
 		}
 	}
-	
+
+	public void testParses() throws Exception {
+		_transform = new TransformJSON( _prop );
+		_transform.nowTick( System.currentTimeMillis() / 1000 );
+
+		CTIItem item = _items[0].cloneBase();
+		item.setObservation( new CTIItem.Ob().setTest(7).setTest2(3)
+			.addData( new CTIItem.ObData(18, "q\"b\\\n".getBytes("UTF-8")) )
+			.addData( new CTIItem.ObData(18, "two".getBytes("UTF-8")) )
+			.addData( new CTIItem.ObData(19, 42) ) );
+
+		io.vertx.core.json.JsonObject js = new io.vertx.core.json.JsonObject(
+			new String( _transform.transform(item, null), "UTF-8" ) );
+		assertEquals( 7L, (long)js.getLong("id") );
+		assertEquals( 3L, (long)js.getLong("subId") );
+		io.vertx.core.json.JsonObject od = js.getJsonObject("observableData");
+		assertEquals( "q\"b\\\n", new String( od.getBinary("string"), "UTF-8" ) );
+		assertEquals( "two", new String( od.getBinary("string2"), "UTF-8" ) );
+		assertEquals( 42L, (long)od.getLong("number") );
+	}
+
 }
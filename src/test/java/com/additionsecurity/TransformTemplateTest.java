@@ -0,0 +1,122 @@
+package com.additionsecurity;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.net.URL;
+import java.io.File;
+import java.util.Properties;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.Path;
+
+import com.additionsecurity.*;
+
+public class TransformTemplateTest extends TestCase
+{
+    public TransformTemplateTest( String testName ) {
+        super( testName );
+    }
+
+	public static CTIItem[] _items;
+	public static Properties _prop;
+	public static ICTITransform _transform;
+
+    public static Test suite() {
+        return new TestSuite( TransformTemplateTest.class );
+    }
+
+	protected void setUp() throws Exception {
+		_prop = new Properties();
+		//prop.setProperty("transform.cef.includeTitle","true");
+		_prop.setProperty("transform.accountName2String","true");
+		_prop.setProperty("transform.resource2String","true");
+		_prop.setProperty("_hostname","unitester");
+
+		ICTIInput ctiin = new InputCTIProtobuf( _prop );
+		URL msgu = ClassLoader.getSystemResource("cti_msg.pb");
+		File msgf = new File(msgu.toURI());
+		Path p = msgf.toPath();
+		//byte[] data = Files.readAllBytes(p);
+		java.io.ByteArrayInputStream data = new java.io.ByteArrayInputStream( Files.readAllBytes(p) );
+		byte[] ip = new byte[4];
+		_items = ctiin.process( ip, 0, data );
+		assertNotNull( _items );
+		assertTrue( _items.length > 0 );
+	}
+
+
+	public void testBasic() throws Exception {
+		_transform = new TransformTemplate( _prop );
+
+		_transform.reconfigure(_prop);
+		long ts = System.currentTimeMillis() / 1000;
+		_transform.nowTick(ts);
+		assertNotNull( _transform.description() );
+		assertNull( _transform.header() );
+		assertFalse( _transform.isMultiLine() );
+		assertTrue( "txt".equals(_transform.extension()) );
+
+		Object go = _transform.groupObject(_items);
+		for( CTIItem item : _items ){
+			byte[] res = _transform.transform(item, go);
+			assertNotNull( res );
+			assertTrue( res.length > 0 );
+		}
+	}
+
+	public void testLayout() throws Exception {
+		_prop.setProperty("transform.template",
+			"{{\"id\":{eventId}[,\"subId\":{eventSubId}][,\"sev\":{sev:json}],\"data\":{{[{datas}]}}}}");
+		_prop.setProperty("transform.template.data", "{key:json}:{value:json}");
+		_prop.setProperty("transform.template.data_separator", ",");
+		_transform = new TransformTemplate( _prop );
+		_transform.nowTick( System.currentTimeMillis() / 1000 );
+
+		CTIItem item = _items[0].cloneBase();
+		item.setObservation( new CTIItem.Ob().setTest(7)
+			.addData( new CTIItem.ObData(18, "q\"b\\\n".getBytes("UTF-8")) )
+			.addData( new CTIItem.ObData(18, "two".getBytes("UTF-8")) )
+			.addData( new CTIItem.ObData(19, 42) ) );
+
+		CTIItem[] items = new CTIItem[]{ item };
+		assertEquals( "{\"id\":7,\"data\":{\"string\":\"q\\\"b\\\\\\n\",\"string_2\":\"two\",\"number\":42}}",
+			new String( _transform.transform(item, _transform.groupObject(items)), "UTF-8" ) );
+
+		item._ob._datas.clear();
+		item._ob._test2 = 3;
+		assertEquals( "{\"id\":7,\"subId\":3,\"data\":{}}",
+			new String( _transform.transform(item, _transform.groupObject(items)), "UTF-8" ) );
+
+		// An encoder means the same for every field: hex is every byte, whether
+		// of an id, data or text
+		_prop.setProperty("transform.template", "{application:hex}|{recvIp:hex}|{eventId:hex}|{datas}");
+		_prop.setProperty("transform.template.data", "{key:hex}={value:hex}");
+		_transform = new TransformTemplate( _prop );
+		item.setAppId( new byte[]{ 1, 0, 0 } );
+		item._ob.addData( new CTIItem.ObData(18, "ab".getBytes("UTF-8")) )
+			.addData( new CTIItem.ObData(20, new byte[]{ 10, 0, 0, 1 }) );
+		assertEquals( "010000|302e302e302e30|7|" + hex(Decode.dataTypeKeyBytes(18)) + "=6162,"
+			+ hex(Decode.dataTypeKeyBytes(20)) + "=0a000001",
+			new String( _transform.transform(item, _transform.groupObject(items)), "UTF-8" ) );
+
+		_prop.setProperty("transform.template", "{eventId");
+		try {
+			new TransformTemplate( _prop );
+			fail();
+		} catch(IllegalArgumentException e){}
+		_prop.setProperty("transform.template", "{eventId:base32}");
+		try {
+			new TransformTemplate( _prop );
+			fail();
+		} catch(IllegalArgumentException e){}
+	}
+
+	private static String hex(byte[] data) {
+		StringBuilder sb = new StringBuilder();
+		for( byte d : data ) sb.append( String.format("%02x", d & 0xff) );
+		return sb.toString();
+	}
+}
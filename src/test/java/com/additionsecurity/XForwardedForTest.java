@@ -0,0 +1,67 @@
+package com.additionsecurity;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.additionsecurity.*;
+
+public class XForwardedForTest extends TestCase
+{
+    public XForwardedForTest( String testName ) {
+        super( testName );
+    }
+
+    public static Test suite() {
+        return new TestSuite( XForwardedForTest.class );
+    }
+
+	private static String ip(byte[] b) {
+		return Decode.ipToString(b);
+	}
+
+	public void testParse() throws Exception {
+		XForwardedFor.trust( null );
+
+		assertEquals( "1.2.3.4", ip(XForwardedFor.address("1.2.3.4")) );
+		assertEquals( "1.2.3.4", ip(XForwardedFor.address(" 1.2.3.4:8080 ")) );
+		assertEquals( "255.0.10.100", ip(XForwardedFor.address("255.0.10.100")) );
+		assertEquals( "::1", ip(XForwardedFor.address("0:0:0:0:0:0:0:1")) );
+		assertEquals( "2001:db8::1", ip(XForwardedFor.address("[2001:DB8:0:0::1]:443")) );
+		assertEquals( "fe80::1:0:0:2", ip(XForwardedFor.address("fe80:0:0:0:1::2%eth0")) );
+		assertEquals( "2001:db8:0:1:1:1:1:1", ip(XForwardedFor.address("2001:db8:0:1:1:1:1:1")) );
+		assertEquals( "1::", ip(XForwardedFor.address("1::")) );
+		assertEquals( "::", ip(XForwardedFor.address("::")) );
+		assertEquals( 16, XForwardedFor.address("::1").length );
+
+		// IPv4 mapped comes out as IPv4
+		assertEquals( 4, XForwardedFor.address("::ffff:10.1.2.3").length );
+		assertEquals( "10.1.2.3", ip(XForwardedFor.address("::ffff:10.1.2.3")) );
+
+		for( String bad : new String[]{ "", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1..2.3", "1.2.3.4:",
+			"1.2.3.4:abc", "unknown", ":::", "1::2::3", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9",
+			"12345::1", "g::1", "[::1", "1:2:3:4:5:6:7::8", ":1::" } ){
+			assertSame( bad, XForwardedFor.NULL, XForwardedFor.address(bad) );
+		}
+	}
+
+	public void testClient() throws Exception {
+		// Without trusted proxies, the leftmost hop
+		XForwardedFor.trust( "" );
+		assertEquals( "1.1.1.1", ip(XForwardedFor.client("1.1.1.1, 10.0.0.1", "10.0.0.2")) );
+		assertEquals( "10.0.0.2", ip(XForwardedFor.client(null, "10.0.0.2")) );
+		assertEquals( "2001:db8::5", ip(XForwardedFor.client("2001:db8::5", "10.0.0.2")) );
+
+		// With them, from the right past the trusted hops, and only from a trusted peer
+		XForwardedFor.trust( "10.0.0.0/8, fd00::/8, 192.168.1.1" );
+		assertEquals( "2.2.2.2", ip(XForwardedFor.client("1.1.1.1, 2.2.2.2, 10.9.9.9", "10.0.0.2")) );
+		assertEquals( "2.2.2.2", ip(XForwardedFor.client("1.1.1.1,2.2.2.2 , fd00::1,192.168.1.1", "fd12::3")) );
+		assertEquals( "3.3.3.3", ip(XForwardedFor.client("1.1.1.1", "3.3.3.3")) );
+		assertEquals( "10.0.0.3", ip(XForwardedFor.client("10.0.0.3, 10.0.0.4", "10.0.0.2")) );
+		assertEquals( "10.0.0.2", ip(XForwardedFor.client("", "10.0.0.2")) );
+		assertSame( XForwardedFor.NULL, XForwardedFor.client("1.1.1.1, junk, 10.0.0.3", "10.0.0.2") );
+		assertEquals( "192.168.1.2", ip(XForwardedFor.client("1.1.1.1, 192.168.1.2", "192.168.1.1")) );
+
+		XForwardedFor.trust( null );
+	}
+}